@@ -29,7 +29,7 @@ from_set
  ;
 
 where_expr
- : ( atomic_expr | OPEN_PAR | CLOSE_PAR | logic_op )+
+ : ( atomic_expr | spatial_expr | OPEN_PAR | CLOSE_PAR | logic_op )+
  ;
 
 limit_expr
@@ -46,6 +46,12 @@ atomic_expr
  | property_name K_IS? K_NOT? K_NULL
  ;
 
+spatial_expr
+ : K_WITHIN NUMERIC_LITERAL K_OF OPEN_PAR NUMERIC_LITERAL COMMA NUMERIC_LITERAL CLOSE_PAR
+ | K_INSIDE K_H3 STRING_LITERAL
+ | K_INSIDE K_BOX OPEN_PAR NUMERIC_LITERAL COMMA NUMERIC_LITERAL COMMA NUMERIC_LITERAL COMMA NUMERIC_LITERAL CLOSE_PAR
+ ;
+
 equality_op
  : EQ | EQ2 | NOT_EQ1 | NOT_EQ2
  ;
@@ -59,7 +65,11 @@ regex_op
  ;
 
 property_name
- : IDENTIFIER ( DOT IDENTIFIER )?
+ : name ( DOT name )?
+ ;
+
+name
+ : IDENTIFIER | K_WITHIN | K_OF | K_INSIDE | K_H3 | K_BOX
  ;
 
 spatial_object
@@ -96,6 +106,11 @@ K_NOT : N O T;
 K_OR : O R;
 K_IS : I S;
 K_NULL : N U L L;
+K_WITHIN : W I T H I N;
+K_OF : O F;
+K_INSIDE : I N S I D E;
+K_H3 : H '3';
+K_BOX : B O X;
 
 O_POINT : P O I N T;
 O_SEGMENT : T R A C K S E G M E N T;
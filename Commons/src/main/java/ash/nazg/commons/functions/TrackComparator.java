@@ -13,6 +13,11 @@ import java.util.Comparator;
 public class TrackComparator implements Comparator<Tuple2<Text, Double>>, Serializable {
     @Override
     public int compare(Tuple2<Text, Double> o1, Tuple2<Text, Double> o2) {
+        int c = o1._1.compareTo(o2._1);
+        if (c != 0) {
+            return c;
+        }
+
         return Double.compare(o1._2, o2._2);
     }
 }
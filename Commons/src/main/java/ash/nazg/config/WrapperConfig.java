@@ -253,6 +253,18 @@ public class WrapperConfig extends PropertiesConfig {
         return getDataStreamsConfig().inputDelimiter(sink);
     }
 
+    public String[] getTeeColumns(String tee) {
+        return getDataStreamsConfig().getArray(DataStreamsConfig.DS_OUTPUT_COLUMNS_PREFIX + tee);
+    }
+
+    public char getTeeDelimiter(String tee) {
+        String delimiter = getDataStreamsConfig().getProperty(DataStreamsConfig.DS_OUTPUT_DELIMITER_PREFIX + tee);
+
+        return ((delimiter == null) || delimiter.isEmpty())
+                ? getDataStreamsConfig().defaultOutputDelimiter()
+                : delimiter.charAt(0);
+    }
+
     public String metricsStorePath() {
         return getLayerProperty(TASK_METRICS_PREFIX, "store", null, null);
     }
@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.uber.h3core.H3Core;
+import com.uber.h3core.util.GeoCoord;
+import org.apache.log4j.Logger;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.impl.CoordinateArraySequence;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of H3 cell boundaries, shared by all tasks of an executor. Same cells repeat heavily
+ * across records, so each boundary is built only once, along with its centroid, and all Polygons of a cell share
+ * its cached immutable coordinate sequence. The cache is split into stripes by cell, each with its own lock and LRU
+ * order, so concurrent tasks rarely wait for each other
+ */
+public final class CellBoundaryCache {
+    /**
+     * Max number of cells held in the cache of each executor
+     */
+    public static final int CAPACITY = 65_536;
+
+    private static final int STRIPES = 32;
+
+    private static final Logger LOG = Logger.getLogger(CellBoundaryCache.class);
+
+    private static H3Core h3 = null;
+
+    private static final Stripe[] CACHE = new Stripe[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            CACHE[i] = new Stripe();
+        }
+    }
+
+    private CellBoundaryCache() {
+    }
+
+    static void clear() {
+        for (Stripe stripe : CACHE) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private static Stripe stripe(long cell) {
+        return CACHE[(int) (LongIntMap.mix(cell) >>> 32) & (STRIPES - 1)];
+    }
+
+    private static void setupH3() {
+        try {
+            if (h3 == null) {
+                h3 = H3Core.newInstance();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static CellBoundary build(long cell) {
+        List<GeoCoord> geo = h3.h3ToGeoBoundary(cell);
+
+        Coordinate[] ring = new Coordinate[geo.size() + 1];
+        for (int i = 0; i < geo.size(); i++) {
+            GeoCoord c = geo.get(i);
+            ring[i] = new Coordinate(c.lng, c.lat);
+        }
+        ring[geo.size()] = new Coordinate(ring[0]);
+
+        return new CellBoundary(new SharedRing(ring));
+    }
+
+    private static class Stripe extends LinkedHashMap<Long, CellBoundary> {
+        private Stripe() {
+            super(1024, 0.75F, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CellBoundary> eldest) {
+            return size() > CAPACITY / STRIPES;
+        }
+    }
+
+    public static class CellBoundary {
+        private final CoordinateSequence ring;
+        private final double centroidLat;
+        private final double centroidLon;
+
+        private CellBoundary(CoordinateSequence ring) {
+            this.ring = ring;
+
+            Point centroid = new GeometryFactory().createPolygon(ring).getCentroid();
+            this.centroidLat = centroid.getY();
+            this.centroidLon = centroid.getX();
+        }
+
+        /**
+         * @return Polygon of the cell which shares the cached boundary. The boundary can't be changed in place, but
+         * copies of the Polygon get their own mutable coordinates
+         */
+        public Polygon toPolygon(GeometryFactory factory) {
+            return factory.createPolygon(factory.createLinearRing(ring));
+        }
+
+        public double getCentroidLat() {
+            return centroidLat;
+        }
+
+        public double getCentroidLon() {
+            return centroidLon;
+        }
+    }
+
+    /**
+     * Read-only ring of cached cell boundary. Coordinates are handed out as copies, and copies of the sequence are
+     * mutable
+     */
+    private static class SharedRing implements CoordinateSequence, Serializable {
+        private final Coordinate[] coordinates;
+
+        private SharedRing(Coordinate[] coordinates) {
+            this.coordinates = coordinates;
+        }
+
+        @Override
+        public int getDimension() {
+            return 2;
+        }
+
+        @Override
+        public Coordinate getCoordinate(int i) {
+            return coordinates[i].copy();
+        }
+
+        @Override
+        public Coordinate getCoordinateCopy(int i) {
+            return coordinates[i].copy();
+        }
+
+        @Override
+        public void getCoordinate(int index, Coordinate coord) {
+            coord.setCoordinate(coordinates[index]);
+        }
+
+        @Override
+        public double getX(int index) {
+            return coordinates[index].x;
+        }
+
+        @Override
+        public double getY(int index) {
+            return coordinates[index].y;
+        }
+
+        @Override
+        public double getOrdinate(int index, int ordinateIndex) {
+            return coordinates[index].getOrdinate(ordinateIndex);
+        }
+
+        @Override
+        public int size() {
+            return coordinates.length;
+        }
+
+        @Override
+        public void setOrdinate(int index, int ordinateIndex, double value) {
+            throw new UnsupportedOperationException("Cached H3 cell boundary can't be changed in place");
+        }
+
+        @Override
+        public Coordinate[] toCoordinateArray() {
+            Coordinate[] ret = new Coordinate[coordinates.length];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = coordinates[i].copy();
+            }
+            return ret;
+        }
+
+        @Override
+        public Envelope expandEnvelope(Envelope env) {
+            for (Coordinate c : coordinates) {
+                env.expandToInclude(c);
+            }
+            return env;
+        }
+
+        @Override
+        @Deprecated
+        public Object clone() {
+            return copy();
+        }
+
+        @Override
+        public CoordinateSequence copy() {
+            return new CoordinateArraySequence(toCoordinateArray());
+        }
+    }
+
+    /**
+     * Hit and miss counts of the cache, summed over all tasks
+     */
+    public static class Metrics implements Serializable {
+        private final LongAccumulator hits;
+        private final LongAccumulator misses;
+
+        public Metrics(JavaSparkContext ctx) {
+            hits = ctx.sc().longAccumulator("one-ring:h3:boundary.cache.hits");
+            misses = ctx.sc().longAccumulator("one-ring:h3:boundary.cache.misses");
+        }
+
+        /**
+         * @return new lookup for a single task
+         */
+        public Lookup lookup() {
+            return new Lookup(this);
+        }
+
+        public long getHits() {
+            return hits.value();
+        }
+
+        public long getMisses() {
+            return misses.value();
+        }
+    }
+
+    /**
+     * Lookups of a single task, counted locally and added to metrics once the task is done
+     */
+    public static class Lookup {
+        private final Metrics metrics;
+        private long hits = 0L;
+        private long misses = 0L;
+
+        private Lookup(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        public CellBoundary get(long cell) {
+            Stripe stripe = stripe(cell);
+
+            CellBoundary boundary;
+            synchronized (stripe) {
+                boundary = stripe.get(cell);
+            }
+
+            if (boundary != null) {
+                hits++;
+                return boundary;
+            }
+
+            misses++;
+            setupH3();
+            boundary = build(cell);
+            synchronized (stripe) {
+                stripe.put(cell, boundary);
+            }
+            return boundary;
+        }
+
+        /**
+         * Add the counts to metrics, which are shown as named accumulators in the Spark UI, and log the hit rate of
+         * the task
+         */
+        public void report() {
+            long total = hits + misses;
+            if (total > 0L) {
+                LOG.info(String.format("H3 boundary cache: %d hits, %d misses, %.1f%% hit rate", hits, misses, 100.D * hits / total));
+            }
+
+            metrics.hits.add(hits);
+            metrics.misses.add(misses);
+            hits = 0L;
+            misses = 0L;
+        }
+    }
+}
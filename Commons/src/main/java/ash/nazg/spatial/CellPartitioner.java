@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import org.apache.spark.Partitioner;
+import org.apache.spark.util.Utils;
+
+/**
+ * Partitioner of pair RDDs keyed by H3 cells. Partition is computed from the primitive cell value with a strong
+ * mix, because default hash codes of H3 cells of the same resolution and area differ only in a few bits
+ */
+public class CellPartitioner extends Partitioner {
+    private final int partitions;
+
+    public CellPartitioner(int partitions) {
+        this.partitions = partitions;
+    }
+
+    @Override
+    public int numPartitions() {
+        return partitions;
+    }
+
+    @Override
+    public int getPartition(Object key) {
+        if (key == null) {
+            return 0;
+        }
+
+        return getPartition((long) (Long) key);
+    }
+
+    public int getPartition(long cell) {
+        return Utils.nonNegativeMod((int) LongIntMap.mix(cell), partitions);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof CellPartitioner) && (((CellPartitioner) other).partitions == partitions);
+    }
+
+    @Override
+    public int hashCode() {
+        return partitions;
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.uber.h3core.AreaUnit;
+import com.uber.h3core.H3Core;
+import com.uber.h3core.LengthUnit;
+import com.uber.h3core.util.GeoCoord;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import scala.Tuple2;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Splits Polygons too large to be covered by H3 cells in a single task into tiles. Each tile is a coarse H3 cell,
+ * and covers only the cells that are its descendants, so coverages of tiles don't overlap and can be computed in
+ * parallel. To polyfill a tile, the Polygon is clipped to the tile's neighbourhood first, so the work per tile
+ * doesn't depend on the size of the whole Polygon
+ */
+public final class CoverageTiles {
+    /**
+     * Tile of a Polygon that wasn't split
+     */
+    public static final long WHOLE = 0L;
+    /**
+     * Large Polygons are shuffled with chunks of this many of their tiles, so a Polygon isn't copied for each tile, and
+     * work is spread by the total number of tiles
+     */
+    public static final int TILES_PER_TASK = 16;
+
+    private static final double METERS_PER_DEGREE = 111_320.D;
+
+    private static H3Core h3 = null;
+
+    private CoverageTiles() {
+    }
+
+    private static void setupH3() {
+        try {
+            if (h3 == null) {
+                h3 = H3Core.newInstance();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return approximate number of cells of the level covering the Polygon
+     */
+    public static double estimateCells(Polygon polygon, int level) {
+        setupH3();
+
+        double cosLat = Math.cos(Math.toRadians(polygon.getEnvelopeInternal().centre().y));
+        double area = polygon.getArea() * METERS_PER_DEGREE * METERS_PER_DEGREE * cosLat;
+
+        return area / h3.hexArea(level, AreaUnit.m2);
+    }
+
+    /**
+     * Tiles of the tile level to split the Polygon into, if its coverage at the level is expected to have more cells
+     * than a single tile has descendants. Tiles are only enumerated here, which is cheap, so Polygons may be
+     * shuffled with their tiles before the costly clipping
+     *
+     * @return tiles that may have descendants inside the Polygon, or a single {@link #WHOLE}
+     */
+    public static long[] tiles(Polygon polygon, int level, int tileLevel) {
+        if ((tileLevel >= level) || (estimateCells(polygon, level) <= Math.pow(7.D, level - tileLevel))) {
+            return new long[]{WHOLE};
+        }
+
+        // every tile that has a descendant inside the Polygon either has its center inside too, or is next to a
+        // tile crossed by the boundary
+        Set<Long> candidates = new HashSet<>(polyfill(polygon, tileLevel));
+        double step = h3.edgeLength(tileLevel, LengthUnit.m) / 2.D / METERS_PER_DEGREE;
+        addRingTiles(polygon.getExteriorRing(), tileLevel, step, candidates);
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            addRingTiles(polygon.getInteriorRingN(i), tileLevel, step, candidates);
+        }
+        Set<Long> tiles = new HashSet<>();
+        for (Long tile : candidates) {
+            tiles.addAll(h3.kRing(tile, 1));
+        }
+
+        return tiles.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * @return tiles in chunks of up to {@link #TILES_PER_TASK}
+     */
+    public static List<long[]> chunks(long[] tiles) {
+        List<long[]> ret = new ArrayList<>();
+        for (int from = 0; from < tiles.length; from += TILES_PER_TASK) {
+            ret.add(Arrays.copyOfRange(tiles, from, Math.min(tiles.length, from + TILES_PER_TASK)));
+        }
+        return ret;
+    }
+
+    /**
+     * @param boundaries lookup of cell boundaries for tile neighbourhoods
+     * @return pairs of tile cell and the Polygon clipped to its neighbourhood (which may fall apart into several
+     * Polygons) for each tile that intersects the Polygon, or a single pair of {@link #WHOLE} and the Polygon itself
+     */
+    public static List<Tuple2<Long, Geometry>> clip(Polygon polygon, long[] tiles, GeometryFactory factory,
+                                                    CellBoundaryCache.Lookup boundaries) {
+        if ((tiles.length == 1) && (tiles[0] == WHOLE)) {
+            return Collections.singletonList(new Tuple2<>(WHOLE, (Geometry) polygon));
+        }
+
+        setupH3();
+
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(polygon);
+
+        List<Tuple2<Long, Geometry>> ret = new ArrayList<>();
+        for (long tile : tiles) {
+            List<Long> neighbourhood = h3.kRing(tile, 1);
+            Polygon[] hexes = new Polygon[neighbourhood.size()];
+            for (int i = 0; i < hexes.length; i++) {
+                hexes[i] = boundaries.get(neighbourhood.get(i)).toPolygon(factory);
+            }
+            Geometry region = factory.createMultiPolygon(hexes).union();
+
+            if (!prepared.intersects(region)) {
+                continue;
+            }
+
+            Geometry clip = polygon.intersection(region);
+            if (!clip.isEmpty()) {
+                clip.setUserData(polygon.getUserData());
+                ret.add(new Tuple2<>(tile, clip));
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return distinct cells of the level which centers are inside the clipped Polygon and which are descendants of
+     * the tile, optionally with all their immediate neighbours that are descendants of the tile too
+     */
+    public static long[] cells(long tile, Geometry clip, int level, boolean withNeighbours) {
+        setupH3();
+
+        Collection<Long> cells;
+        if ((clip instanceof Polygon) && !withNeighbours) {
+            cells = polyfill((Polygon) clip, level);
+        } else {
+            Set<Long> polyfill = new HashSet<>();
+            for (int n = 0; n < clip.getNumGeometries(); n++) {
+                Geometry piece = clip.getGeometryN(n);
+                if (piece instanceof Polygon) {
+                    polyfill.addAll(polyfill((Polygon) piece, level));
+                }
+            }
+
+            cells = polyfill;
+            if (withNeighbours) {
+                Set<Long> ring = new HashSet<>(polyfill);
+                for (Long cell : polyfill) {
+                    ring.addAll(h3.kRing(cell, 1));
+                }
+                cells = ring;
+            }
+        }
+
+        long[] ret = new long[cells.size()];
+        int size = 0;
+        if (tile == WHOLE) {
+            for (Long cell : cells) {
+                ret[size++] = cell;
+            }
+        } else {
+            int tileLevel = h3.h3GetResolution(tile);
+            for (Long cell : cells) {
+                if (h3.h3ToParent(cell, tileLevel) == tile) {
+                    ret[size++] = cell;
+                }
+            }
+        }
+
+        return (size == ret.length) ? ret : Arrays.copyOf(ret, size);
+    }
+
+    /**
+     * @return H3 cells of the level which centers are inside the Polygon
+     */
+    public static List<Long> polyfill(Polygon polygon, int level) {
+        setupH3();
+
+        List<List<GeoCoord>> holes = new ArrayList<>();
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            holes.add(toGeoCoords(polygon.getInteriorRingN(i)));
+        }
+
+        return h3.polyfill(toGeoCoords(polygon.getExteriorRing()), holes, level);
+    }
+
+    private static List<GeoCoord> toGeoCoords(LineString ring) {
+        List<GeoCoord> ret = new ArrayList<>();
+        for (Coordinate c : ring.getCoordinates()) {
+            ret.add(new GeoCoord(c.y, c.x));
+        }
+        return ret;
+    }
+
+    private static void addRingTiles(LineString ring, int tileLevel, double step, Set<Long> tiles) {
+        Coordinate[] coordinates = ring.getCoordinates();
+        for (int i = 1; i < coordinates.length; i++) {
+            Coordinate from = coordinates[i - 1];
+            Coordinate to = coordinates[i];
+
+            int steps = Math.max(1, (int) Math.ceil(from.distance(to) / step));
+            for (int s = 0; s < steps; s++) {
+                double f = (double) s / steps;
+                tiles.add(h3.geoToH3(from.y + (to.y - from.y) * f, from.x + (to.x - from.x) * f, tileLevel));
+            }
+        }
+    }
+}
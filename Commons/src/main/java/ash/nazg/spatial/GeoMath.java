@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import net.sf.geographiclib.Geodesic;
+import net.sf.geographiclib.GeodesicMask;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Distances on WGS84 ellipsoid, in meters, coordinates in degrees. The exact geodesic from GeographicLib is costly,
+ * so proximity tests go through a chain of cheaper steps: a bounding reject that never rejects a pair within the
+ * radius, then a local flat-earth kernel, and the exact geodesic only if the kernel can't tell for sure
+ */
+public final class GeoMath {
+    // equatorial radius, shared with other bounding tests of the package
+    static final double A = Geodesic.WGS84.EquatorialRadius();
+    private static final double E2 = Geodesic.WGS84.Flattening() * (2.D - Geodesic.WGS84.Flattening());
+
+    // shortest length of a degree of latitude, at the equator. Any path between two parallels is at least as long
+    // as the meridian arc between them
+    private static final double MIN_METERS_PER_DEGREE = 110_574.D;
+
+    /**
+     * Fast kernel is used only for distances up to this range, in meters
+     */
+    public static final double FAST_RANGE = 50_000.D;
+    /**
+     * ...and only if both points are no closer to a pole than this latitude
+     */
+    public static final double FAST_MAX_LATITUDE = 80.D;
+    /**
+     * Relative error of the fast kernel within its range never exceeds this value. Actual maximum is about 9e-5 at
+     * the far end of the range, under 4e-6 for distances up to 10 km, and under 4e-8 for distances up to 1 km
+     */
+    public static final double FAST_ERROR = 2.E-4;
+
+    private GeoMath() {
+    }
+
+    /**
+     * Conservative bounding test. It doesn't compute any distance, but never returns true if the points are within
+     * the radius from each other
+     *
+     * @return true if the points are surely farther than the radius from each other
+     */
+    public static boolean beyond(double lat1, double lon1, double lat2, double lon2, double radius) {
+        if (Math.abs(lat1 - lat2) * MIN_METERS_PER_DEGREE > radius) {
+            return true;
+        }
+
+        // chord between parallel circles is not shorter than 2 * min(parallel radius) * sin(dLon / 2), and parallel
+        // radius is not shorter than major radius * cos(lat)
+        double dLon = Math.abs(lon1 - lon2);
+        if (dLon > 180.D) {
+            dLon = 360.D - dLon;
+        }
+        double cosLat = Math.cos(Math.toRadians(Math.max(Math.abs(lat1), Math.abs(lat2))));
+
+        return 2.D * A * cosLat * Math.sin(Math.toRadians(dLon) / 2.D) > radius;
+    }
+
+    /**
+     * Local flat-earth approximation with meridional and prime vertical radii of curvature of the ellipsoid at the
+     * middle latitude. Relative error is within {@link #FAST_ERROR} inside {@link #FAST_RANGE} and
+     * {@link #FAST_MAX_LATITUDE}, and grows unbounded outside of them
+     */
+    public static double fastDistance(double lat1, double lon1, double lat2, double lon2) {
+        double dLon = lon2 - lon1;
+        if (dLon > 180.D) {
+            dLon -= 360.D;
+        } else if (dLon < -180.D) {
+            dLon += 360.D;
+        }
+
+        double midLat = Math.toRadians((lat1 + lat2) / 2.D);
+        double sinLat = Math.sin(midLat);
+        double w2 = 1.D - E2 * sinLat * sinLat;
+        double w = Math.sqrt(w2);
+
+        double n = A / w;
+        double m = n * (1.D - E2) / w2;
+
+        double dy = m * Math.toRadians(lat2 - lat1);
+        double dx = n * Math.cos(midLat) * Math.toRadians(dLon);
+
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Exact geodesic distance
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        return Geodesic.WGS84.Inverse(lat1, lon1, lat2, lon2, GeodesicMask.DISTANCE).s12;
+    }
+
+    /**
+     * Fast kernel distance if both points are inside its range, and exact geodesic if not. It is always within the
+     * {@link #FAST_ERROR} of the exact distance
+     */
+    public static double approximateDistance(double lat1, double lon1, double lat2, double lon2) {
+        if ((Math.abs(lat1) <= FAST_MAX_LATITUDE) && (Math.abs(lat2) <= FAST_MAX_LATITUDE)) {
+            double fast = fastDistance(lat1, lon1, lat2, lon2);
+
+            if (fast <= FAST_RANGE) {
+                return fast;
+            }
+        }
+
+        return distance(lat1, lon1, lat2, lon2);
+    }
+
+    /**
+     * Distance test for a pair of points. Exact geodesic is computed only if the points are too close to the radius
+     * boundary for the fast kernel to tell, or the kernel is out of its range
+     *
+     * @return distance between the points if they're within the radius, or NaN if not. Returned distance is either
+     * exact or within the {@link #FAST_ERROR} of it
+     */
+    public static double distanceWithin(double lat1, double lon1, double lat2, double lon2, double radius) {
+        if (beyond(lat1, lon1, lat2, lon2, radius)) {
+            return Double.NaN;
+        }
+
+        if ((Math.abs(lat1) <= FAST_MAX_LATITUDE) && (Math.abs(lat2) <= FAST_MAX_LATITUDE)) {
+            double fast = fastDistance(lat1, lon1, lat2, lon2);
+
+            if (fast <= FAST_RANGE) {
+                if (fast * (1.D + FAST_ERROR) <= radius) {
+                    return fast;
+                }
+                if (fast * (1.D - FAST_ERROR) > radius) {
+                    return Double.NaN;
+                }
+            }
+        }
+
+        double exact = distance(lat1, lon1, lat2, lon2);
+        return (exact <= radius) ? exact : Double.NaN;
+    }
+
+    /**
+     * Greater of the bound and the exact distance, to track the maximum distance without computing exact geodesic
+     * for points that obviously can't raise it
+     */
+    public static double distanceOver(double lat1, double lon1, double lat2, double lon2, double bound) {
+        if ((Math.abs(lat1) <= FAST_MAX_LATITUDE) && (Math.abs(lat2) <= FAST_MAX_LATITUDE)) {
+            double fast = fastDistance(lat1, lon1, lat2, lon2);
+
+            if ((fast <= FAST_RANGE) && (fast * (1.D + FAST_ERROR) <= bound)) {
+                return bound;
+            }
+        }
+
+        return Math.max(bound, distance(lat1, lon1, lat2, lon2));
+    }
+
+    /**
+     * @return geodesic distance from the center of an envelope to its corner
+     */
+    public static double radius(Envelope envelope) {
+        return distance((envelope.getMaxY() + envelope.getMinY()) / 2.D, (envelope.getMaxX() + envelope.getMinX()) / 2.D,
+                envelope.getMaxY(), envelope.getMaxX());
+    }
+}
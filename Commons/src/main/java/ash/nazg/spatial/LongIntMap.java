@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import java.io.Serializable;
+
+/**
+ * Open-addressing hash map from primitive long keys (usually H3 cells) to int values (usually positions in an array
+ * of per-cell data), with linear probing. Neither keys nor values are boxed, so indices of millions of cells cost
+ * two flat arrays and no per-entry objects
+ */
+public class LongIntMap implements Serializable {
+    /**
+     * Value returned by {@link #get(long)} for absent keys
+     */
+    public static final int MISSING = -1;
+
+    // H3 index 0 is never a valid cell, so it marks free slots. A key of 0 itself is kept aside
+    private static final long FREE = 0L;
+    private static final float LOAD_FACTOR = 0.5F;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+    private int mask;
+
+    private boolean hasFree = false;
+    private int freeValue = MISSING;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return value of the key, or {@link #MISSING}
+     */
+    public int get(long key) {
+        if (key == FREE) {
+            return hasFree ? freeValue : MISSING;
+        }
+
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == FREE) {
+                return MISSING;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != MISSING;
+    }
+
+    /**
+     * Associate the value with the key, replacing the previous one. Values must be non-negative
+     */
+    public void put(long key, int value) {
+        if (key == FREE) {
+            if (!hasFree) {
+                hasFree = true;
+                size++;
+            }
+            freeValue = value;
+            return;
+        }
+
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > keys.length * LOAD_FACTOR) {
+                    grow();
+                }
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return all keys, in no particular order
+     */
+    public long[] keys() {
+        long[] ret = new long[size];
+        int n = 0;
+        if (hasFree) {
+            ret[n++] = FREE;
+        }
+        for (long k : keys) {
+            if (k != FREE) {
+                ret[n++] = k;
+            }
+        }
+        return ret;
+    }
+
+    private int slot(long key) {
+        return (int) mix(key) & mask;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, which spreads bits of H3 cells that differ only in a few middle digits
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        keys = new long[oldKeys.length << 1];
+        values = new int[oldKeys.length << 1];
+        mask = keys.length - 1;
+
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != FREE) {
+                int i = slot(key);
+                while (keys[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import org.locationtech.jts.geom.Point;
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * POIs of a single H3 cell with their radii, sorted by latitude, so only a narrow band of them around a signal
+ * has to be checked for the distance
+ */
+public class PoiCell implements Serializable {
+    // shortest length of a degree of latitude, at the equator
+    private static final double MIN_METERS_PER_DEGREE = 110_574.D;
+
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] radius;
+    private final Point[] pois;
+    private final double maxRadiusDegrees;
+
+    public PoiCell(Iterable<Tuple2<Double, Point>> radiusPois) {
+        List<Tuple2<Double, Point>> sorted = new ArrayList<>();
+        radiusPois.forEach(sorted::add);
+        sorted.sort((a, b) -> Double.compare(a._2.getY(), b._2.getY()));
+
+        int size = sorted.size();
+        lat = new double[size];
+        lon = new double[size];
+        radius = new double[size];
+        pois = new Point[size];
+
+        double maxRadius = 0.D;
+        for (int i = 0; i < size; i++) {
+            Tuple2<Double, Point> poi = sorted.get(i);
+
+            lat[i] = poi._2.getY();
+            lon[i] = poi._2.getX();
+            radius[i] = poi._1;
+            pois[i] = poi._2;
+
+            maxRadius = Math.max(maxRadius, poi._1);
+        }
+
+        maxRadiusDegrees = maxRadius / MIN_METERS_PER_DEGREE;
+    }
+
+    /**
+     * @return index of the first POI that may be in reach of a signal at given latitude
+     */
+    public int from(double signalLat) {
+        return bound(signalLat - maxRadiusDegrees);
+    }
+
+    /**
+     * @return index past the last POI that may be in reach of a signal at given latitude
+     */
+    public int to(double signalLat) {
+        return bound(Math.nextUp(signalLat + maxRadiusDegrees));
+    }
+
+    private int bound(double value) {
+        int i = Arrays.binarySearch(lat, value);
+        if (i < 0) {
+            return -i - 1;
+        }
+
+        // step back over equal latitudes
+        while ((i > 0) && (lat[i - 1] == value)) {
+            i--;
+        }
+        return i;
+    }
+
+    public double getLat(int i) {
+        return lat[i];
+    }
+
+    public double getLon(int i) {
+        return lon[i];
+    }
+
+    public double getRadius(int i) {
+        return radius[i];
+    }
+
+    public Point getPoi(int i) {
+        return pois[i];
+    }
+
+    public int size() {
+        return pois.length;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.uber.h3core.H3Core;
+import com.uber.h3core.LengthUnit;
+import com.uber.h3core.util.GeoCoord;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Index of Polygons by H3 cells. Cells that lie entirely inside a Polygon are stored compacted, and a Point in
+ * any of them is inside that Polygon without any geometry test. Only Points in cells near Polygon boundary
+ * are tested against the prepared Polygon
+ */
+public class PolygonCellIndex implements Serializable {
+    // how many cells of the index resolution should fit into the envelope radius of a Polygon
+    private static final double CELLS_PER_RADIUS = 16.D;
+    private static final double METERS_PER_DEGREE = 111_320.D;
+
+    private static H3Core h3 = null;
+
+    private final List<Polygon> polygons = new ArrayList<>();
+    private final TreeMap<Integer, Level> levels = new TreeMap<>();
+
+    private transient PreparedGeometry[] prepared;
+
+    private static void setupH3() {
+        try {
+            if (h3 == null) {
+                h3 = H3Core.newInstance();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compute interior and boundary cells of a Polygon at the resolution suitable for its size
+     */
+    public static Cells cover(Polygon polygon) {
+        setupH3();
+
+        double radius = GeoMath.radius(polygon.getEnvelopeInternal());
+
+        int resolution = 0;
+        while ((resolution < 15) && (h3.edgeLength(resolution, LengthUnit.m) * CELLS_PER_RADIUS > radius)) {
+            resolution++;
+        }
+
+        List<GeoCoord> shell = toGeoCoords(polygon.getExteriorRing());
+        List<List<GeoCoord>> holes = new ArrayList<>();
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            holes.add(toGeoCoords(polygon.getInteriorRingN(i)));
+        }
+
+        // every cell crossed by the boundary is in the neighbourhood of one of its samples. Some of these cells may
+        // lie outside, but they cost only a prepared geometry test that fails
+        Set<Long> samples = new HashSet<>();
+        double step = h3.edgeLength(resolution, LengthUnit.m) / 2.D / METERS_PER_DEGREE;
+        addRingCells(polygon.getExteriorRing(), resolution, step, samples);
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            addRingCells(polygon.getInteriorRingN(i), resolution, step, samples);
+        }
+        Set<Long> boundary = new HashSet<>();
+        for (Long cell : samples) {
+            boundary.addAll(h3.kRing(cell, 1));
+        }
+
+        // polyfill takes cells by their centers, so the rest of them aren't crossed by the boundary and lie inside
+        List<Long> interior = new ArrayList<>();
+        for (Long cell : h3.polyfill(shell, holes, resolution)) {
+            if (!boundary.contains(cell)) {
+                interior.add(cell);
+            }
+        }
+
+        return new Cells(resolution,
+                h3.compact(interior).stream().mapToLong(Long::longValue).toArray(),
+                boundary.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    private static List<GeoCoord> toGeoCoords(LineString ring) {
+        List<GeoCoord> coords = new ArrayList<>();
+        for (Coordinate c : ring.getCoordinates()) {
+            coords.add(new GeoCoord(c.y, c.x));
+        }
+        return coords;
+    }
+
+    private static void addRingCells(LineString ring, int resolution, double step, Set<Long> cells) {
+        Coordinate[] coords = ring.getCoordinates();
+        for (int i = 0; i < coords.length; i++) {
+            Coordinate from = coords[i];
+            Coordinate to = coords[(i + 1) % coords.length];
+
+            int steps = Math.max(1, (int) Math.ceil(from.distance(to) / step));
+            for (int j = 0; j < steps; j++) {
+                double lat = from.y + (to.y - from.y) * j / steps;
+                double lon = from.x + (to.x - from.x) * j / steps;
+
+                cells.add(h3.geoToH3(lat, lon, resolution));
+            }
+        }
+    }
+
+    public void add(Polygon polygon, Cells cells) {
+        setupH3();
+
+        int id = polygons.size();
+        polygons.add(polygon);
+
+        Level level = levels.computeIfAbsent(cells.resolution, Level::new);
+        for (long cell : cells.interior) {
+            level.interior.computeIfAbsent(cell, k -> new ArrayList<>()).add(id);
+            level.minResolution = Math.min(level.minResolution, h3.h3GetResolution(cell));
+        }
+        for (long cell : cells.boundary) {
+            level.boundary.computeIfAbsent(cell, k -> new ArrayList<>()).add(id);
+        }
+
+        prepared = null;
+    }
+
+    /**
+     * @return all Polygons that contain the Point
+     */
+    public List<Polygon> covering(Point point) {
+        setupH3();
+
+        if (prepared == null) {
+            prepared = new PreparedGeometry[polygons.size()];
+        }
+
+        double lat = point.getY();
+        double lon = point.getX();
+
+        List<Polygon> result = new ArrayList<>();
+        for (Level level : levels.values()) {
+            long cell = h3.geoToH3(lat, lon, level.resolution);
+
+            List<Integer> ids = level.boundary.get(cell);
+            if (ids != null) {
+                for (int id : ids) {
+                    if (prepared[id] == null) {
+                        prepared[id] = PreparedGeometryFactory.prepare(polygons.get(id));
+                    }
+
+                    if (prepared[id].contains(point)) {
+                        result.add(polygons.get(id));
+                    }
+                }
+            }
+
+            for (int res = level.resolution; res >= level.minResolution; res--) {
+                ids = level.interior.get((res == level.resolution) ? cell : h3.h3ToParent(cell, res));
+                if (ids != null) {
+                    for (int id : ids) {
+                        result.add(polygons.get(id));
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public int size() {
+        return polygons.size();
+    }
+
+    public static class Cells implements Serializable {
+        public final int resolution;
+        public final long[] interior;
+        public final long[] boundary;
+
+        public Cells(int resolution, long[] interior, long[] boundary) {
+            this.resolution = resolution;
+            this.interior = interior;
+            this.boundary = boundary;
+        }
+    }
+
+    private static class Level implements Serializable {
+        private final int resolution;
+        private int minResolution;
+        private final HashMap<Long, List<Integer>> interior = new HashMap<>();
+        private final HashMap<Long, List<Integer>> boundary = new HashMap<>();
+
+        private Level(int resolution) {
+            this.resolution = resolution;
+            this.minResolution = resolution;
+        }
+    }
+}
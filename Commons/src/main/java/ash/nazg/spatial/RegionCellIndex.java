@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.uber.h3core.H3Core;
+import com.uber.h3core.LengthUnit;
+import com.uber.h3core.util.GeoCoord;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Index of a region of a spatial query by H3 cells at a single resolution, built once when the query is compiled.
+ * A location in any of inner cells is inside the region without exact test, a location in a cell that is neither
+ * inner nor edge is outside, and only locations in edge cells are tested exactly
+ */
+public abstract class RegionCellIndex implements Serializable {
+    // how many cells of the index resolution should fit into the radius of a region
+    private static final double CELLS_PER_RADIUS = 8.D;
+    // cell edges aren't straight lines between its vertices, so cells are classified with this margin of their size
+    private static final double MARGIN = 0.1D;
+    private static final double MIN_METERS_PER_DEGREE = 110_574.D;
+
+    private static H3Core h3 = null;
+
+    public final int resolution;
+    private long[] inner;
+    private long[] edge;
+
+    private static void setupH3() {
+        try {
+            if (h3 == null) {
+                h3 = H3Core.newInstance();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private RegionCellIndex(int resolution) {
+        this.resolution = resolution;
+    }
+
+    /**
+     * Region of all locations within the radius in meters from the center
+     */
+    public static RegionCellIndex within(double radius, double lat, double lon) {
+        if (!(radius >= 0.D)) {
+            throw new IllegalArgumentException("Radius must be a non-negative number of meters");
+        }
+        checkLatLon(lat, lon);
+
+        RegionCellIndex index = new Within(resolutionFor(radius), radius, lat, lon);
+        index.flood(lat, lon);
+        return index;
+    }
+
+    /**
+     * Region of all locations between south-western and north-eastern corners. If the western longitude is greater
+     * than the eastern, the box wraps around the antimeridian
+     */
+    public static RegionCellIndex box(double south, double west, double north, double east) {
+        checkLatLon(south, west);
+        checkLatLon(north, east);
+        if (south > north) {
+            throw new IllegalArgumentException("Southern latitude of a box can't be greater than northern");
+        }
+
+        double midLat = (south + north) / 2.D;
+        double width = (west <= east) ? (east - west) : (360.D + east - west);
+        double midLon = west + width / 2.D;
+        if (midLon > 180.D) {
+            midLon -= 360.D;
+        }
+
+        double radius = Math.max(GeoMath.distance(midLat, midLon, north, midLon),
+                Math.max(GeoMath.distance(north, midLon, north, west), GeoMath.distance(south, midLon, south, west)));
+
+        RegionCellIndex index = new Box(resolutionFor(radius), south, west, north, east);
+        index.flood(midLat, midLon);
+        return index;
+    }
+
+    /**
+     * Region of a single H3 cell, given by its address
+     */
+    public static RegionCellIndex cell(String address) {
+        setupH3();
+
+        if (!h3.h3IsValid(address)) {
+            throw new IllegalArgumentException("'" + address + "' isn't a valid H3 cell address");
+        }
+        long cell = h3.stringToH3(address);
+
+        RegionCellIndex index = new Cell(h3.h3GetResolution(cell));
+        index.inner = new long[]{cell};
+        index.edge = new long[0];
+        return index;
+    }
+
+    /**
+     * @return true if the location is inside the region
+     */
+    public boolean contains(long locationCell, double lat, double lon) {
+        if (Arrays.binarySearch(inner, locationCell) >= 0) {
+            return true;
+        }
+        if (Arrays.binarySearch(edge, locationCell) < 0) {
+            return false;
+        }
+
+        return containsExactly(lat, lon);
+    }
+
+    public int innerCells() {
+        return inner.length;
+    }
+
+    public int edgeCells() {
+        return edge.length;
+    }
+
+    protected abstract boolean containsExactly(double lat, double lon);
+
+    /**
+     * @return true if the whole cell is inside the region
+     */
+    protected abstract boolean isInner(List<GeoCoord> vertices, double margin);
+
+    /**
+     * @return true if the whole cell is outside of the region
+     */
+    protected abstract boolean isOuter(GeoCoord center, double circumradius);
+
+    private static int resolutionFor(double radius) {
+        setupH3();
+
+        int resolution = 0;
+        while ((resolution < 15) && (h3.edgeLength(resolution + 1, LengthUnit.m) * CELLS_PER_RADIUS >= radius)) {
+            resolution++;
+        }
+        return resolution;
+    }
+
+    private static void checkLatLon(double lat, double lon) {
+        if (!((lat >= -90.D) && (lat <= 90.D) && (lon >= -180.D) && (lon <= 180.D))) {
+            throw new IllegalArgumentException("Coordinates (" + lat + ", " + lon + ") are out of range");
+        }
+    }
+
+    /**
+     * Classify cells spreading from the one at the starting location, until every cell on the front is outside
+     */
+    private void flood(double lat, double lon) {
+        setupH3();
+
+        List<Long> innerCells = new ArrayList<>();
+        List<Long> edgeCells = new ArrayList<>();
+
+        Set<Long> visited = new HashSet<>();
+        Deque<Long> front = new ArrayDeque<>();
+        long start = h3.geoToH3(lat, lon, resolution);
+        visited.add(start);
+        front.add(start);
+
+        while (!front.isEmpty()) {
+            long cell = front.poll();
+
+            GeoCoord center = h3.h3ToGeo(cell);
+            List<GeoCoord> vertices = h3.h3ToGeoBoundary(cell);
+            double circumradius = 0.D;
+            for (GeoCoord v : vertices) {
+                circumradius = Math.max(circumradius, GeoMath.distance(center.lat, center.lng, v.lat, v.lng));
+            }
+
+            if ((cell != start) && isOuter(center, circumradius * (1.D + MARGIN))) {
+                continue;
+            }
+
+            if (isInner(vertices, circumradius * MARGIN)) {
+                innerCells.add(cell);
+            } else {
+                edgeCells.add(cell);
+            }
+
+            for (Long neighbour : h3.kRing(cell, 1)) {
+                if (visited.add(neighbour)) {
+                    front.add(neighbour);
+                }
+            }
+        }
+
+        inner = innerCells.stream().mapToLong(Long::longValue).sorted().toArray();
+        edge = edgeCells.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    private static class Within extends RegionCellIndex {
+        private final double radius;
+        private final double lat;
+        private final double lon;
+
+        private Within(int resolution, double radius, double lat, double lon) {
+            super(resolution);
+            this.radius = radius;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        protected boolean containsExactly(double lat, double lon) {
+            return !Double.isNaN(GeoMath.distanceWithin(this.lat, this.lon, lat, lon, radius));
+        }
+
+        @Override
+        protected boolean isInner(List<GeoCoord> vertices, double margin) {
+            for (GeoCoord v : vertices) {
+                if (GeoMath.distance(lat, lon, v.lat, v.lng) > radius - margin) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected boolean isOuter(GeoCoord center, double circumradius) {
+            return GeoMath.beyond(lat, lon, center.lat, center.lng, radius + circumradius);
+        }
+    }
+
+    private static class Box extends RegionCellIndex {
+        private final double south;
+        private final double west;
+        private final double north;
+        private final double east;
+
+        private Box(int resolution, double south, double west, double north, double east) {
+            super(resolution);
+            this.south = south;
+            this.west = west;
+            this.north = north;
+            this.east = east;
+        }
+
+        private boolean containsLon(double lon) {
+            return (west <= east) ? ((lon >= west) && (lon <= east)) : ((lon >= west) || (lon <= east));
+        }
+
+        @Override
+        protected boolean containsExactly(double lat, double lon) {
+            return (lat >= south) && (lat <= north) && containsLon(lon);
+        }
+
+        @Override
+        protected boolean isInner(List<GeoCoord> vertices, double margin) {
+            double latMargin = margin / MIN_METERS_PER_DEGREE;
+
+            for (GeoCoord v : vertices) {
+                double cosLat = Math.cos(Math.toRadians(Math.min(90.D, Math.abs(v.lat) + latMargin)));
+                double lonMargin = (cosLat > 0.D) ? Math.min(180.D, latMargin / cosLat) : 180.D;
+
+                if (!containsExactly(v.lat - latMargin, v.lng) || !containsExactly(v.lat + latMargin, v.lng)
+                        || !containsLon(wrap(v.lng - lonMargin)) || !containsLon(wrap(v.lng + lonMargin))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected boolean isOuter(GeoCoord center, double circumradius) {
+            // any location in the box is at least as far from the center by latitude...
+            double latGap = Math.max(0.D, Math.max(south - center.lat, center.lat - north));
+            if (latGap * MIN_METERS_PER_DEGREE > circumradius) {
+                return true;
+            }
+
+            // ...and by longitude, along the parallel closest to a pole
+            if (containsLon(center.lng)) {
+                return false;
+            }
+            double lonGap = Math.min(lonDistance(center.lng, west), lonDistance(center.lng, east));
+            double maxLat = Math.max(Math.abs(center.lat), Math.max(Math.abs(south), Math.abs(north)));
+            double chord = 2.D * GeoMath.A * Math.cos(Math.toRadians(maxLat)) * Math.sin(Math.toRadians(lonGap) / 2.D);
+
+            return chord > circumradius;
+        }
+
+        private static double lonDistance(double lon1, double lon2) {
+            double d = Math.abs(lon1 - lon2);
+            return (d > 180.D) ? (360.D - d) : d;
+        }
+
+        private static double wrap(double lon) {
+            return (lon > 180.D) ? (lon - 360.D) : ((lon < -180.D) ? (lon + 360.D) : lon);
+        }
+    }
+
+    private static class Cell extends RegionCellIndex {
+        private Cell(int resolution) {
+            super(resolution);
+        }
+
+        @Override
+        protected boolean containsExactly(double lat, double lon) {
+            return false;
+        }
+
+        @Override
+        protected boolean isInner(List<GeoCoord> vertices, double margin) {
+            return true;
+        }
+
+        @Override
+        protected boolean isOuter(GeoCoord center, double circumradius) {
+            return false;
+        }
+    }
+}
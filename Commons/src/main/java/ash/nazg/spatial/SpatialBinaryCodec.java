@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import org.apache.hadoop.io.*;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary record format of spatial objects, to pass them between tasks without any text formatting and parsing.
+ * <p>
+ * A record starts with its kind. A plain geometry (Point, Polygon, or anything else) is a length-prefixed WKB followed
+ * by its properties. A Track is its properties, the number of its segments, and for each segment its properties, its
+ * Points as a length-prefixed WKB MultiPoint, and properties of each Point in order.
+ * <p>
+ * Properties are a count followed by entries of a Text name, a type tag, and a value. Text, DoubleWritable,
+ * IntWritable, LongWritable and BooleanWritable values keep their types, and any other value is stored as Text of its
+ * string representation. Text values are length-prefixed, so properties not asked for are skipped undecoded.
+ * <p>
+ * Instances reuse their buffers and are not thread safe, so there should be one per partition
+ */
+public class SpatialBinaryCodec {
+    private static final byte KIND_GEOMETRY = 0;
+    private static final byte KIND_TRACK = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_TEXT = 1;
+    private static final byte TYPE_DOUBLE = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+
+    private final GeometryFactory geometryFactory;
+
+    private final WKBWriter wkbWriter = new WKBWriter();
+    private final WKBReader wkbReader;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final DataInputBuffer in = new DataInputBuffer();
+
+    public SpatialBinaryCodec(GeometryFactory geometryFactory) {
+        this.geometryFactory = geometryFactory;
+        this.wkbReader = new WKBReader(geometryFactory);
+    }
+
+    public byte[] encode(Geometry geometry) throws IOException {
+        buffer.reset();
+
+        if (geometry instanceof SegmentedTrack) {
+            out.writeByte(KIND_TRACK);
+            writeProperties(geometry.getUserData());
+
+            int segments = geometry.getNumGeometries();
+            WritableUtils.writeVInt(out, segments);
+            for (int s = 0; s < segments; s++) {
+                Geometry segment = geometry.getGeometryN(s);
+                writeProperties(segment.getUserData());
+
+                int points = segment.getNumGeometries();
+                Coordinate[] coordinates = new Coordinate[points];
+                for (int p = 0; p < points; p++) {
+                    coordinates[p] = segment.getGeometryN(p).getCoordinate();
+                }
+                writeWKB(geometryFactory.createMultiPointFromCoords(coordinates));
+
+                for (int p = 0; p < points; p++) {
+                    writeProperties(segment.getGeometryN(p).getUserData());
+                }
+            }
+        } else {
+            out.writeByte(KIND_GEOMETRY);
+            writeWKB(geometry);
+            writeProperties(geometry.getUserData());
+        }
+
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @param columns names of top-level properties to keep, or null to keep all of them. Properties of Track segments
+     *                and their Points are always kept
+     */
+    public Geometry decode(byte[] record, Set<Text> columns) throws IOException {
+        in.reset(record, record.length);
+
+        byte kind = in.readByte();
+        if (kind == KIND_TRACK) {
+            MapWritable trackProps = readProperties(columns);
+
+            TrackSegment[] segments = new TrackSegment[WritableUtils.readVInt(in)];
+            for (int s = 0; s < segments.length; s++) {
+                MapWritable segmentProps = readProperties(null);
+
+                Geometry multiPoint = readWKB();
+                Point[] points = new Point[multiPoint.getNumGeometries()];
+                for (int p = 0; p < points.length; p++) {
+                    points[p] = geometryFactory.createPoint(multiPoint.getGeometryN(p).getCoordinate());
+                    points[p].setUserData(readProperties(null));
+                }
+
+                segments[s] = new TrackSegment(points, geometryFactory);
+                segments[s].setUserData(segmentProps);
+            }
+
+            SegmentedTrack track = new SegmentedTrack(segments, geometryFactory);
+            track.setUserData(trackProps);
+            return track;
+        }
+        if (kind == KIND_GEOMETRY) {
+            Geometry geometry = readWKB();
+            geometry.setUserData(readProperties(columns));
+            return geometry;
+        }
+
+        throw new IOException("Unknown kind " + kind + " of a spatial record");
+    }
+
+    private void writeWKB(Geometry geometry) throws IOException {
+        byte[] wkb = wkbWriter.write(geometry);
+        WritableUtils.writeVInt(out, wkb.length);
+        out.write(wkb);
+    }
+
+    private Geometry readWKB() throws IOException {
+        byte[] wkb = new byte[WritableUtils.readVInt(in)];
+        in.readFully(wkb);
+
+        try {
+            return wkbReader.read(wkb);
+        } catch (ParseException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void writeProperties(Object userData) throws IOException {
+        if (!(userData instanceof MapWritable)) {
+            WritableUtils.writeVInt(out, 0);
+            return;
+        }
+
+        MapWritable properties = (MapWritable) userData;
+        WritableUtils.writeVInt(out, properties.size());
+        for (Map.Entry<Writable, Writable> e : properties.entrySet()) {
+            Text.writeString(out, String.valueOf(e.getKey()));
+
+            Writable value = e.getValue();
+            if ((value == null) || (value instanceof NullWritable)) {
+                out.writeByte(TYPE_NULL);
+            } else if (value instanceof Text) {
+                out.writeByte(TYPE_TEXT);
+                value.write(out);
+            } else if (value instanceof DoubleWritable) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble(((DoubleWritable) value).get());
+            } else if (value instanceof IntWritable) {
+                out.writeByte(TYPE_INT);
+                WritableUtils.writeVInt(out, ((IntWritable) value).get());
+            } else if (value instanceof LongWritable) {
+                out.writeByte(TYPE_LONG);
+                WritableUtils.writeVLong(out, ((LongWritable) value).get());
+            } else if (value instanceof BooleanWritable) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean(((BooleanWritable) value).get());
+            } else {
+                out.writeByte(TYPE_TEXT);
+                Text.writeString(out, String.valueOf(value));
+            }
+        }
+    }
+
+    private MapWritable readProperties(Set<Text> columns) throws IOException {
+        MapWritable properties = new MapWritable();
+
+        int count = WritableUtils.readVInt(in);
+        for (int i = 0; i < count; i++) {
+            Text name = new Text();
+            name.readFields(in);
+
+            byte type = in.readByte();
+            if ((columns == null) || columns.contains(name)) {
+                properties.put(name, readValue(type));
+            } else {
+                skipValue(type);
+            }
+        }
+
+        return properties;
+    }
+
+    private Writable readValue(byte type) throws IOException {
+        switch (type) {
+            case TYPE_NULL: {
+                return NullWritable.get();
+            }
+            case TYPE_TEXT: {
+                Text value = new Text();
+                value.readFields(in);
+                return value;
+            }
+            case TYPE_DOUBLE: {
+                return new DoubleWritable(in.readDouble());
+            }
+            case TYPE_INT: {
+                return new IntWritable(WritableUtils.readVInt(in));
+            }
+            case TYPE_LONG: {
+                return new LongWritable(WritableUtils.readVLong(in));
+            }
+            case TYPE_BOOLEAN: {
+                return new BooleanWritable(in.readBoolean());
+            }
+            default: {
+                throw new IOException("Unknown type " + type + " of a property in a spatial record");
+            }
+        }
+    }
+
+    private void skipValue(byte type) throws IOException {
+        switch (type) {
+            case TYPE_NULL: {
+                break;
+            }
+            case TYPE_TEXT: {
+                WritableUtils.skipFully(in, WritableUtils.readVInt(in));
+                break;
+            }
+            case TYPE_DOUBLE: {
+                WritableUtils.skipFully(in, 8);
+                break;
+            }
+            case TYPE_INT:
+            case TYPE_LONG: {
+                WritableUtils.readVLong(in);
+                break;
+            }
+            case TYPE_BOOLEAN: {
+                WritableUtils.skipFully(in, 1);
+                break;
+            }
+            default: {
+                throw new IOException("Unknown type " + type + " of a property in a spatial record");
+            }
+        }
+    }
+}
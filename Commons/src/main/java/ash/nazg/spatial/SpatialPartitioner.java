@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.uber.h3core.H3Core;
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import scala.Option;
+import scala.Tuple2;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Range partitioner of spatial RDDs by H3 cells of a fixed level. Each object goes to the partition of the cell of
+ * its centroid (or of the Point itself), and partitions are contiguous ranges of cells, cut to hold about the same
+ * number of sampled objects. Because H3 cells of the same level are ordered by their ancestors, nearby objects
+ * mostly end up in the same partition.
+ * <p>
+ * A spatial RDD partitioned by {@link #partition(JavaRDD)} keeps this partitioner through operations that don't move
+ * objects, and operations that see it (via {@link #of(JavaRDDLike)}) may use Points in place instead of keying and
+ * shuffling them again. They rely only on Points being in the partitions of their own cells, because centroids of
+ * other objects may change along the way
+ */
+public class SpatialPartitioner extends Partitioner {
+    private static H3Core h3 = null;
+
+    public final int level;
+    // first cell of each partition but the first one, sorted
+    private final long[] bounds;
+
+    private static void setupH3() {
+        try {
+            if (h3 == null) {
+                h3 = H3Core.newInstance();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public SpatialPartitioner(int level, long[] bounds) {
+        this.level = level;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Sample the RDD and cut the range of cells of the level into partitions with equal sample counts. A single
+     * cell is never split, so there may be less partitions than requested
+     */
+    public static SpatialPartitioner sample(JavaRDD<Geometry> rdd, int level, int partitions, double fraction) {
+        final int _level = level;
+
+        List<Tuple2<Long, Long>> counts = new ArrayList<>(rdd
+                .sample(false, fraction)
+                .mapToPair(g -> new Tuple2<>(getCell(g, _level), 1L))
+                .reduceByKey(Long::sum)
+                .collect());
+        counts.sort(Comparator.comparing(Tuple2::_1));
+
+        long total = 0L;
+        for (Tuple2<Long, Long> count : counts) {
+            total += count._2;
+        }
+
+        List<Long> bounds = new ArrayList<>();
+        long acc = 0L;
+        for (Tuple2<Long, Long> count : counts) {
+            if ((bounds.size() < partitions - 1) && (acc * partitions >= total * (bounds.size() + 1))) {
+                bounds.add(count._1);
+            }
+            acc += count._2;
+        }
+
+        return new SpatialPartitioner(level, bounds.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    /**
+     * @return spatial partitioner of the RDD, or null if it isn't spatially partitioned
+     */
+    public static SpatialPartitioner of(JavaRDDLike rdd) {
+        Option<Partitioner> partitioner = rdd.rdd().partitioner();
+
+        return (partitioner.isDefined() && (partitioner.get() instanceof SpatialPartitioner))
+                ? (SpatialPartitioner) partitioner.get() : null;
+    }
+
+    /**
+     * @return cell of the level of the centroid of the object
+     */
+    public static long getCell(Geometry g, int level) {
+        setupH3();
+
+        Point centroid = (g instanceof Point) ? (Point) g : g.getCentroid();
+        return h3.geoToH3(centroid.getY(), centroid.getX(), level);
+    }
+
+    /**
+     * Move each object of the RDD to its partition
+     */
+    public <T extends Geometry> JavaRDD<T> partition(JavaRDD<T> rdd) {
+        final int _level = level;
+
+        return rdd
+                .mapToPair(g -> new Tuple2<>(getCell(g, _level), g))
+                .partitionBy(this)
+                .mapPartitions(SpatialPartitioner::values, true);
+    }
+
+    private static <T> Iterator<T> values(Iterator<Tuple2<Long, T>> it) {
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return it.next()._2;
+            }
+        };
+    }
+
+    @Override
+    public int numPartitions() {
+        return bounds.length + 1;
+    }
+
+    /**
+     * @param key H3 cell of the level, or of a finer resolution to take its parent
+     */
+    @Override
+    public int getPartition(Object key) {
+        long cell = (Long) key;
+
+        setupH3();
+        if (h3.h3GetResolution(cell) > level) {
+            cell = h3.h3ToParent(cell, level);
+        }
+
+        int i = Arrays.binarySearch(bounds, cell);
+        return (i >= 0) ? (i + 1) : (-i - 1);
+    }
+
+    /**
+     * @return partition of a location
+     */
+    public int getPartition(double lat, double lon) {
+        setupH3();
+
+        return getPartition(h3.geoToH3(lat, lon, level));
+    }
+
+    /**
+     * Objects in a cell of a finer resolution may lie in cells of the level other than its parent, but always in
+     * the immediate neighbourhood of the parent
+     *
+     * @param cell H3 cell of the level or finer
+     * @return distinct partitions which may have objects located inside the cell
+     */
+    public int[] getPartitions(long cell) {
+        setupH3();
+
+        int resolution = h3.h3GetResolution(cell);
+        if (resolution < level) {
+            throw new IllegalArgumentException("Cell of the resolution " + resolution + " is coarser than the partitioning level " + level);
+        }
+        if (resolution == level) {
+            return new int[]{getPartition(cell)};
+        }
+
+        return h3.kRing(h3.h3ToParent(cell, level), 1).stream()
+                .mapToInt(this::getPartition)
+                .distinct()
+                .toArray();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof SpatialPartitioner) && (((SpatialPartitioner) other).level == level)
+                && Arrays.equals(((SpatialPartitioner) other).bounds, bounds);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * level + Arrays.hashCode(bounds);
+    }
+}
@@ -45,12 +45,28 @@ public class SpatialUtils implements Serializable {
         }
     }
 
+    public int getResolution() {
+        return resolution;
+    }
+
     public List<Long> getNeighbours(long h3index) {
         setupH3();
 
         return h3.kRing(h3index, recursion);
     }
 
+    /**
+     * @return cells around the given one, enough to cover a radius that is smaller than the one these utils were
+     * made for. Each ring of cells adds at least its edge length to the covered distance
+     */
+    public List<Long> getNeighbours(long h3index, double radius) {
+        setupH3();
+
+        int k = (int) Math.ceil(radius / h3.edgeLength(resolution, LengthUnit.m));
+
+        return h3.kRing(h3index, Math.max(1, Math.min(recursion, k)));
+    }
+
     public long getHash(double lat, double lon) {
         setupH3();
 
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+import static ash.nazg.spatial.config.ConfigurationParameters.GEN_TRACKID;
+import static ash.nazg.spatial.config.ConfigurationParameters.GEN_USERID;
+
+/**
+ * StAX parser of GPX tracks, which reads a document event by event and returns tracks one at a time, without
+ * building an object model of the whole document. Elements are matched by their local names, so a record may be
+ * either a complete GPX document or a bare &lt;trk&gt; element, and files with one track per line may be split into
+ * records by lines.
+ * <p>
+ * Tracks get the same properties as ever: {@link ash.nazg.spatial.config.ConfigurationParameters#GEN_USERID} is the
+ * track name (or a random UUID if there is none), segments are numbered by
+ * {@link ash.nazg.spatial.config.ConfigurationParameters#GEN_TRACKID}, and each point gets _ts from its time, or its
+ * position in the segment (counting skipped invalid points) if the time is absent or can't be parsed. Tracks without
+ * segments are skipped
+ */
+public class StreamingGPXReader implements Iterator<SegmentedTrack> {
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final XMLStreamReader reader;
+    private final GeometryFactory geometryFactory;
+
+    private final Text tsAttr = new Text("_ts");
+    private final Text useridAttr = new Text(GEN_USERID);
+    private final Text trackidAttr = new Text(GEN_TRACKID);
+
+    private SegmentedTrack next = null;
+    private boolean done = false;
+
+    public StreamingGPXReader(String gpx, GeometryFactory geometryFactory) {
+        try {
+            this.reader = XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(gpx));
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.geometryFactory = geometryFactory;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if ((next == null) && !done) {
+            try {
+                next = advance();
+            } catch (XMLStreamException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        return next != null;
+    }
+
+    @Override
+    public SegmentedTrack next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        SegmentedTrack ret = next;
+        next = null;
+        return ret;
+    }
+
+    private SegmentedTrack advance() throws XMLStreamException {
+        while (reader.hasNext()) {
+            if ((reader.next() == XMLStreamConstants.START_ELEMENT) && "trk".equals(reader.getLocalName())) {
+                SegmentedTrack track = readTrack();
+                if (track != null) {
+                    return track;
+                }
+            }
+        }
+
+        done = true;
+        reader.close();
+        return null;
+    }
+
+    private SegmentedTrack readTrack() throws XMLStreamException {
+        String name = null;
+        List<TrackSegment> segments = new ArrayList<>();
+
+        for (int depth = 1; depth > 0; ) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String element = reader.getLocalName();
+                if ((depth == 1) && "name".equals(element)) {
+                    name = reader.getElementText();
+                } else if ((depth == 1) && "trkseg".equals(element)) {
+                    segments.add(readSegment());
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        if (segments.isEmpty()) {
+            return null;
+        }
+
+        Text userid = new Text((name != null) ? name : UUID.randomUUID().toString());
+
+        TrackSegment[] ts = new TrackSegment[segments.size()];
+        for (int i = 0; i < ts.length; i++) {
+            TrackSegment seg = segments.get(i);
+
+            MapWritable props = new MapWritable();
+            props.put(trackidAttr, new Text(Integer.toString(i)));
+            props.put(useridAttr, userid);
+            seg.setUserData(props);
+
+            ts[i] = seg;
+        }
+
+        SegmentedTrack st = new SegmentedTrack(ts, geometryFactory);
+
+        MapWritable props = new MapWritable();
+        props.put(useridAttr, userid);
+        st.setUserData(props);
+
+        return st;
+    }
+
+    private TrackSegment readSegment() throws XMLStreamException {
+        List<Point> points = new ArrayList<>();
+
+        // position of trkpt in the segment, including skipped ones
+        int ordinal = 0;
+        for (int depth = 1; depth > 0; ) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if ((depth == 1) && "trkpt".equals(reader.getLocalName())) {
+                    Point point = readPoint(ordinal++);
+                    if (point != null) {
+                        points.add(point);
+                    }
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        return new TrackSegment(points.toArray(new Point[0]), geometryFactory);
+    }
+
+    /**
+     * @return point, or null if its coordinates are missing or invalid
+     */
+    private Point readPoint(int index) throws XMLStreamException {
+        double lat = parseCoordinate(reader.getAttributeValue(null, "lat"));
+        double lon = parseCoordinate(reader.getAttributeValue(null, "lon"));
+        double ts = index;
+
+        for (int depth = 1; depth > 0; ) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if ((depth == 1) && "time".equals(reader.getLocalName())) {
+                    try {
+                        ts = OffsetDateTime.parse(reader.getElementText().trim()).toEpochSecond();
+                    } catch (DateTimeParseException ignore) {
+                        // leave the index
+                    }
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            return null;
+        }
+
+        Point pt = geometryFactory.createPoint(new Coordinate(lon, lat));
+
+        MapWritable props = new MapWritable();
+        props.put(tsAttr, new DoubleWritable(ts));
+        pt.setUserData(props);
+
+        return pt;
+    }
+
+    private static double parseCoordinate(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonEOFException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.locationtech.jts.geom.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Pull parser of GeoJSON Features, which reads a document token by token and returns Features one at a time, so
+ * neither the whole FeatureCollection nor its object model is ever held in memory. Each returned Geometry carries
+ * the Feature's properties as a MapWritable of Text values, and properties not asked for are skipped unparsed.
+ * <p>
+ * A document may be a single Feature, a FeatureCollection, an array of Features, or any sequence of them. Lines of a
+ * FeatureCollection written with one Feature per line are accepted as well: separators and closing brackets of the
+ * collection around complete Features, and the end of a record inside the collection, are ignored, so such a file
+ * may be split into records by lines. Any other malformed text fails the parsing.
+ * <p>
+ * Text is pulled from a Reader in a single pass, and these artefacts are dropped on the way by a filter which tracks
+ * nesting of brackets outside of strings, so a record is never copied nor parsed again
+ */
+public class StreamingGeoJSONReader implements Iterator<Geometry> {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    private final JsonParser parser;
+    private final Collection<String> columns;
+    private final GeometryFactory geometryFactory;
+
+    // set while inside an array of Features, either at the top level or under a FeatureCollection
+    private boolean inFeatures = false;
+    private Geometry next = null;
+    private boolean done = false;
+
+    /**
+     * @param columns names of properties to keep, or empty to keep all of them
+     */
+    public StreamingGeoJSONReader(String json, Collection<String> columns, GeometryFactory geometryFactory) {
+        this(new StringReader(json), columns, geometryFactory);
+    }
+
+    /**
+     * @param source  text of the record, which is closed after its last Feature
+     * @param columns names of properties to keep, or empty to keep all of them
+     */
+    public StreamingGeoJSONReader(Reader source, Collection<String> columns, GeometryFactory geometryFactory) {
+        try {
+            this.parser = FACTORY.createParser(new StrayClosers(source));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.columns = columns.isEmpty() ? null : new HashSet<>(columns);
+        this.geometryFactory = geometryFactory;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if ((next == null) && !done) {
+            try {
+                next = advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return next != null;
+    }
+
+    @Override
+    public Geometry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Geometry ret = next;
+        next = null;
+        return ret;
+    }
+
+    private Geometry advance() throws IOException {
+        while (true) {
+            JsonToken token;
+            try {
+                token = parser.nextToken();
+            } catch (JsonEOFException e) {
+                // record ends inside the collection, after its last complete Feature
+                token = null;
+            }
+
+            if (token == null) {
+                done = true;
+                parser.close();
+                return null;
+            }
+
+            switch (token) {
+                case START_OBJECT: {
+                    Geometry feature = readObject(!inFeatures);
+                    if (feature != null) {
+                        return feature;
+                    }
+                    break;
+                }
+                case START_ARRAY: {
+                    if (inFeatures) {
+                        parser.skipChildren();
+                    } else {
+                        inFeatures = true;
+                    }
+                    break;
+                }
+                case END_ARRAY: {
+                    inFeatures = false;
+                    break;
+                }
+                case FIELD_NAME: {
+                    // remaining members of a FeatureCollection after its Features
+                    parser.nextToken();
+                    parser.skipChildren();
+                    break;
+                }
+                default:
+            }
+        }
+    }
+
+    /**
+     * Read an object which is either a Feature, or a FeatureCollection if it is allowed. Parsing stops at the start
+     * of Features of a collection, to continue with them one by one
+     *
+     * @return Feature geometry with properties, or null if the object is not a Feature or has no geometry
+     */
+    private Geometry readObject(boolean allowCollection) throws IOException {
+        String type = null;
+        Geometry geometry = null;
+        MapWritable properties = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+
+            switch (field) {
+                case "type": {
+                    type = parser.getValueAsString();
+                    break;
+                }
+                case "geometry": {
+                    geometry = (value == JsonToken.START_OBJECT) ? readGeometry() : null;
+                    break;
+                }
+                case "properties": {
+                    properties = (value == JsonToken.START_OBJECT) ? readProperties() : null;
+                    break;
+                }
+                case "features": {
+                    if (allowCollection && (value == JsonToken.START_ARRAY)) {
+                        inFeatures = true;
+                        return null;
+                    }
+                    parser.skipChildren();
+                    break;
+                }
+                default: {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        if (!"Feature".equals(type) || (geometry == null)) {
+            return null;
+        }
+
+        geometry.setUserData((properties != null) ? properties : new MapWritable());
+        return geometry;
+    }
+
+    private MapWritable readProperties() throws IOException {
+        MapWritable properties = new MapWritable();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+
+            if ((columns == null) || columns.contains(name)) {
+                properties.put(new Text(name), new Text(String.valueOf(MAPPER.readValue(parser, Object.class))));
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return properties;
+    }
+
+    private Geometry readGeometry() throws IOException {
+        String type = null;
+        Object coordinates = null;
+        List<Geometry> geometries = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+
+            switch (field) {
+                case "type": {
+                    type = parser.getValueAsString();
+                    break;
+                }
+                case "coordinates": {
+                    coordinates = (value == JsonToken.START_ARRAY) ? readCoordinates() : null;
+                    break;
+                }
+                case "geometries": {
+                    if (value == JsonToken.START_ARRAY) {
+                        geometries = new ArrayList<>();
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            Geometry g = readGeometry();
+                            if (g != null) {
+                                geometries.add(g);
+                            }
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        if ("GeometryCollection".equals(type)) {
+            return (geometries == null) ? null : geometryFactory.createGeometryCollection(geometries.toArray(new Geometry[0]));
+        }
+        if ((type == null) || (coordinates == null)) {
+            return null;
+        }
+
+        switch (type) {
+            case "Point": {
+                return (coordinates instanceof Coordinate) ? geometryFactory.createPoint((Coordinate) coordinates) : geometryFactory.createPoint();
+            }
+            case "MultiPoint": {
+                return geometryFactory.createMultiPointFromCoords(toCoordinates(coordinates));
+            }
+            case "LineString": {
+                return geometryFactory.createLineString(toCoordinates(coordinates));
+            }
+            case "MultiLineString": {
+                List<?> lines = (List<?>) coordinates;
+                LineString[] ret = new LineString[lines.size()];
+                for (int i = 0; i < ret.length; i++) {
+                    ret[i] = geometryFactory.createLineString(toCoordinates(lines.get(i)));
+                }
+                return geometryFactory.createMultiLineString(ret);
+            }
+            case "Polygon": {
+                return toPolygon(coordinates);
+            }
+            case "MultiPolygon": {
+                List<?> polygons = (List<?>) coordinates;
+                Polygon[] ret = new Polygon[polygons.size()];
+                for (int i = 0; i < ret.length; i++) {
+                    ret[i] = toPolygon(polygons.get(i));
+                }
+                return geometryFactory.createMultiPolygon(ret);
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Nested arrays of coordinates, with positions as Coordinates and arrays of anything else as Lists
+     */
+    private Object readCoordinates() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token.isNumeric()) {
+            double x = Double.NaN;
+            double y = Double.NaN;
+            double z = Coordinate.NULL_ORDINATE;
+            // measures and other extra ordinates are dropped
+            for (int n = 0; token != JsonToken.END_ARRAY; token = parser.nextToken(), n++) {
+                if (n == 0) {
+                    x = parser.getDoubleValue();
+                } else if (n == 1) {
+                    y = parser.getDoubleValue();
+                } else if (n == 2) {
+                    z = parser.getDoubleValue();
+                }
+            }
+            return new Coordinate(x, y, z);
+        }
+
+        List<Object> ret = new ArrayList<>();
+        for (; token == JsonToken.START_ARRAY; token = parser.nextToken()) {
+            ret.add(readCoordinates());
+        }
+        return ret;
+    }
+
+    private static Coordinate[] toCoordinates(Object positions) {
+        return ((List<?>) positions).toArray(new Coordinate[0]);
+    }
+
+    private Polygon toPolygon(Object rings) {
+        List<?> list = (List<?>) rings;
+        if (list.isEmpty()) {
+            return geometryFactory.createPolygon();
+        }
+
+        LinearRing shell = geometryFactory.createLinearRing(toCoordinates(list.get(0)));
+        LinearRing[] holes = new LinearRing[list.size() - 1];
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = geometryFactory.createLinearRing(toCoordinates(list.get(i + 1)));
+        }
+        return geometryFactory.createPolygon(shell, holes);
+    }
+
+    /**
+     * Drops separators and closing brackets which have no pair in the record, as they belong to a collection opened
+     * in the records before. Separators and brackets inside strings, and any other text, are passed as is
+     */
+    private static class StrayClosers extends FilterReader {
+        private int depth = 0;
+        private boolean inString = false;
+        private boolean escaped = false;
+
+        private StrayClosers(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            char[] c = new char[1];
+            return (read(c, 0, 1) < 0) ? -1 : c[0];
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            while (true) {
+                int read = in.read(cbuf, off, len);
+                if (read <= 0) {
+                    return read;
+                }
+
+                int kept = off;
+                for (int i = off; i < off + read; i++) {
+                    char c = cbuf[i];
+
+                    if (inString) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (c == '\\') {
+                            escaped = true;
+                        } else if (c == '"') {
+                            inString = false;
+                        }
+                    } else if (c == '"') {
+                        inString = true;
+                    } else if ((c == '{') || (c == '[')) {
+                        depth++;
+                    } else if ((c == '}') || (c == ']')) {
+                        if (depth == 0) {
+                            continue;
+                        }
+                        depth--;
+                    } else if ((c == ',') && (depth == 0)) {
+                        continue;
+                    }
+
+                    cbuf[kept++] = c;
+                }
+
+                // a Reader may not return nothing unless at the end
+                if (kept > off) {
+                    return kept - off;
+                }
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            char[] skipped = new char[(int) Math.min(n, 8192L)];
+            long ret = 0L;
+            while (ret < n) {
+                int read = read(skipped, 0, (int) Math.min(n - ret, skipped.length));
+                if (read < 0) {
+                    break;
+                }
+                ret += read;
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) throws IOException {
+            throw new IOException("mark() not supported");
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("reset() not supported");
+        }
+    }
+}
@@ -4,13 +4,39 @@
  */
 package ash.nazg.spatial;
 
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.locationtech.jts.geom.*;
 import org.locationtech.jts.operation.BoundaryOp;
 
-import java.util.Arrays;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
 
+/**
+ * A segment of a Track. Its Points may be stored packed into columns: primitive lat, lon and timestamp arrays, and
+ * typed per-point property columns. Point views of packed columns are created only when some JTS or Point-based
+ * code accesses them, and from then on the views hold the data. Column accessors work in both states
+ */
+@DefaultSerializer(TrackSegment.KryoSerializer.class)
 public class TrackSegment extends GeometryCollection implements Lineal, Iterable<Geometry> {
+    public static final Text TS_ATTR = new Text("_ts");
+
+    private static final Geometry[] NO_POINTS = new Geometry[0];
+
+    private Columns columns;
+
     public TrackSegment(Point[] geometries, GeometryFactory factory) {
         super(geometries, factory);
     }
@@ -19,6 +45,11 @@ public class TrackSegment extends GeometryCollection implements Lineal, Iterable
         super(geometries, factory);
     }
 
+    private TrackSegment(Columns columns, GeometryFactory factory) {
+        super(NO_POINTS, factory);
+        this.columns = columns;
+    }
+
     public int getDimension() {
         return 1;
     }
@@ -36,6 +67,8 @@ public class TrackSegment extends GeometryCollection implements Lineal, Iterable
     }
 
     public GeometryCollection reverse() {
+        unpack();
+
         int nLines = geometries.length;
         Point[] revPoints = new Point[nLines];
         for (int i = 0; i < geometries.length; i++) {
@@ -45,6 +78,12 @@ public class TrackSegment extends GeometryCollection implements Lineal, Iterable
     }
 
     protected TrackSegment copyInternal() {
+        if (columns != null) {
+            TrackSegment copy = new TrackSegment(columns.copy(), factory);
+            copy.setUserData(getUserData());
+            return copy;
+        }
+
         Point[] point = new Point[this.geometries.length];
         for (int i = 0; i < point.length; i++) {
             point[i] = (Point) this.geometries[i].copy();
@@ -56,15 +95,699 @@ public class TrackSegment extends GeometryCollection implements Lineal, Iterable
         if (!isEquivalentClass(other)) {
             return false;
         }
+        unpack();
+        if (other instanceof TrackSegment) {
+            ((TrackSegment) other).unpack();
+        }
         return super.equalsExact(other, tolerance);
     }
 
     @Override
     public Iterator<Geometry> iterator() {
+        unpack();
         return Arrays.stream(geometries).iterator();
     }
 
     public Geometry[] geometries() {
+        unpack();
         return geometries;
     }
+
+    @Override
+    public boolean isEmpty() {
+        return (columns != null) ? (columns.size == 0) : super.isEmpty();
+    }
+
+    @Override
+    public int getNumGeometries() {
+        return (columns != null) ? columns.size : super.getNumGeometries();
+    }
+
+    @Override
+    public int getNumPoints() {
+        return (columns != null) ? columns.size : super.getNumPoints();
+    }
+
+    @Override
+    public Geometry getGeometryN(int n) {
+        unpack();
+        return super.getGeometryN(n);
+    }
+
+    @Override
+    public Coordinate getCoordinate() {
+        unpack();
+        return super.getCoordinate();
+    }
+
+    @Override
+    public Coordinate[] getCoordinates() {
+        unpack();
+        return super.getCoordinates();
+    }
+
+    @Override
+    public void apply(CoordinateFilter filter) {
+        unpack();
+        super.apply(filter);
+    }
+
+    @Override
+    public void apply(CoordinateSequenceFilter filter) {
+        unpack();
+        super.apply(filter);
+    }
+
+    @Override
+    public void apply(GeometryFilter filter) {
+        unpack();
+        super.apply(filter);
+    }
+
+    @Override
+    public void apply(GeometryComponentFilter filter) {
+        unpack();
+        super.apply(filter);
+    }
+
+    @Override
+    public void normalize() {
+        unpack();
+        super.normalize();
+    }
+
+    @Override
+    protected Envelope computeEnvelopeInternal() {
+        if (columns == null) {
+            return super.computeEnvelopeInternal();
+        }
+
+        Envelope envelope = new Envelope();
+        for (int i = 0; i < columns.size; i++) {
+            envelope.expandToInclude(columns.lon[i], columns.lat[i]);
+        }
+        return envelope;
+    }
+
+    @Override
+    protected int compareToSameClass(Object o) {
+        unpack();
+        ((TrackSegment) o).unpack();
+        return super.compareToSameClass(o);
+    }
+
+    @Override
+    protected int compareToSameClass(Object o, CoordinateSequenceComparator comp) {
+        unpack();
+        ((TrackSegment) o).unpack();
+        return super.compareToSameClass(o, comp);
+    }
+
+    /**
+     * @return number of Points in this segment, without creating their views
+     */
+    public int size() {
+        return (columns != null) ? columns.size : geometries.length;
+    }
+
+    public double getLat(int i) {
+        return (columns != null) ? columns.lat[i] : ((Point) geometries[i]).getY();
+    }
+
+    public double getLon(int i) {
+        return (columns != null) ? columns.lon[i] : ((Point) geometries[i]).getX();
+    }
+
+    public double getTs(int i) {
+        if (columns != null) {
+            return columns.ts[i];
+        }
+
+        return number(((MapWritable) geometries[i].getUserData()).get(TS_ATTR));
+    }
+
+    /**
+     * @return property of i-th Point as a String, or null if it has none, without creating Point views
+     */
+    public String getString(int i, Text name) {
+        if (columns == null) {
+            MapWritable props = (MapWritable) geometries[i].getUserData();
+            Writable value = (props != null) ? props.get(name) : null;
+            return (value != null) ? value.toString() : null;
+        }
+
+        Text[] text = columns.text.get(name);
+        if (text != null) {
+            return (text[i] != null) ? text[i].toString() : null;
+        }
+        double[] numeric = columns.numeric.get(name);
+        if (numeric != null) {
+            if (Double.isNaN(numeric[i])) {
+                return null;
+            }
+            return columns.integral.contains(name) ? String.valueOf((long) numeric[i]) : String.valueOf(numeric[i]);
+        }
+        Writable[] other = columns.other.get(name);
+        if (other != null) {
+            return (other[i] != null) ? other[i].toString() : null;
+        }
+        if (TS_ATTR.equals(name)) {
+            return Double.isNaN(columns.ts[i]) ? null : String.valueOf(columns.ts[i]);
+        }
+        return null;
+    }
+
+    /**
+     * @return property of i-th Point as a number, or NaN if it has none, without creating Point views
+     */
+    public double getNumber(int i, Text name) {
+        if (columns == null) {
+            MapWritable props = (MapWritable) geometries[i].getUserData();
+            return (props != null) ? number(props.get(name)) : Double.NaN;
+        }
+
+        if (TS_ATTR.equals(name)) {
+            return columns.ts[i];
+        }
+        double[] numeric = columns.numeric.get(name);
+        if (numeric != null) {
+            return numeric[i];
+        }
+        Text[] text = columns.text.get(name);
+        if (text != null) {
+            return (text[i] != null) ? Double.parseDouble(text[i].toString()) : Double.NaN;
+        }
+        Writable[] other = columns.other.get(name);
+        if (other != null) {
+            return number(other[i]);
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @return new TrackSegment of the Points with given indices, in the same state as this one. Its properties
+     * are not set
+     */
+    public TrackSegment subset(int[] indices, int count) {
+        if (columns == null) {
+            Geometry[] points = new Geometry[count];
+            for (int i = 0; i < count; i++) {
+                points[i] = geometries[indices[i]];
+            }
+            return new TrackSegment(points, factory);
+        }
+
+        Columns subset = new Columns();
+        subset.size = count;
+        subset.lat = new double[count];
+        subset.lon = new double[count];
+        subset.ts = new double[count];
+        for (int i = 0; i < count; i++) {
+            subset.lat[i] = columns.lat[indices[i]];
+            subset.lon[i] = columns.lon[indices[i]];
+            subset.ts[i] = columns.ts[indices[i]];
+        }
+        columns.numeric.forEach((name, values) -> {
+            double[] sub = new double[count];
+            for (int i = 0; i < count; i++) {
+                sub[i] = values[indices[i]];
+            }
+            subset.numeric.put(name, sub);
+        });
+        subset.integral.addAll(columns.integral);
+        columns.text.forEach((name, values) -> {
+            Text[] sub = new Text[count];
+            for (int i = 0; i < count; i++) {
+                sub[i] = values[indices[i]];
+            }
+            subset.text.put(name, sub);
+        });
+        columns.other.forEach((name, values) -> {
+            Writable[] sub = new Writable[count];
+            for (int i = 0; i < count; i++) {
+                sub[i] = values[indices[i]];
+            }
+            subset.other.put(name, sub);
+        });
+
+        return new TrackSegment(subset, factory);
+    }
+
+    /**
+     * Pack Point views back into columns, if there are any, and return packed latitudes. Arrays returned by
+     * column accessors are live, and remain so until the Point views are created again
+     */
+    public double[] lats() {
+        pack();
+        return columns.lat;
+    }
+
+    public double[] lons() {
+        pack();
+        return columns.lon;
+    }
+
+    public double[] timestamps() {
+        pack();
+        return columns.ts;
+    }
+
+    /**
+     * @return numeric per-point property column, or null if there is none with such name
+     */
+    public double[] getNumeric(Text name) {
+        pack();
+        return columns.numeric.get(name);
+    }
+
+    /**
+     * Set or replace a numeric per-point property column, which Point views present as DoubleWritable
+     */
+    public void setNumeric(Text name, double[] values) {
+        pack();
+        if (values.length != columns.size) {
+            throw new IllegalArgumentException("Column " + name + " must have " + columns.size + " values");
+        }
+        columns.text.remove(name);
+        columns.other.remove(name);
+        columns.integral.remove(name);
+        columns.numeric.put(name, values);
+    }
+
+    /**
+     * Set or replace a numeric per-point property column of whole numbers, which Point views present as LongWritable,
+     * so they are formatted without a fractional part. Fractional parts of values are dropped there
+     */
+    public void setIntegral(Text name, double[] values) {
+        setNumeric(name, values);
+        columns.integral.add(name);
+    }
+
+    /**
+     * @return textual per-point property column, or null if there is none with such name
+     */
+    public Text[] getText(Text name) {
+        pack();
+        return columns.text.get(name);
+    }
+
+    public void setText(Text name, Text[] values) {
+        pack();
+        if (values.length != columns.size) {
+            throw new IllegalArgumentException("Column " + name + " must have " + columns.size + " values");
+        }
+        columns.numeric.remove(name);
+        columns.other.remove(name);
+        columns.integral.remove(name);
+        columns.text.put(name, values);
+    }
+
+    public boolean isPacked() {
+        return columns != null;
+    }
+
+    private void unpack() {
+        if (columns == null) {
+            return;
+        }
+
+        Point[] points = new Point[columns.size];
+        for (int i = 0; i < columns.size; i++) {
+            Point point = factory.createPoint(new Coordinate(columns.lon[i], columns.lat[i]));
+
+            MapWritable props = new MapWritable();
+            if (!Double.isNaN(columns.ts[i])) {
+                props.put(TS_ATTR, new DoubleWritable(columns.ts[i]));
+            }
+            for (Map.Entry<Text, Text[]> column : columns.text.entrySet()) {
+                Text value = column.getValue()[i];
+                if (value != null) {
+                    props.put(column.getKey(), value);
+                }
+            }
+            for (Map.Entry<Text, double[]> column : columns.numeric.entrySet()) {
+                double value = column.getValue()[i];
+                if (!Double.isNaN(value)) {
+                    props.put(column.getKey(), columns.integral.contains(column.getKey()) ? new LongWritable((long) value) : new DoubleWritable(value));
+                }
+            }
+            for (Map.Entry<Text, Writable[]> column : columns.other.entrySet()) {
+                Writable value = column.getValue()[i];
+                if (value != null) {
+                    props.put(column.getKey(), value);
+                }
+            }
+            point.setUserData(props);
+
+            points[i] = point;
+        }
+
+        geometries = points;
+        columns = null;
+    }
+
+    private void pack() {
+        if (columns == null) {
+            columns = Columns.of(geometries);
+            geometries = NO_POINTS;
+        }
+    }
+
+    private static double number(Writable value) {
+        if (value instanceof DoubleWritable) {
+            return ((DoubleWritable) value).get();
+        }
+        if (value instanceof LongWritable) {
+            return ((LongWritable) value).get();
+        }
+        return (value != null) ? Double.parseDouble(value.toString()) : Double.NaN;
+    }
+
+    /**
+     * Each property column keeps the Writable type of its values. A property that is Text, DoubleWritable or
+     * LongWritable in every Point that has it goes into a text or numeric column, and a property of any other or mixed
+     * types is kept as is. _ts is always in its own column, and if it isn't DoubleWritable, its values are kept too
+     */
+    private static class Columns implements Serializable {
+        private int size;
+        private double[] lat;
+        private double[] lon;
+        private double[] ts;
+        private transient LinkedHashMap<Text, double[]> numeric = new LinkedHashMap<>();
+        private transient LinkedHashMap<Text, Text[]> text = new LinkedHashMap<>();
+        // numeric columns of whole numbers
+        private transient Set<Text> integral = new HashSet<>();
+        private transient LinkedHashMap<Text, Writable[]> other = new LinkedHashMap<>();
+
+        private static Columns of(Geometry[] points) {
+            Columns columns = new Columns();
+
+            int size = points.length;
+            columns.size = size;
+            columns.lat = new double[size];
+            columns.lon = new double[size];
+            columns.ts = new double[size];
+
+            // Writable is the type of properties that have values of different types
+            Map<Text, Class<?>> types = new HashMap<>();
+            for (Geometry point : points) {
+                MapWritable props = (MapWritable) point.getUserData();
+                if (props != null) {
+                    for (Map.Entry<Writable, Writable> prop : props.entrySet()) {
+                        if (prop.getValue() != null) {
+                            types.merge((Text) prop.getKey(), prop.getValue().getClass(), (a, b) -> (a == b) ? a : Writable.class);
+                        }
+                    }
+                }
+            }
+            if (types.get(TS_ATTR) == DoubleWritable.class) {
+                types.remove(TS_ATTR);
+            }
+
+            for (int i = 0; i < size; i++) {
+                Point point = (Point) points[i];
+                columns.lat[i] = point.getY();
+                columns.lon[i] = point.getX();
+
+                MapWritable props = (MapWritable) point.getUserData();
+                if (props == null) {
+                    columns.ts[i] = Double.NaN;
+                    continue;
+                }
+
+                columns.ts[i] = number(props.get(TS_ATTR));
+                for (Map.Entry<Writable, Writable> prop : props.entrySet()) {
+                    Text key = (Text) prop.getKey();
+                    Class<?> type = types.get(key);
+                    if ((type == null) || (prop.getValue() == null)) {
+                        continue;
+                    }
+
+                    if (type == Text.class) {
+                        columns.text.computeIfAbsent(key, k -> new Text[size])[i] = (Text) prop.getValue();
+                    } else if ((type == DoubleWritable.class) || (type == LongWritable.class)) {
+                        columns.numeric.computeIfAbsent(key, k -> {
+                            double[] values = new double[size];
+                            Arrays.fill(values, Double.NaN);
+                            return values;
+                        })[i] = number(prop.getValue());
+                    } else {
+                        columns.other.computeIfAbsent(key, k -> new Writable[size])[i] = prop.getValue();
+                    }
+                }
+            }
+
+            for (Text key : columns.numeric.keySet()) {
+                if (types.get(key) == LongWritable.class) {
+                    columns.integral.add(key);
+                }
+            }
+
+            return columns;
+        }
+
+        private Columns copy() {
+            Columns copy = new Columns();
+            copy.size = size;
+            copy.lat = lat.clone();
+            copy.lon = lon.clone();
+            copy.ts = ts.clone();
+            numeric.forEach((k, v) -> copy.numeric.put(k, v.clone()));
+            copy.integral.addAll(integral);
+            text.forEach((k, v) -> copy.text.put(k, v.clone()));
+            other.forEach((k, v) -> copy.other.put(k, v.clone()));
+            return copy;
+        }
+
+        // property names and values are Writables, which Java serialization can't handle by itself
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+
+            out.writeInt(numeric.size());
+            for (Map.Entry<Text, double[]> column : numeric.entrySet()) {
+                column.getKey().write(out);
+                out.writeBoolean(integral.contains(column.getKey()));
+                out.writeObject(column.getValue());
+            }
+
+            out.writeInt(text.size());
+            for (Map.Entry<Text, Text[]> column : text.entrySet()) {
+                column.getKey().write(out);
+                for (Text value : column.getValue()) {
+                    out.writeBoolean(value != null);
+                    if (value != null) {
+                        value.write(out);
+                    }
+                }
+            }
+
+            out.writeInt(other.size());
+            for (Map.Entry<Text, Writable[]> column : other.entrySet()) {
+                column.getKey().write(out);
+                for (Writable value : column.getValue()) {
+                    out.writeBoolean(value != null);
+                    if (value != null) {
+                        out.writeUTF(value.getClass().getName());
+                        value.write(out);
+                    }
+                }
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+
+            numeric = new LinkedHashMap<>();
+            text = new LinkedHashMap<>();
+            integral = new HashSet<>();
+            other = new LinkedHashMap<>();
+
+            int columns = in.readInt();
+            for (int c = 0; c < columns; c++) {
+                Text name = new Text();
+                name.readFields(in);
+                if (in.readBoolean()) {
+                    integral.add(name);
+                }
+                numeric.put(name, (double[]) in.readObject());
+            }
+
+            columns = in.readInt();
+            for (int c = 0; c < columns; c++) {
+                Text name = new Text();
+                name.readFields(in);
+                Text[] values = new Text[size];
+                for (int i = 0; i < size; i++) {
+                    if (in.readBoolean()) {
+                        values[i] = new Text();
+                        values[i].readFields(in);
+                    }
+                }
+                text.put(name, values);
+            }
+
+            columns = in.readInt();
+            for (int c = 0; c < columns; c++) {
+                Text name = new Text();
+                name.readFields(in);
+                Writable[] values = new Writable[size];
+                for (int i = 0; i < size; i++) {
+                    if (in.readBoolean()) {
+                        values[i] = (Writable) ReflectionUtils.newInstance(Class.forName(in.readUTF()), null);
+                        values[i].readFields(in);
+                    }
+                }
+                other.put(name, values);
+            }
+        }
+    }
+
+    /**
+     * Accumulates Points of a segment straight into columns
+     */
+    public static class Builder {
+        private final Text[] textNames;
+
+        private int size = 0;
+        private double[] lat = new double[16];
+        private double[] lon = new double[16];
+        private double[] ts = new double[16];
+        private Text[][] text;
+
+        public Builder(Text[] textNames) {
+            this.textNames = textNames;
+            this.text = new Text[textNames.length][16];
+        }
+
+        public Builder add(double lat, double lon, double ts, Text[] values) {
+            if (size == this.lat.length) {
+                int capacity = size * 2;
+                this.lat = Arrays.copyOf(this.lat, capacity);
+                this.lon = Arrays.copyOf(this.lon, capacity);
+                this.ts = Arrays.copyOf(this.ts, capacity);
+                for (int c = 0; c < text.length; c++) {
+                    text[c] = Arrays.copyOf(text[c], capacity);
+                }
+            }
+
+            this.lat[size] = lat;
+            this.lon[size] = lon;
+            this.ts[size] = ts;
+            for (int c = 0; c < text.length; c++) {
+                text[c][size] = values[c];
+            }
+            size++;
+
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public TrackSegment build(GeometryFactory factory) {
+            Columns columns = new Columns();
+            columns.size = size;
+            columns.lat = Arrays.copyOf(lat, size);
+            columns.lon = Arrays.copyOf(lon, size);
+            columns.ts = Arrays.copyOf(ts, size);
+            for (int c = 0; c < textNames.length; c++) {
+                columns.text.put(textNames[c], Arrays.copyOf(text[c], size));
+            }
+
+            return new TrackSegment(columns, factory);
+        }
+    }
+
+    /**
+     * Writes packed columns as is, instead of a graph of Point objects with their properties
+     */
+    public static class KryoSerializer extends Serializer<TrackSegment> {
+        @Override
+        public void write(Kryo kryo, Output output, TrackSegment segment) {
+            Columns columns = (segment.columns != null) ? segment.columns : Columns.of(segment.geometries);
+
+            kryo.writeClassAndObject(output, segment.getFactory());
+            output.writeInt(segment.getSRID(), true);
+            kryo.writeClassAndObject(output, segment.getUserData());
+
+            int size = columns.size;
+            output.writeInt(size, true);
+            output.writeDoubles(columns.lat);
+            output.writeDoubles(columns.lon);
+            output.writeDoubles(columns.ts);
+
+            output.writeInt(columns.numeric.size(), true);
+            for (Map.Entry<Text, double[]> column : columns.numeric.entrySet()) {
+                output.writeString(column.getKey().toString());
+                output.writeBoolean(columns.integral.contains(column.getKey()));
+                output.writeDoubles(column.getValue());
+            }
+
+            output.writeInt(columns.text.size(), true);
+            for (Map.Entry<Text, Text[]> column : columns.text.entrySet()) {
+                output.writeString(column.getKey().toString());
+                for (Text value : column.getValue()) {
+                    output.writeString((value != null) ? value.toString() : null);
+                }
+            }
+
+            output.writeInt(columns.other.size(), true);
+            for (Map.Entry<Text, Writable[]> column : columns.other.entrySet()) {
+                output.writeString(column.getKey().toString());
+                for (Writable value : column.getValue()) {
+                    kryo.writeClassAndObject(output, value);
+                }
+            }
+        }
+
+        @Override
+        public TrackSegment read(Kryo kryo, Input input, Class<TrackSegment> type) {
+            GeometryFactory factory = (GeometryFactory) kryo.readClassAndObject(input);
+            int srid = input.readInt(true);
+            Object userData = kryo.readClassAndObject(input);
+
+            Columns columns = new Columns();
+            int size = input.readInt(true);
+            columns.size = size;
+            columns.lat = input.readDoubles(size);
+            columns.lon = input.readDoubles(size);
+            columns.ts = input.readDoubles(size);
+
+            int numeric = input.readInt(true);
+            for (int c = 0; c < numeric; c++) {
+                Text name = new Text(input.readString());
+                if (input.readBoolean()) {
+                    columns.integral.add(name);
+                }
+                columns.numeric.put(name, input.readDoubles(size));
+            }
+
+            int text = input.readInt(true);
+            for (int c = 0; c < text; c++) {
+                Text name = new Text(input.readString());
+                Text[] values = new Text[size];
+                for (int i = 0; i < size; i++) {
+                    String value = input.readString();
+                    values[i] = (value != null) ? new Text(value) : null;
+                }
+                columns.text.put(name, values);
+            }
+
+            int other = input.readInt(true);
+            for (int c = 0; c < other; c++) {
+                Text name = new Text(input.readString());
+                Writable[] values = new Writable[size];
+                for (int i = 0; i < size; i++) {
+                    values[i] = (Writable) kryo.readClassAndObject(input);
+                }
+                columns.other.put(name, values);
+            }
+
+            TrackSegment segment = new TrackSegment(columns, factory);
+            segment.setSRID(srid);
+            segment.setUserData(userData);
+            return segment;
+        }
+    }
 }
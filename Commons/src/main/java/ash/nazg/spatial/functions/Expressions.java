@@ -4,134 +4,138 @@
  */
 package ash.nazg.spatial.functions;
 
-import org.apache.hadoop.io.MapWritable;
+import ash.nazg.spatial.RegionCellIndex;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.Writable;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.Objects;
 import java.util.regex.Pattern;
 
+/**
+ * Factories of compiled query predicates. Each atomic predicate has its property key and literal (or regex)
+ * resolved once, at query compilation time, and logic operators are composed directly from their operands. Spatial
+ * predicates have their regions indexed by H3 cells at compilation time as well
+ */
 public final class Expressions {
-    public static StringExpr stringRegex(int regexFlags, final String rv) {
+    public static QueryPredicate stringRegex(String prop, int regexFlags, final String rv) {
+        final PropKey key = new PropKey(prop);
         final Pattern p = Pattern.compile(rv, regexFlags);
 
-        return (r) -> (r != null) && p.matcher(r).matches();
+        return (props) -> {
+            String r = props.getString(key);
+            return (r != null) && p.matcher(r).matches();
+        };
     }
 
-    public static NumericExpr numericGreater(final double rv) {
-        return (r) -> (r != null) && (r > rv);
-    }
+    public static QueryPredicate numericGreater(String prop, final double rv) {
+        final PropKey key = new PropKey(prop);
 
-    public static NumericExpr numericGreaterEq(final double rv) {
-        return (r) -> (r != null) && (r >= rv);
+        return (props) -> props.getNumber(key) > rv;
     }
 
-    public static NumericExpr numericLess(final double rv) {
-        return (r) -> (r != null) && (r < rv);
-    }
+    public static QueryPredicate numericGreaterEq(String prop, final double rv) {
+        final PropKey key = new PropKey(prop);
 
-    public static NumericExpr numericLessEq(final double rv) {
-        return (r) -> (r != null) && (r >= rv);
+        return (props) -> props.getNumber(key) >= rv;
     }
 
-    public static NumericExpr numericEqual(final double rv) {
-        return (r) -> (r != null) && (r == rv);
-    }
+    public static QueryPredicate numericLess(String prop, final double rv) {
+        final PropKey key = new PropKey(prop);
 
-    public static NumericExpr numericUnequal(final double rv) {
-        return (r) -> (r != null) && (r != rv);
+        return (props) -> props.getNumber(key) < rv;
     }
 
-    public static StringExpr stringEqual(final String rv) {
-        return (r) -> (r != null) && r.equals(rv);
-    }
+    public static QueryPredicate numericLessEq(String prop, final double rv) {
+        final PropKey key = new PropKey(prop);
 
-    public static StringExpr stringUnequal(final String rv) {
-        return (r) -> (r != null) && !r.equals(rv);
+        return (props) -> props.getNumber(key) <= rv;
     }
 
-    public static NullExpr isNull() {
-        return Objects::isNull;
-    }
+    public static QueryPredicate numericEqual(String prop, final double rv) {
+        final PropKey key = new PropKey(prop);
 
-    public static NullExpr isNotNull() {
-        return Objects::nonNull;
+        return (props) -> props.getNumber(key) == rv;
     }
 
-    public static LogicUnaryExpr not() {
-        return (r) -> !r;
-    }
+    public static QueryPredicate numericUnequal(String prop, final double rv) {
+        final PropKey key = new PropKey(prop);
 
-    public static LogicBinaryExpr and() {
-        return (a, b) -> a && b;
+        return (props) -> {
+            double r = props.getNumber(key);
+            return !Double.isNaN(r) && (r != rv);
+        };
     }
 
-    public static LogicBinaryExpr or() {
-        return (a, b) -> a || b;
-    }
+    public static QueryPredicate stringEqual(String prop, final String rv) {
+        final PropKey key = new PropKey(prop);
 
-    public static PropGetter getString(final String prop) {
-        return (r) -> {
-            Writable raw = r.get(new Text(prop));
-            return (raw != null) ? raw.toString() : null;
-        };
+        return (props) -> rv.equals(props.getString(key));
     }
 
-    public static PropGetter getNumber(final String prop) {
-        return (r) -> {
-            Writable raw = r.get(new Text(prop));
-            return (raw != null) ? new Double(raw.toString()) : null;
+    public static QueryPredicate stringUnequal(String prop, final String rv) {
+        final PropKey key = new PropKey(prop);
+
+        return (props) -> {
+            String r = props.getString(key);
+            return (r != null) && !r.equals(rv);
         };
     }
 
-    public static StackGetter stackGetter(final int num) {
-        return (stack) -> {
-            Deque<Boolean> top = new LinkedList<>();
-            for (int i = 0; i < num; i++) {
-                top.push(stack.pop());
-            }
-            return top;
-        };
+    public static QueryPredicate isNull(String prop) {
+        final PropKey key = new PropKey(prop);
+
+        return (props) -> props.getString(key) == null;
     }
 
-    public interface QueryExpr extends Serializable {
+    public static QueryPredicate isNotNull(String prop) {
+        final PropKey key = new PropKey(prop);
+
+        return (props) -> props.getString(key) != null;
     }
 
-    @FunctionalInterface
-    public interface LogicBinaryExpr extends QueryExpr {
-        boolean eval(boolean a, boolean b);
+    public static QueryPredicate inside(final RegionCellIndex region) {
+        final int resolution = region.resolution;
+
+        return (props) -> region.contains(props.getCell(resolution), props.getLat(), props.getLon());
     }
 
-    @FunctionalInterface
-    public interface LogicUnaryExpr extends QueryExpr {
-        boolean eval(boolean rv);
+    public static QueryPredicate not(final QueryPredicate a) {
+        return (props) -> !a.test(props);
     }
 
-    @FunctionalInterface
-    public interface NumericExpr extends QueryExpr {
-        boolean eval(Double rv);
+    public static QueryPredicate and(final QueryPredicate a, final QueryPredicate b) {
+        return (props) -> a.test(props) && b.test(props);
     }
 
-    @FunctionalInterface
-    public interface PropGetter extends QueryExpr {
-        Object get(MapWritable obj);
+    public static QueryPredicate or(final QueryPredicate a, final QueryPredicate b) {
+        return (props) -> a.test(props) || b.test(props);
     }
 
-    @FunctionalInterface
-    public interface StackGetter extends QueryExpr {
-        Deque<Boolean> eval(Deque<Boolean> r);
+    public static QueryPredicate any() {
+        return (props) -> true;
     }
 
     @FunctionalInterface
-    public interface StringExpr extends QueryExpr {
-        boolean eval(String rv);
+    public interface QueryPredicate extends Serializable {
+        boolean test(PropertyView props);
     }
 
-    @FunctionalInterface
-    public interface NullExpr extends QueryExpr {
-        boolean eval(Object rv);
+    /**
+     * Property name that is a Text to look up MapWritables with, and still can be captured by a Spark closure
+     */
+    public static class PropKey extends Text implements Serializable {
+        public PropKey(String prop) {
+            super(prop);
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.writeUTF(toString());
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException {
+            set(in.readUTF());
+        }
     }
 }
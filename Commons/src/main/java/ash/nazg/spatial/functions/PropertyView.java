@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial.functions;
+
+import ash.nazg.spatial.SegmentedTrack;
+import ash.nazg.spatial.TrackSegment;
+import com.uber.h3core.H3Core;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+
+import java.io.IOException;
+
+/**
+ * Read-only access to properties of a spatial object for query predicates
+ */
+public interface PropertyView {
+    /**
+     * @return property value as a String, or null if there is no such property
+     */
+    String getString(Text key);
+
+    /**
+     * @return property value as a number, or NaN if there is no such property
+     */
+    double getNumber(Text key);
+
+    /**
+     * @return latitude of the object location, or NaN if it has none
+     */
+    double getLat();
+
+    /**
+     * @return longitude of the object location, or NaN if it has none
+     */
+    double getLon();
+
+    /**
+     * @return H3 cell of the object location at the given resolution, or 0 (which isn't a valid cell) if it has no
+     * location
+     */
+    long getCell(int resolution);
+
+    static String string(Writable raw) {
+        return (raw != null) ? raw.toString() : null;
+    }
+
+    static double number(Writable raw) {
+        if (raw instanceof DoubleWritable) {
+            return ((DoubleWritable) raw).get();
+        }
+        return (raw != null) ? Double.parseDouble(raw.toString()) : Double.NaN;
+    }
+
+    /**
+     * Location of a Point is the Point itself, and of any other object is its centroid. It is computed only if some
+     * spatial predicate asks for it, and its H3 cells are computed once per object for each resolution asked
+     */
+    abstract class Located implements PropertyView {
+        private static H3Core h3 = null;
+
+        private double lat;
+        private double lon;
+        private boolean located;
+        private final long[] cells = new long[16];
+        private int cached;
+
+        private static void setupH3() {
+            try {
+                if (h3 == null) {
+                    h3 = H3Core.newInstance();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * @return location of the current object as {lat, lon}
+         */
+        protected abstract double[] locate();
+
+        protected void moved() {
+            located = false;
+            cached = 0;
+        }
+
+        private void ensureLocated() {
+            if (!located) {
+                double[] latLon = locate();
+                lat = latLon[0];
+                lon = latLon[1];
+                located = true;
+            }
+        }
+
+        @Override
+        public double getLat() {
+            ensureLocated();
+            return lat;
+        }
+
+        @Override
+        public double getLon() {
+            ensureLocated();
+            return lon;
+        }
+
+        @Override
+        public long getCell(int resolution) {
+            if ((cached & (1 << resolution)) == 0) {
+                ensureLocated();
+                if (Double.isNaN(lat) || Double.isNaN(lon)) {
+                    cells[resolution] = 0L;
+                } else {
+                    setupH3();
+                    cells[resolution] = h3.geoToH3(lat, lon, resolution);
+                }
+                cached |= 1 << resolution;
+            }
+
+            return cells[resolution];
+        }
+
+        protected static double[] centroid(Geometry g) {
+            if (g == null) {
+                return new double[]{Double.NaN, Double.NaN};
+            }
+
+            if (g instanceof Point) {
+                return new double[]{((Point) g).getY(), ((Point) g).getX()};
+            }
+
+            if ((g instanceof TrackSegment) || (g instanceof SegmentedTrack)) {
+                // centroid of points is their mean, and it can be taken from packed columns without any views
+                double lat = 0.D, lon = 0.D;
+                int size = 0;
+                for (int n = g.getNumGeometries() - 1; n >= 0; n--) {
+                    TrackSegment seg = (g instanceof TrackSegment) ? (TrackSegment) g : (TrackSegment) g.getGeometryN(n);
+                    for (int i = seg.size() - 1; i >= 0; i--) {
+                        lat += seg.getLat(i);
+                        lon += seg.getLon(i);
+                    }
+                    size += seg.size();
+
+                    if (g instanceof TrackSegment) {
+                        break;
+                    }
+                }
+
+                return (size > 0) ? new double[]{lat / size, lon / size} : new double[]{Double.NaN, Double.NaN};
+            }
+
+            Point c = g.getCentroid();
+            return c.isEmpty() ? new double[]{Double.NaN, Double.NaN} : new double[]{c.getY(), c.getX()};
+        }
+    }
+
+    /**
+     * Properties of a single object
+     */
+    class Plain extends Located {
+        private MapWritable props;
+        private Geometry geometry;
+
+        public Plain props(MapWritable props) {
+            this.props = props;
+            this.geometry = null;
+            moved();
+            return this;
+        }
+
+        public Plain geometry(Geometry geometry) {
+            this.props = (MapWritable) geometry.getUserData();
+            this.geometry = geometry;
+            moved();
+            return this;
+        }
+
+        @Override
+        protected double[] locate() {
+            return centroid(geometry);
+        }
+
+        @Override
+        public String getString(Text key) {
+            return (props != null) ? string(props.get(key)) : null;
+        }
+
+        @Override
+        public double getNumber(Text key) {
+            return (props != null) ? number(props.get(key)) : Double.NaN;
+        }
+    }
+
+    /**
+     * Properties of a Point of a TrackSegment, falling back to properties of the segment itself, and then of its
+     * SegmentedTrack, without copying any of them. Layers are switched in place while iterating over the track
+     */
+    class Layered extends Located {
+        private MapWritable track;
+        private Geometry trackGeometry;
+        private MapWritable segmentProps;
+        private TrackSegment segment;
+        private int point = -1;
+
+        public Layered track(MapWritable track) {
+            this.track = track;
+            this.trackGeometry = null;
+            this.segmentProps = null;
+            this.segment = null;
+            this.point = -1;
+            moved();
+            return this;
+        }
+
+        public Layered track(SegmentedTrack track) {
+            track((MapWritable) track.getUserData());
+            this.trackGeometry = track;
+            return this;
+        }
+
+        public Layered segment(TrackSegment segment) {
+            this.segment = segment;
+            this.segmentProps = (MapWritable) segment.getUserData();
+            this.point = -1;
+            moved();
+            return this;
+        }
+
+        public Layered point(int point) {
+            this.point = point;
+            moved();
+            return this;
+        }
+
+        @Override
+        protected double[] locate() {
+            if (point >= 0) {
+                return new double[]{segment.getLat(point), segment.getLon(point)};
+            }
+
+            return centroid((segment != null) ? segment : trackGeometry);
+        }
+
+        @Override
+        public String getString(Text key) {
+            if (point >= 0) {
+                String value = segment.getString(point, key);
+                if (value != null) {
+                    return value;
+                }
+            }
+
+            Writable raw = (segmentProps != null) ? segmentProps.get(key) : null;
+            if ((raw == null) && (track != null)) {
+                raw = track.get(key);
+            }
+            return string(raw);
+        }
+
+        @Override
+        public double getNumber(Text key) {
+            if (point >= 0) {
+                double value = segment.getNumber(point, key);
+                if (!Double.isNaN(value)) {
+                    return value;
+                }
+            }
+
+            Writable raw = (segmentProps != null) ? segmentProps.get(key) : null;
+            if ((raw == null) && (track != null)) {
+                raw = track.get(key);
+            }
+            return number(raw);
+        }
+    }
+}
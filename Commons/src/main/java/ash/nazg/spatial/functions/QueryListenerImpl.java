@@ -4,6 +4,7 @@
  */
 package ash.nazg.spatial.functions;
 
+import ash.nazg.spatial.RegionCellIndex;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
@@ -17,7 +18,7 @@ import static ash.nazg.spatial.functions.QueryParser.CLOSE_PAR;
 import static ash.nazg.spatial.functions.QueryParser.OPEN_PAR;
 
 public class QueryListenerImpl extends QueryBaseListener {
-    private final List<Expressions.QueryExpr> where = new ArrayList<>();
+    private Expressions.QueryPredicate where = Expressions.any();
     private final List<String> what = new ArrayList<>();
     private Long limitRecords = null;
     private Double limitPercent = null;
@@ -43,14 +44,18 @@ public class QueryListenerImpl extends QueryBaseListener {
 
     @Override
     public void exitLimit_expr(QueryParser.Limit_exprContext ctx) {
-        if (ctx.INTEGER_LITERAL() != null) {
-            limitRecords = new Long(ctx.INTEGER_LITERAL().getText());
+        if (ctx.PERCENT() == null) {
+            // plain digits are lexed as NUMERIC_LITERAL as well, so both token types may carry the record number
+            String number = (ctx.INTEGER_LITERAL() != null) ? ctx.INTEGER_LITERAL().getText() : ctx.NUMERIC_LITERAL().getText();
+            try {
+                limitRecords = new Long(number.replaceFirst("[lL]$", ""));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Record number in LIMIT clause must be an integer");
+            }
             if (limitRecords <= 0) {
                 throw new RuntimeException("Record number in LIMIT clause can't be 0 or less");
             }
-        }
-
-        if (ctx.PERCENT() != null) {
+        } else {
             limitPercent = new Double(ctx.NUMERIC_LITERAL().getText());
             if ((limitPercent <= 0) || (limitPercent > 100)) {
                 throw new RuntimeException("Percentage in LIMIT clause can't be 0 or less and more than 100");
@@ -97,6 +102,8 @@ public class QueryListenerImpl extends QueryBaseListener {
             predExpStack.add(whereOpStack.pop());
         }
 
+        // compile postfix notation into a tree of predicates
+        Deque<Expressions.QueryPredicate> compiled = new LinkedList<>();
         for (ParseTree whereExpr : predExpStack) {
             if (whereExpr instanceof QueryParser.Atomic_exprContext) {
                 QueryParser.Atomic_exprContext atomicExpr = (QueryParser.Atomic_exprContext) whereExpr;
@@ -111,48 +118,42 @@ public class QueryListenerImpl extends QueryBaseListener {
                 // column_name equality_op STRING_LITERAL
                 TerminalNode stringLiteral = atomicExpr.STRING_LITERAL();
                 if (equalityOp != null && stringLiteral != null) {
-                    where.add(Expressions.getString(propName));
-
                     String rv = stripStringQuotes(stringLiteral.getText());
                     if (equalityOp.EQ() != null || equalityOp.EQ2() != null) {
-                        where.add(Expressions.stringEqual(rv));
+                        compiled.push(Expressions.stringEqual(propName, rv));
                     }
                     if (equalityOp.NOT_EQ1() != null || equalityOp.NOT_EQ2() != null) {
-                        where.add(Expressions.stringUnequal(rv));
+                        compiled.push(Expressions.stringUnequal(propName, rv));
                     }
                     continue;
                 }
 
                 // column_name equality_op NUMERIC_LITERAL
                 if (equalityOp != null && numericLiteral != null) {
-                    where.add(Expressions.getNumber(propName));
-
                     double rv = Double.parseDouble(numericLiteral.getText());
                     if (equalityOp.EQ() != null || equalityOp.EQ2() != null) {
-                        where.add(Expressions.numericEqual(rv));
+                        compiled.push(Expressions.numericEqual(propName, rv));
                     }
                     if (equalityOp.NOT_EQ1() != null || equalityOp.NOT_EQ2() != null) {
-                        where.add(Expressions.numericUnequal(rv));
+                        compiled.push(Expressions.numericUnequal(propName, rv));
                     }
                     continue;
                 }
 
                 // column_name comparison_op NUMERIC_LITERAL
                 if (comparisonOp != null && numericLiteral != null) {
-                    where.add(Expressions.getNumber(propName));
-
                     double rv = Double.parseDouble(numericLiteral.getText());
                     if (comparisonOp.GT() != null) {
-                        where.add(Expressions.numericGreater(rv));
+                        compiled.push(Expressions.numericGreater(propName, rv));
                     }
                     if (comparisonOp.GT_EQ() != null) {
-                        where.add(Expressions.numericGreaterEq(rv));
+                        compiled.push(Expressions.numericGreaterEq(propName, rv));
                     }
                     if (comparisonOp.LT() != null) {
-                        where.add(Expressions.numericLess(rv));
+                        compiled.push(Expressions.numericLess(propName, rv));
                     }
                     if (comparisonOp.LT_EQ() != null) {
-                        where.add(Expressions.numericLessEq(rv));
+                        compiled.push(Expressions.numericLessEq(propName, rv));
                     }
                     continue;
                 }
@@ -176,19 +177,46 @@ public class QueryListenerImpl extends QueryBaseListener {
                         pattern = pattern.substring(1, lastSlash);
                     }
 
-                    where.add(Expressions.getString(propName));
-
-                    where.add(Expressions.stringRegex(regexFlags, pattern));
+                    compiled.push(Expressions.stringRegex(propName, regexFlags, pattern));
                 }
 
                 if (atomicExpr.K_NULL() != null) {
-                    where.add(Expressions.getString(propName));
-
                     if (atomicExpr.K_NOT() != null) {
-                        where.add(Expressions.isNotNull());
+                        compiled.push(Expressions.isNotNull(propName));
                     } else {
-                        where.add(Expressions.isNull());
+                        compiled.push(Expressions.isNull(propName));
+                    }
+                }
+
+                continue;
+            }
+
+            if (whereExpr instanceof QueryParser.Spatial_exprContext) {
+                QueryParser.Spatial_exprContext spatialExpr = (QueryParser.Spatial_exprContext) whereExpr;
+
+                try {
+                    // WITHIN meters OF (lat, lon)
+                    if (spatialExpr.K_WITHIN() != null) {
+                        compiled.push(Expressions.inside(RegionCellIndex.within(
+                                numeric(spatialExpr, 0), numeric(spatialExpr, 1), numeric(spatialExpr, 2)
+                        )));
+                    }
+
+                    // INSIDE H3 'address'
+                    if (spatialExpr.K_H3() != null) {
+                        compiled.push(Expressions.inside(RegionCellIndex.cell(
+                                stripStringQuotes(spatialExpr.STRING_LITERAL().getText())
+                        )));
                     }
+
+                    // INSIDE BOX (south, west, north, east)
+                    if (spatialExpr.K_BOX() != null) {
+                        compiled.push(Expressions.inside(RegionCellIndex.box(
+                                numeric(spatialExpr, 0), numeric(spatialExpr, 1), numeric(spatialExpr, 2), numeric(spatialExpr, 3)
+                        )));
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new RuntimeException("Invalid spatial predicate '" + spatialExpr.getText() + "'", e);
                 }
 
                 continue;
@@ -198,22 +226,22 @@ public class QueryListenerImpl extends QueryBaseListener {
                 QueryParser.Logic_opContext logicOp = (QueryParser.Logic_opContext) whereExpr;
 
                 if (logicOp.K_NOT() != null) {
-                    where.add(Expressions.stackGetter(1));
-
-                    where.add(Expressions.not());
+                    compiled.push(Expressions.not(compiled.pop()));
                 }
                 if (logicOp.K_AND() != null) {
-                    where.add(Expressions.stackGetter(2));
-
-                    where.add(Expressions.and());
+                    Expressions.QueryPredicate b = compiled.pop();
+                    compiled.push(Expressions.and(compiled.pop(), b));
                 }
                 if (logicOp.K_OR() != null) {
-                    where.add(Expressions.stackGetter(2));
-
-                    where.add(Expressions.or());
+                    Expressions.QueryPredicate b = compiled.pop();
+                    compiled.push(Expressions.or(compiled.pop(), b));
                 }
             }
         }
+
+        if (!compiled.isEmpty()) {
+            where = compiled.pop();
+        }
     }
 
     private boolean isHigherOp(QueryParser.Logic_opContext ctx1, ParseTree ctx2) {
@@ -241,6 +269,10 @@ public class QueryListenerImpl extends QueryBaseListener {
         return false;
     }
 
+    private double numeric(QueryParser.Spatial_exprContext ctx, int i) {
+        return Double.parseDouble(ctx.NUMERIC_LITERAL(i).getText());
+    }
+
     private String stripStringQuotes(String sqlString) {
         if (sqlString == null) {
             return null;
@@ -253,7 +285,7 @@ public class QueryListenerImpl extends QueryBaseListener {
         return string;
     }
 
-    public List<Expressions.QueryExpr> getQuery() {
+    public Expressions.QueryPredicate getQuery() {
         return where;
     }
 
@@ -9,6 +9,8 @@ import ash.nazg.config.WrapperConfig;
 import ash.nazg.config.tdl.Description;
 import ash.nazg.config.tdl.TaskDescriptionLanguage;
 import ash.nazg.spark.Operation;
+import ash.nazg.spatial.CellBoundaryCache;
+import ash.nazg.spatial.CoverageTiles;
 import com.opencsv.CSVWriter;
 import com.uber.h3core.H3Core;
 import com.uber.h3core.util.GeoCoord;
@@ -18,11 +20,14 @@ import org.apache.spark.Partitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.storage.StorageLevel;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LinearRing;
 import org.locationtech.jts.geom.Polygon;
 import scala.Tuple2;
+import scala.Tuple3;
 
 import java.io.StringWriter;
 import java.util.*;
@@ -44,11 +49,24 @@ public class H3CompactCoverageOperation extends Operation {
     public static final String OP_HASH_LEVEL_FROM = "hash.level.from";
     @Description("Column with a generated hash level")
     public static final String GEN_LEVEL = "_level";
+    @Description("Column with a generated random identifier of the source Polygon")
+    public static final String GEN_PARENT = "_parent";
+    @Description("Coverage algorithm")
+    public static final String OP_COVERAGE_MODE = "coverage.mode";
+    @Description("By default, cover Polygons level by level, from the coarsest to the finest")
+    public static final CoverageMode DEF_COVERAGE_MODE = CoverageMode.ITERATIVE;
+    @Description("In COMPACT mode, a Polygon that is expected to be covered by more cells of the finest level than a" +
+            " cell this many levels coarser has descendants, is split into tiles of such cells, covered in parallel")
+    public static final String OP_TILE_DEPTH = "tile.depth";
+    @Description("By default, tiles are 6 levels coarser than the finest level, with 117649 descendants each")
+    public static final Integer DEF_TILE_DEPTH = 6;
 
     private String inputName;
 
     protected Integer minLevel;
     protected Integer maxLevel;
+    private CoverageMode coverageMode;
+    private int tileDepth;
 
     private String outputName;
     private char outputDelimiter;
@@ -68,6 +86,8 @@ public class H3CompactCoverageOperation extends Operation {
                 new TaskDescriptionLanguage.DefBase[]{
                         new TaskDescriptionLanguage.Definition(OP_HASH_LEVEL_TO, Integer.class, DEF_HASH_LEVEL_TO),
                         new TaskDescriptionLanguage.Definition(OP_HASH_LEVEL_FROM, Integer.class, DEF_HASH_LEVEL_FROM),
+                        new TaskDescriptionLanguage.Definition(OP_COVERAGE_MODE, CoverageMode.class, DEF_COVERAGE_MODE),
+                        new TaskDescriptionLanguage.Definition(OP_TILE_DEPTH, Integer.class, DEF_TILE_DEPTH),
                 },
 
                 new TaskDescriptionLanguage.OpStreams(
@@ -107,6 +127,12 @@ public class H3CompactCoverageOperation extends Operation {
             throw new InvalidConfigValueException("Coarsest hash level must be higher than finest in the operation '" + name + "'");
         }
 
+        coverageMode = describedProps.defs.getTyped(OP_COVERAGE_MODE);
+        tileDepth = describedProps.defs.getTyped(OP_TILE_DEPTH);
+        if (tileDepth < 1) {
+            throw new InvalidConfigValueException("Tile depth must be 1 or more but is '" + tileDepth + "' in the operation '" + name + "'");
+        }
+
         outputColumns = Arrays.stream(dataStreamsProps.outputColumns.get(outputName))
                 .map(c -> c.replaceFirst("^" + inputName + "\\.", ""))
                 .collect(Collectors.toList());
@@ -120,6 +146,10 @@ public class H3CompactCoverageOperation extends Operation {
     @Override
     @SuppressWarnings("unchecked")
     public Map<String, JavaRDDLike> getResult(Map<String, JavaRDDLike> input) {
+        if (coverageMode == CoverageMode.COMPACT) {
+            return compactCoverage(input);
+        }
+
         String _inputGeometriesName = inputName;
 
         JavaPairRDD<Long, Polygon> hashedGeometries = ((JavaRDD<Polygon>) input.get(inputName))
@@ -127,6 +157,7 @@ public class H3CompactCoverageOperation extends Operation {
 
         final GeometryFactory geometryFactory = new GeometryFactory();
         final int _maxLevel = maxLevel;
+        final CellBoundaryCache.Metrics _metrics = new CellBoundaryCache.Metrics(ctx);
 
         int partCount = hashedGeometries.getNumPartitions();
 
@@ -138,6 +169,7 @@ public class H3CompactCoverageOperation extends Operation {
                         List<Tuple2<Long, Polygon>> result = new ArrayList<>();
 
                         H3Core h3 = H3Core.newInstance();
+                        CellBoundaryCache.Lookup boundaries = _metrics.lookup();
                         Text hashAttr = new Text("_hash");
                         Text levelAttr = new Text("_level");
                         Text parentAttr = new Text("_parent");
@@ -177,30 +209,10 @@ public class H3CompactCoverageOperation extends Operation {
                                 Set<Long> polyfill = new HashSet<>(h3.polyfill(gco, gci, _level));
                                 Set<Long> hashes = new HashSet<>();
                                 for (long hash : polyfill) {
-                                    List<GeoCoord> geo = h3.h3ToGeoBoundary(hash);
-                                    geo.add(geo.get(0));
-
-                                    List<Coordinate> cl = new ArrayList<>();
-                                    geo.forEach(c -> cl.add(new Coordinate(c.lng, c.lat)));
-
-                                    Polygon polygon = geometryFactory.createPolygon(cl.toArray(new Coordinate[0]));
-                                    MapWritable userData = new MapWritable(properties);
-                                    userData.put(hashAttr, new Text(Long.toHexString(hash)));
-                                    userData.put(levelAttr, levelVal);
-                                    userData.put(parentAttr, parent);
-                                    polygon.setUserData(userData);
-
                                     if (_level == _maxLevel) {
-                                        List<Long> neighood = h3.kRing(hash, 1);
-                                        neighood.forEach(neighash -> {
-                                            if (!hashes.contains(neighash)) {
-                                                List<GeoCoord> ng = h3.h3ToGeoBoundary(neighash);
-                                                ng.add(ng.get(0));
-
-                                                List<Coordinate> cn = new ArrayList<>();
-                                                ng.forEach(c -> cn.add(new Coordinate(c.lng, c.lat)));
-
-                                                Polygon neighpoly = geometryFactory.createPolygon(cn.toArray(new Coordinate[0]));
+                                        for (Long neighash : h3.kRing(hash, 1)) {
+                                            if (hashes.add(neighash)) {
+                                                Polygon neighpoly = boundaries.get(neighash).toPolygon(geometryFactory);
                                                 MapWritable neighud = new MapWritable(properties);
                                                 neighud.put(hashAttr, new Text(Long.toHexString(neighash)));
                                                 neighud.put(levelAttr, levelVal);
@@ -208,19 +220,18 @@ public class H3CompactCoverageOperation extends Operation {
                                                 neighpoly.setUserData(neighud);
 
                                                 result.add(new Tuple2<>(o._1, neighpoly));
-                                                hashes.add(neighash);
                                             }
-                                        });
-
-                                        if (!hashes.contains(hash)) {
-                                            result.add(new Tuple2<>(o._1, polygon));
-                                            hashes.add(hash);
                                         }
                                     } else {
                                         if (polyfill.containsAll(h3.kRing(hash, 1))) {
-                                            Collections.reverse(cl);
-                                            LinearRing hole = geometryFactory.createLinearRing(cl.toArray(new Coordinate[0]));
-                                            holes.add(hole);
+                                            Polygon polygon = boundaries.get(hash).toPolygon(geometryFactory);
+                                            MapWritable userData = new MapWritable(properties);
+                                            userData.put(hashAttr, new Text(Long.toHexString(hash)));
+                                            userData.put(levelAttr, levelVal);
+                                            userData.put(parentAttr, parent);
+                                            polygon.setUserData(userData);
+
+                                            holes.add((LinearRing) polygon.getExteriorRing().reverse());
 
                                             result.add(new Tuple2<>(o._1, polygon));
                                         }
@@ -238,6 +249,7 @@ public class H3CompactCoverageOperation extends Operation {
                             }
                         }
 
+                        boundaries.report();
                         return result.iterator();
                     })
                     .partitionBy(new RandomPartitioner(partCount));
@@ -277,6 +289,210 @@ public class H3CompactCoverageOperation extends Operation {
         return Collections.singletonMap(outputName, output);
     }
 
+    @SuppressWarnings("unchecked")
+    private Map<String, JavaRDDLike> compactCoverage(Map<String, JavaRDDLike> input) {
+        final GeometryFactory geometryFactory = new GeometryFactory();
+        final int _minLevel = minLevel;
+        final int _maxLevel = maxLevel;
+        final int _tileLevel = Math.max(minLevel, maxLevel - tileDepth);
+        final CellBoundaryCache.Metrics _metrics = new CellBoundaryCache.Metrics(ctx);
+
+        JavaRDD<Polygon> polygons = (JavaRDD<Polygon>) input.get(inputName);
+
+        // tiles of Polygons are enumerated right where they were read. Small Polygons stay in place, and large ones
+        // are shuffled with chunks of their tiles to spread clipping and polyfilling by the number of tiles
+        JavaPairRDD<Long, Tuple2<long[], Polygon>> planned = polygons
+                .mapPartitionsToPair(it -> {
+                    List<Tuple2<Long, Tuple2<long[], Polygon>>> result = new ArrayList<>();
+
+                    Random random = new Random();
+                    while (it.hasNext()) {
+                        Polygon p = it.next();
+
+                        Long parent = random.nextLong();
+                        for (long[] chunk : CoverageTiles.chunks(CoverageTiles.tiles(p, _maxLevel, _tileLevel))) {
+                            result.add(new Tuple2<>(parent, new Tuple2<>(chunk, p)));
+                        }
+                    }
+
+                    return result.iterator();
+                })
+                .persist(StorageLevel.MEMORY_AND_DISK());
+
+        long tileCount = planned
+                .filter(t -> t._2._1[0] != CoverageTiles.WHOLE)
+                .map(t -> (long) t._2._1.length)
+                .fold(0L, Long::sum);
+        int partCount = (int) Math.max(ctx.defaultParallelism(), (tileCount + CoverageTiles.TILES_PER_TASK - 1) / CoverageTiles.TILES_PER_TASK);
+
+        JavaPairRDD<Long, Tuple2<Long, Geometry>> tiles = planned
+                .filter(t -> t._2._1[0] != CoverageTiles.WHOLE)
+                .partitionBy(new RandomPartitioner(partCount))
+                .union(planned.filter(t -> t._2._1[0] == CoverageTiles.WHOLE))
+                .mapPartitionsToPair(it -> {
+                    List<Tuple2<Long, Tuple2<Long, Geometry>>> result = new ArrayList<>();
+
+                    CellBoundaryCache.Lookup boundaries = _metrics.lookup();
+                    while (it.hasNext()) {
+                        Tuple2<Long, Tuple2<long[], Polygon>> t = it.next();
+
+                        for (Tuple2<Long, Geometry> tile : CoverageTiles.clip(t._2._2, t._2._1, geometryFactory, boundaries)) {
+                            result.add(new Tuple2<>(t._1, tile));
+                        }
+                    }
+
+                    boundaries.report();
+                    return result.iterator();
+                });
+
+        // each tile is polyfilled only once, at the finest level, and then compacted. Only compacted cells are kept
+        JavaPairRDD<Long, Tuple3<Long, Boolean, MapWritable>> covered = tiles
+                .mapPartitionsToPair(it -> {
+                    List<Tuple2<Long, Tuple3<Long, Boolean, MapWritable>>> result = new ArrayList<>();
+
+                    H3Core h3 = H3Core.newInstance();
+
+                    while (it.hasNext()) {
+                        Tuple2<Long, Tuple2<Long, Geometry>> t = it.next();
+
+                        long tile = t._2._1;
+                        Geometry clip = t._2._2;
+                        MapWritable properties = (MapWritable) clip.getUserData();
+
+                        long[] cells = CoverageTiles.cells(tile, clip, _maxLevel, true);
+                        if (cells.length == 0) {
+                            continue;
+                        }
+
+                        List<Long> compact = h3.compact(Arrays.stream(cells).boxed().collect(Collectors.toList()));
+
+                        // fully covered tile may be compacted further together with its siblings from other tasks
+                        boolean mergeable = (tile != CoverageTiles.WHOLE) && (_tileLevel > _minLevel)
+                                && (compact.size() == 1) && (compact.get(0) == tile);
+
+                        for (Long hash : mergeable ? compact : clamp(h3, compact, _minLevel)) {
+                            result.add(new Tuple2<>(t._1, new Tuple3<>(hash, mergeable, properties)));
+                        }
+                    }
+
+                    return result.iterator();
+                });
+
+        if (_tileLevel > _minLevel) {
+            JavaPairRDD<Long, Tuple3<Long, Boolean, MapWritable>> cached = covered.persist(StorageLevel.MEMORY_AND_DISK());
+
+            JavaPairRDD<Long, Tuple3<Long, Boolean, MapWritable>> merged = cached
+                    .filter(t -> t._2._2())
+                    .groupByKey()
+                    .flatMapToPair(t -> {
+                        List<Tuple2<Long, Tuple3<Long, Boolean, MapWritable>>> result = new ArrayList<>();
+
+                        H3Core h3 = H3Core.newInstance();
+
+                        List<Long> fullTiles = new ArrayList<>();
+                        MapWritable properties = null;
+                        for (Tuple3<Long, Boolean, MapWritable> tile : t._2) {
+                            fullTiles.add(tile._1());
+                            properties = tile._3();
+                        }
+
+                        for (Long hash : clamp(h3, h3.compact(fullTiles), _minLevel)) {
+                            result.add(new Tuple2<>(t._1, new Tuple3<>(hash, false, properties)));
+                        }
+
+                        return result.iterator();
+                    });
+
+            covered = cached
+                    .filter(t -> !t._2._2())
+                    .union(merged)
+                    .persist(StorageLevel.MEMORY_AND_DISK());
+
+            // the result is materialized once, so polyfilled tiles are released instead of being kept until the end
+            covered.count();
+            cached.unpersist(false);
+        }
+        // without a merge, the result is lazy, and its pass plans tiles once more instead of keeping them cached
+        planned.unpersist(false);
+
+        final List<String> _outputColumns = outputColumns;
+        final char _outputDelimiter = outputDelimiter;
+
+        JavaRDD<Text> output = covered
+                .mapPartitions(it -> {
+                    List<Text> ret = new ArrayList<>();
+
+                    H3Core h3 = H3Core.newInstance();
+
+                    while (it.hasNext()) {
+                        Tuple2<Long, Tuple3<Long, Boolean, MapWritable>> t = it.next();
+
+                        long hash = t._2._1();
+                        MapWritable props = t._2._3();
+
+                        String[] out = new String[_outputColumns.size()];
+
+                        int i = 0;
+                        for (String column : _outputColumns) {
+                            switch (column) {
+                                case GEN_HASH: {
+                                    out[i++] = Long.toHexString(hash);
+                                    break;
+                                }
+                                case GEN_LEVEL: {
+                                    out[i++] = Integer.toString(h3.h3GetResolution(hash));
+                                    break;
+                                }
+                                case GEN_PARENT: {
+                                    out[i++] = String.valueOf(t._1);
+                                    break;
+                                }
+                                default: {
+                                    out[i++] = props.get(new Text(column)).toString();
+                                }
+                            }
+                        }
+
+                        StringWriter buffer = new StringWriter();
+                        CSVWriter writer = new CSVWriter(buffer, _outputDelimiter, CSVWriter.DEFAULT_QUOTE_CHARACTER,
+                                CSVWriter.DEFAULT_ESCAPE_CHARACTER, "");
+                        writer.writeNext(out, false);
+                        writer.close();
+
+                        ret.add(new Text(buffer.toString()));
+                    }
+
+                    return ret.iterator();
+                });
+
+        return Collections.singletonMap(outputName, output);
+    }
+
+    /**
+     * Replace compacted cells coarser than the coarsest level with their descendants of that level
+     */
+    private static List<Long> clamp(H3Core h3, List<Long> compact, int minLevel) {
+        List<Long> ret = new ArrayList<>();
+        for (Long hash : compact) {
+            if (h3.h3GetResolution(hash) < minLevel) {
+                ret.addAll(h3.h3ToChildren(hash, minLevel));
+            } else {
+                ret.add(hash);
+            }
+        }
+        return ret;
+    }
+
+    public enum CoverageMode {
+        @Description("For each level from the coarsest to the finest, polyfill what is left of each Polygon, keep cells" +
+                " surrounded by other cells of the polyfill, and cut them out of the Polygon. At the finest level, keep" +
+                " all cells of the polyfill and their neighbours. Each level makes a full shuffle")
+        ITERATIVE,
+        @Description("Polyfill each Polygon (or each tile of a large Polygon) only once at the finest level, add" +
+                " neighbours of all cells, and compact the result with cells not coarser than the coarsest level")
+        COMPACT
+    }
+
     private static class RandomPartitioner extends Partitioner {
         private final int partCount;
         private final Random random;
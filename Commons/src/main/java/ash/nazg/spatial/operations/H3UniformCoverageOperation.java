@@ -8,20 +8,26 @@ import ash.nazg.config.InvalidConfigValueException;
 import ash.nazg.config.tdl.Description;
 import ash.nazg.config.tdl.TaskDescriptionLanguage;
 import ash.nazg.spark.Operation;
+import ash.nazg.spatial.CellBoundaryCache;
+import ash.nazg.spatial.CoverageTiles;
 import com.opencsv.CSVWriter;
 import com.uber.h3core.H3Core;
 import com.uber.h3core.LengthUnit;
-import com.uber.h3core.util.GeoCoord;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
+import scala.Tuple2;
+import scala.Tuple3;
 
+import java.io.IOException;
 import java.io.StringWriter;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -35,9 +41,18 @@ public class H3UniformCoverageOperation extends Operation {
     @Description("Level of the hash")
     public static final String OP_HASH_LEVEL = "hash.level";
 
+    @Description("Polygons that are expected to be covered by more cells than a cell this many levels coarser has" +
+            " descendants, are split into tiles of such cells, covered in parallel")
+    public static final String OP_TILE_DEPTH = "tile.depth";
+    @Description("By default, tiles are 6 levels coarser than the hash level, with 117649 descendants each")
+    public static final Integer DEF_TILE_DEPTH = 6;
+
     private static final String VERB = "h3UniformCoverage";
 
+    private static H3Core h3 = null;
+
     protected Integer level;
+    private int tileDepth;
     private String inputName;
     private String outputName;
     private char outputDelimiter;
@@ -55,6 +70,7 @@ public class H3UniformCoverageOperation extends Operation {
         return new TaskDescriptionLanguage.Operation(verb(),
                 new TaskDescriptionLanguage.DefBase[]{
                         new TaskDescriptionLanguage.Definition(OP_HASH_LEVEL, Integer.class, DEF_HASH_LEVEL),
+                        new TaskDescriptionLanguage.Definition(OP_TILE_DEPTH, Integer.class, DEF_TILE_DEPTH),
                 },
 
                 new TaskDescriptionLanguage.OpStreams(
@@ -94,6 +110,11 @@ public class H3UniformCoverageOperation extends Operation {
         if ((level < 0) || (level > 15)) {
             throw new InvalidConfigValueException("Hash level must fall into interval '0'..'15' but is '" + level + "' in the operation '" + name + "'");
         }
+
+        tileDepth = describedProps.defs.getTyped(OP_TILE_DEPTH);
+        if (tileDepth < 1) {
+            throw new InvalidConfigValueException("Tile depth must be 1 or more but is '" + tileDepth + "' in the operation '" + name + "'");
+        }
     }
 
     @Override
@@ -102,86 +123,171 @@ public class H3UniformCoverageOperation extends Operation {
 
         final List<String> _outputColumns = outputColumns;
         final char _outputDelimiter = outputDelimiter;
-        int _level = level;
-
-        JavaRDD<Text> output = geometriesInput.mapPartitions(it -> {
-            Set<Text> ret = new HashSet<>();
+        final int _level = level;
+        final int _tileLevel = Math.max(0, level - tileDepth);
+        final CellBoundaryCache.Metrics _metrics = new CellBoundaryCache.Metrics(ctx);
+
+        final GeometryFactory geometryFactory = new GeometryFactory();
+
+        // tiles of large Polygons are enumerated right where they were read, each Polygon with the values of output
+        // columns (except hash) resolved once. Tile enumeration is cheap, so it is made again by the lazy pass after
+        // the tiles are counted
+        JavaRDD<Tuple3<long[], Geometry, ArrayList<String>>> planned = geometriesInput
+                .mapPartitions(it -> {
+                    List<Tuple3<long[], Geometry, ArrayList<String>>> ret = new ArrayList<>();
+
+                    while (it.hasNext()) {
+                        Geometry geometry = (Geometry) it.next();
+                        MapWritable props = (MapWritable) geometry.getUserData();
+
+                        ArrayList<String> values = new ArrayList<>(_outputColumns.size());
+                        for (String column : _outputColumns) {
+                            values.add(GEN_HASH.equals(column) ? null : props.get(new Text(column)).toString());
+                        }
 
-            Text radiusAttr = new Text(GEN_RADIUS);
+                        if (geometry instanceof Polygon) {
+                            for (long[] chunk : CoverageTiles.chunks(CoverageTiles.tiles((Polygon) geometry, _level, _tileLevel))) {
+                                ret.add(new Tuple3<>(chunk, geometry, values));
+                            }
+                        }
 
-            H3Core h3 = H3Core.newInstance();
+                        if (geometry instanceof Point) {
+                            ret.add(new Tuple3<>(new long[]{CoverageTiles.WHOLE}, geometry, values));
+                        }
+                    }
 
-            while (it.hasNext()) {
-                Object o = it.next();
+                    return ret.iterator();
+                });
+
+        long tileCount = planned
+                .filter(t -> t._1()[0] != CoverageTiles.WHOLE)
+                .map(t -> (long) t._1().length)
+                .fold(0L, Long::sum);
+        int partCount = (int) Math.max(ctx.defaultParallelism(), (tileCount + CoverageTiles.TILES_PER_TASK - 1) / CoverageTiles.TILES_PER_TASK);
+
+        // large Polygons are spread with chunks of their tiles by the number of tiles, and clipped after the shuffle.
+        // Points and small Polygons stay in place. Then tiles are polyfilled, and their cells are streamed out one by
+        // one
+        JavaPairRDD<Long, ArrayList<String>> cells = planned
+                .filter(t -> t._1()[0] != CoverageTiles.WHOLE)
+                .repartition(partCount)
+                .union(planned.filter(t -> t._1()[0] == CoverageTiles.WHOLE))
+                .mapPartitions(it -> {
+                    List<Tuple3<Long, Geometry, ArrayList<String>>> ret = new ArrayList<>();
+
+                    CellBoundaryCache.Lookup boundaries = _metrics.lookup();
+
+                    while (it.hasNext()) {
+                        Tuple3<long[], Geometry, ArrayList<String>> t = it.next();
+
+                        if (t._2() instanceof Polygon) {
+                            for (Tuple2<Long, Geometry> tile : CoverageTiles.clip((Polygon) t._2(), t._1(), geometryFactory, boundaries)) {
+                                ret.add(new Tuple3<>(tile._1, tile._2, t._3()));
+                            }
+                        } else {
+                            ret.add(new Tuple3<>(CoverageTiles.WHOLE, t._2(), t._3()));
+                        }
+                    }
 
-                Geometry geometry = (Geometry) o;
-                MapWritable props = (MapWritable) geometry.getUserData();
+                    boundaries.report();
+                    return ret.iterator();
+                })
+                .flatMapToPair(t -> {
+                    long[] hashes;
+
+                    Geometry geometry = t._2();
+                    if (geometry instanceof Point) {
+                        hashes = pointfill((Point) geometry, _level);
+                    } else {
+                        hashes = CoverageTiles.cells(t._1(), geometry, _level, false);
+                    }
 
-                Set<Long> polyfill = new HashSet<>();
+                    return new CellIterator(hashes, t._3());
+                })
+                // same cell may be covered by more than one source geometry with same properties
+                .distinct();
 
-                if (geometry instanceof Polygon) {
-                    Polygon p = (Polygon) geometry;
+        JavaRDD<Text> output = cells
+                .mapPartitions(it -> {
+                    List<Text> ret = new ArrayList<>();
 
-                    List<GeoCoord> gco = new ArrayList<>();
-                    for (Coordinate c : p.getExteriorRing().getCoordinates()) {
-                        gco.add(new GeoCoord(c.y, c.x));
-                    }
+                    while (it.hasNext()) {
+                        Tuple2<Long, ArrayList<String>> cell = it.next();
 
-                    List<List<GeoCoord>> gci = new ArrayList<>();
-                    for (int i = p.getNumInteriorRing(); i > 0; ) {
-                        List<GeoCoord> gcii = new ArrayList<>();
-                        for (Coordinate c : p.getInteriorRingN(--i).getCoordinates()) {
-                            gcii.add(new GeoCoord(c.y, c.x));
+                        String[] out = cell._2.toArray(new String[0]);
+                        for (int i = 0; i < out.length; i++) {
+                            if (out[i] == null) {
+                                out[i] = cell._1.toString();
+                            }
                         }
-                        gci.add(gcii);
+
+                        StringWriter buffer = new StringWriter();
+                        CSVWriter writer = new CSVWriter(buffer, _outputDelimiter, CSVWriter.DEFAULT_QUOTE_CHARACTER,
+                                CSVWriter.DEFAULT_ESCAPE_CHARACTER, "");
+                        writer.writeNext(out, false);
+                        writer.close();
+
+                        ret.add(new Text(buffer.toString()));
                     }
 
-                    polyfill.addAll(h3.polyfill(gco, gci, _level));
-                }
+                    return ret.iterator();
+                });
+
+        return Collections.singletonMap(outputName, output);
+    }
+
+    private static void setupH3() {
+        try {
+            if (h3 == null) {
+                h3 = H3Core.newInstance();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                if (geometry instanceof Point) {
-                    Coordinate c = geometry.getCoordinate();
+    /**
+     * @return cell of the Point, with enough rings of neighbours to cover its radius, if it has one
+     */
+    private static long[] pointfill(Point point, int level) {
+        setupH3();
 
-                    long pointfill = h3.geoToH3(c.y, c.x, _level);
-                    polyfill.add(pointfill);
-                    if (props.containsKey(radiusAttr)) {
-                        double radius = ((DoubleWritable) props.get(radiusAttr)).get();
+        long pointfill = h3.geoToH3(point.getY(), point.getX(), level);
 
-                        int recursion = 1;
-                        double length = h3.edgeLength(_level, LengthUnit.m);
-                        if (radius > length) {
-                            recursion = (int) Math.floor(radius / length);
-                        }
+        Writable radiusProp = ((MapWritable) point.getUserData()).get(new Text(GEN_RADIUS));
+        if (radiusProp == null) {
+            return new long[]{pointfill};
+        }
 
-                        polyfill.addAll(h3.kRing(pointfill, recursion));
-                    }
-                }
+        double radius = ((DoubleWritable) radiusProp).get();
 
-                for (Long hash : polyfill) {
-                    String[] out = new String[_outputColumns.size()];
+        int recursion = 1;
+        double length = h3.edgeLength(level, LengthUnit.m);
+        if (radius > length) {
+            recursion = (int) Math.floor(radius / length);
+        }
 
-                    int i = 0;
-                    for (String column : _outputColumns) {
-                        if ("_hash".equals(column)) {
-                            out[i++] = hash.toString();
-                        } else {
-                            out[i++] = props.get(new Text(column)).toString();
-                        }
-                    }
+        return h3.kRing(pointfill, recursion).stream().mapToLong(Long::longValue).toArray();
+    }
 
-                    StringWriter buffer = new StringWriter();
-                    CSVWriter writer = new CSVWriter(buffer, _outputDelimiter, CSVWriter.DEFAULT_QUOTE_CHARACTER,
-                            CSVWriter.DEFAULT_ESCAPE_CHARACTER, "");
-                    writer.writeNext(out, false);
-                    writer.close();
+    private static class CellIterator implements Iterator<Tuple2<Long, ArrayList<String>>> {
+        private final long[] hashes;
+        private final ArrayList<String> values;
+        private int i = 0;
 
-                    ret.add(new Text(buffer.toString()));
-                }
-            }
+        private CellIterator(long[] hashes, ArrayList<String> values) {
+            this.hashes = hashes;
+            this.values = values;
+        }
 
-            return ret.iterator();
-        });
+        @Override
+        public boolean hasNext() {
+            return i < hashes.length;
+        }
 
-        return Collections.singletonMap(outputName, output);
+        @Override
+        public Tuple2<Long, ArrayList<String>> next() {
+            return new Tuple2<>(hashes[i++], values);
+        }
     }
 }
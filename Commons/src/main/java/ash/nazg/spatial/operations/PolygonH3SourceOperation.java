@@ -8,18 +8,15 @@ import ash.nazg.config.InvalidConfigValueException;
 import ash.nazg.config.tdl.Description;
 import ash.nazg.config.tdl.TaskDescriptionLanguage;
 import ash.nazg.spark.Operation;
+import ash.nazg.spatial.CellBoundaryCache;
 import com.opencsv.CSVParser;
 import com.opencsv.CSVParserBuilder;
-import com.uber.h3core.H3Core;
-import com.uber.h3core.util.GeoCoord;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
 
 import java.util.*;
@@ -105,12 +102,13 @@ public class PolygonH3SourceOperation extends Operation {
         final Map<String, Integer> _outputColumns = outputColumns;
         final GeometryFactory geometryFactory = new GeometryFactory();
         final int _hashColumn = hashColumn;
+        final CellBoundaryCache.Metrics _metrics = new CellBoundaryCache.Metrics(ctx);
 
         JavaRDD<Polygon> output = rdd.mapPartitions(it -> {
             List<Polygon> ret = new ArrayList<>();
 
             CSVParser parser = new CSVParserBuilder().withSeparator(_delimiter).build();
-            H3Core h3 = H3Core.newInstance();
+            CellBoundaryCache.Lookup boundaries = _metrics.lookup();
             Text latAttr = new Text(GEN_CENTER_LAT);
             Text lonAttr = new Text(GEN_CENTER_LON);
 
@@ -124,21 +122,17 @@ public class PolygonH3SourceOperation extends Operation {
                 }
 
                 long hash = Long.parseUnsignedLong(_columns[_hashColumn], 16);
-                List<GeoCoord> geo = h3.h3ToGeoBoundary(hash);
-                geo.add(geo.get(0));
+                CellBoundaryCache.CellBoundary boundary = boundaries.get(hash);
 
-                List<Coordinate> cl = new ArrayList<>();
-                geo.forEach(c -> cl.add(new Coordinate(c.lng, c.lat)));
-
-                Polygon polygon = geometryFactory.createPolygon(cl.toArray(new Coordinate[0]));
-                Point centroid = polygon.getCentroid();
-                props.put(latAttr, new DoubleWritable(centroid.getY()));
-                props.put(lonAttr, new DoubleWritable(centroid.getX()));
+                Polygon polygon = boundary.toPolygon(geometryFactory);
+                props.put(latAttr, new DoubleWritable(boundary.getCentroidLat()));
+                props.put(lonAttr, new DoubleWritable(boundary.getCentroidLon()));
                 polygon.setUserData(props);
 
                 ret.add(polygon);
             }
 
+            boundaries.report();
             return ret.iterator();
         });
 
@@ -8,23 +8,25 @@ import ash.nazg.config.InvalidConfigValueException;
 import ash.nazg.config.tdl.Description;
 import ash.nazg.config.tdl.TaskDescriptionLanguage;
 import ash.nazg.spark.Operation;
+import ash.nazg.spatial.StreamingGeoJSONReader;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
-import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
-import org.wololo.geojson.Feature;
-import org.wololo.geojson.FeatureCollection;
-import org.wololo.geojson.GeoJSON;
-import org.wololo.geojson.GeoJSONFactory;
-import org.wololo.jts2geojson.GeoJSONReader;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import static ash.nazg.spatial.config.ConfigurationParameters.*;
 
@@ -38,7 +40,8 @@ public class PolygonJSONSourceOperation extends Operation {
     private List<String> outputColumns;
 
     @Override
-    @Description("Take GeoJSON fragment file and produce a Polygon RDD")
+    @Description("Take GeoJSON fragment file and produce a Polygon RDD. Features are parsed one by one, and a file" +
+            " with one Feature per line may be split by lines")
     public String verb() {
         return VERB;
     }
@@ -80,58 +83,47 @@ public class PolygonJSONSourceOperation extends Operation {
     public Map<String, JavaRDDLike> getResult(Map<String, JavaRDDLike> input) {
         final List<String> _outputColumns = outputColumns;
 
+        final GeometryFactory geometryFactory = new GeometryFactory();
+
         JavaRDD<Polygon> output = ((JavaRDD<Object>) input.get(inputName))
                 .flatMap(line -> {
-                    List<Polygon> result = new ArrayList<>();
-                    GeoJSONReader reader = new GeoJSONReader();
-
-                    GeoJSON json = GeoJSONFactory.create(String.valueOf(line));
-
-                    List<Feature> features = null;
-                    if (json instanceof Feature) {
-                        features = Collections.singletonList((Feature) json);
-                    } else if (json instanceof FeatureCollection) {
-                        features = Arrays.asList(((FeatureCollection) json).getFeatures());
-                    }
-
-                    if (features != null) {
-                        Text latAttr = new Text(GEN_CENTER_LAT);
-                        Text lonAttr = new Text(GEN_CENTER_LON);
-
-                        for (Feature feature : features) {
-                            Geometry geometry = reader.read(feature.getGeometry());
-
-                            MapWritable properties = new MapWritable();
-
-                            feature.getProperties().entrySet().stream()
-                                    .filter(e -> (_outputColumns.size() == 0) || _outputColumns.contains(e.getKey()))
-                                    .forEach(e -> properties.put(new Text(e.getKey()), new Text(String.valueOf(e.getValue()))));
-
-                            List<Geometry> geometries = new ArrayList<>();
-
-                            if (geometry instanceof Polygon) {
-                                geometries.add(geometry);
-                            } else if (geometry instanceof MultiPolygon) {
-                                for (int i = 0; i < geometry.getNumGeometries(); i++) {
-                                    geometries.add(geometry.getGeometryN(i));
+                    Text latAttr = new Text(GEN_CENTER_LAT);
+                    Text lonAttr = new Text(GEN_CENTER_LON);
+
+                    // features are parsed one by one while the result is consumed, and Text is read without decoding
+                    // it to a String first
+                    Reader source = (line instanceof Text)
+                            ? new InputStreamReader(new ByteArrayInputStream(((Text) line).getBytes(), 0, ((Text) line).getLength()), StandardCharsets.UTF_8)
+                            : new StringReader(String.valueOf(line));
+                    StreamingGeoJSONReader features = new StreamingGeoJSONReader(source, _outputColumns, geometryFactory);
+
+                    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(features, Spliterator.ORDERED), false)
+                            .flatMap(geometry -> {
+                                List<Polygon> polygons = new ArrayList<>();
+
+                                if (geometry instanceof Polygon) {
+                                    polygons.add((Polygon) geometry);
+                                } else if (geometry instanceof MultiPolygon) {
+                                    for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                                        polygons.add((Polygon) geometry.getGeometryN(i));
+                                    }
                                 }
-                            }
 
-                            for (Geometry polygon : geometries) {
-                                MapWritable props = new MapWritable();
+                                MapWritable properties = (MapWritable) geometry.getUserData();
+                                for (Polygon polygon : polygons) {
+                                    MapWritable props = new MapWritable();
 
-                                props.putAll(properties);
-                                Point centroid = polygon.getCentroid();
-                                props.put(latAttr, new DoubleWritable(centroid.getY()));
-                                props.put(lonAttr, new DoubleWritable(centroid.getX()));
+                                    props.putAll(properties);
+                                    Point centroid = polygon.getCentroid();
+                                    props.put(latAttr, new DoubleWritable(centroid.getY()));
+                                    props.put(lonAttr, new DoubleWritable(centroid.getX()));
 
-                                polygon.setUserData(props);
-                                result.add((Polygon) polygon);
-                            }
-                        }
-                    }
+                                    polygon.setUserData(props);
+                                }
 
-                    return result.iterator();
+                                return polygons.stream();
+                            })
+                            .iterator();
                 });
 
         return Collections.singletonMap(outputName, output);
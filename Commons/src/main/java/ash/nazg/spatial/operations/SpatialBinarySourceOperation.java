@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial.operations;
+
+import ash.nazg.config.InvalidConfigValueException;
+import ash.nazg.config.tdl.Description;
+import ash.nazg.config.tdl.TaskDescriptionLanguage;
+import ash.nazg.spark.Operation;
+import ash.nazg.spatial.SpatialBinaryCodec;
+import org.apache.hadoop.io.Text;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+@SuppressWarnings("unused")
+public class SpatialBinarySourceOperation extends Operation {
+    public static final String VERB = "spatialBinarySource";
+
+    private String inputName;
+
+    private String outputName;
+    private List<String> outputColumns;
+
+    @Override
+    @Description("Take records read by the spatial binary (wkb:) Input Adapter and produce a RDD of Point, Polygon" +
+            " or Track objects, whichever were written by the spatial binary Output Adapter. Geometries are read from" +
+            " WKB, and properties keep their types. If output columns are set, other top-level properties are skipped")
+    public String verb() {
+        return VERB;
+    }
+
+    @Override
+    public TaskDescriptionLanguage.Operation description() {
+        return new TaskDescriptionLanguage.Operation(verb(),
+                null,
+
+                new TaskDescriptionLanguage.OpStreams(
+                        new TaskDescriptionLanguage.DataStream(
+                                new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.Plain},
+                                false
+                        )
+                ),
+
+                new TaskDescriptionLanguage.OpStreams(
+                        new TaskDescriptionLanguage.DataStream(
+                                new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.Point,
+                                        TaskDescriptionLanguage.StreamType.Polygon, TaskDescriptionLanguage.StreamType.Track},
+                                true
+                        )
+                )
+        );
+    }
+
+    @Override
+    public void configure(Properties properties, Properties variables) throws InvalidConfigValueException {
+        super.configure(properties, variables);
+
+        inputName = describedProps.inputs.get(0);
+
+        outputName = describedProps.outputs.get(0);
+        outputColumns = Arrays.asList(dataStreamsProps.outputColumns.get(outputName)).stream()
+                .map(c -> c.replaceFirst("^[^.]+\\.", ""))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<String, JavaRDDLike> getResult(Map<String, JavaRDDLike> input) {
+        final List<String> _outputColumns = outputColumns;
+
+        JavaRDD<Geometry> output = ((JavaRDD<byte[]>) input.get(inputName))
+                .mapPartitions(it -> decode(it, _outputColumns));
+
+        return Collections.singletonMap(outputName, output);
+    }
+
+    private static Iterator<Geometry> decode(Iterator<byte[]> it, List<String> outputColumns) {
+        Set<Text> columns = outputColumns.isEmpty() ? null
+                : outputColumns.stream().map(Text::new).collect(Collectors.toSet());
+        SpatialBinaryCodec codec = new SpatialBinaryCodec(new GeometryFactory());
+
+        return new Iterator<Geometry>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Geometry next() {
+                try {
+                    return codec.decode(it.next(), columns);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+}
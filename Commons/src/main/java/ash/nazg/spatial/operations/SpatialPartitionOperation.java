@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial.operations;
+
+import ash.nazg.config.InvalidConfigValueException;
+import ash.nazg.config.tdl.Description;
+import ash.nazg.config.tdl.TaskDescriptionLanguage;
+import ash.nazg.spark.Operation;
+import ash.nazg.spatial.SpatialPartitioner;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.locationtech.jts.geom.Geometry;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+@SuppressWarnings("unused")
+public class SpatialPartitionOperation extends Operation {
+    @Description("Level of H3 cells, which ranges make up partitions")
+    public static final String OP_PARTITION_LEVEL = "partition.level";
+    @Description("By default, partition by cells of level 6, about 36 square km each")
+    public static final Integer DEF_PARTITION_LEVEL = 6;
+    @Description("Number of partitions")
+    public static final String OP_PARTITION_COUNT = "partition.count";
+    @Description("By default, keep the number of partitions of the input")
+    public static final Integer DEF_PARTITION_COUNT = null;
+    @Description("Fraction of objects sampled to balance partitions by density")
+    public static final String OP_SAMPLE_FRACTION = "sample.fraction";
+    @Description("By default, sample 5% of objects")
+    public static final Double DEF_SAMPLE_FRACTION = 0.05D;
+
+    public static final String VERB = "spatialPartition";
+
+    private String inputName;
+    private String outputName;
+
+    private int level;
+    private Integer partCount;
+    private double fraction;
+
+    @Override
+    @Description("Range-partition a Point, Polygon or SegmentedTrack RDD by H3 cells of objects' centroids, so" +
+            " nearby objects stay in the same partition. Spatial operations that recognise such partitioning" +
+            " use objects in place instead of shuffling them again")
+    public String verb() {
+        return VERB;
+    }
+
+    @Override
+    public TaskDescriptionLanguage.Operation description() {
+        return new TaskDescriptionLanguage.Operation(verb(),
+                new TaskDescriptionLanguage.DefBase[]{
+                        new TaskDescriptionLanguage.Definition(OP_PARTITION_LEVEL, Integer.class, DEF_PARTITION_LEVEL),
+                        new TaskDescriptionLanguage.Definition(OP_PARTITION_COUNT, Integer.class, DEF_PARTITION_COUNT),
+                        new TaskDescriptionLanguage.Definition(OP_SAMPLE_FRACTION, Double.class, DEF_SAMPLE_FRACTION),
+                },
+
+                new TaskDescriptionLanguage.OpStreams(
+                        new TaskDescriptionLanguage.DataStream(
+                                new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.Point, TaskDescriptionLanguage.StreamType.Polygon, TaskDescriptionLanguage.StreamType.Track},
+                                false
+                        )
+                ),
+
+                new TaskDescriptionLanguage.OpStreams(
+                        new TaskDescriptionLanguage.DataStream(
+                                new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.Passthru},
+                                false
+                        )
+                )
+        );
+    }
+
+    @Override
+    public void configure(Properties properties, Properties variables) throws InvalidConfigValueException {
+        super.configure(properties, variables);
+
+        inputName = describedProps.inputs.get(0);
+        outputName = describedProps.outputs.get(0);
+
+        level = describedProps.defs.getTyped(OP_PARTITION_LEVEL);
+        if ((level < 0) || (level > 15)) {
+            throw new InvalidConfigValueException("Partition level must fall into interval '0'..'15' but is '" + level + "' in the operation '" + name + "'");
+        }
+
+        partCount = describedProps.defs.getTyped(OP_PARTITION_COUNT);
+        if ((partCount != null) && (partCount < 1)) {
+            throw new InvalidConfigValueException("Partition count must be 1 or more but is '" + partCount + "' in the operation '" + name + "'");
+        }
+
+        fraction = describedProps.defs.getTyped(OP_SAMPLE_FRACTION);
+        if (!((fraction > 0.D) && (fraction <= 1.D))) {
+            throw new InvalidConfigValueException("Sample fraction must fall into interval (0..1] but is '" + fraction + "' in the operation '" + name + "'");
+        }
+    }
+
+    @Override
+    public Map<String, JavaRDDLike> getResult(Map<String, JavaRDDLike> input) {
+        JavaRDD<Geometry> geometries = (JavaRDD<Geometry>) input.get(inputName);
+
+        int partitions = (partCount != null) ? partCount : geometries.getNumPartitions();
+
+        SpatialPartitioner partitioner = SpatialPartitioner.sample(geometries, level, partitions, fraction);
+
+        return Collections.singletonMap(outputName, partitioner.partition(geometries));
+    }
+}
@@ -11,6 +11,7 @@ import ash.nazg.spark.Operation;
 import ash.nazg.spatial.SegmentedTrack;
 import ash.nazg.spatial.TrackSegment;
 import ash.nazg.spatial.functions.Expressions;
+import ash.nazg.spatial.functions.PropertyView;
 import ash.nazg.spatial.functions.QueryLexer;
 import ash.nazg.spatial.functions.QueryListenerImpl;
 import ash.nazg.spatial.functions.QueryParser;
@@ -20,10 +21,11 @@ import org.antlr.v4.runtime.CommonTokenStream;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.storage.StorageLevel;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
+import scala.Tuple2;
 
-import java.io.Serializable;
 import java.util.*;
 
 import static ash.nazg.config.tdl.TaskDescriptionLanguage.StreamType.*;
@@ -37,13 +39,15 @@ public class SpatialToolboxOperation extends Operation {
 
     private String outputName;
     private String inputName;
-    private List<Expressions.QueryExpr> query;
+    private Expressions.QueryPredicate query;
     private String what;
     private Long limitRecords;
     private Double limitPercent;
 
     @Description("This operation allows SELECT queries against any Spatially-typed RDDs using any of their properties" +
-            " as criteria, e.g. SELECT Point FROM tracks WHERE trackid LIKE '.+?non.*' OR pt = 'e2e'")
+            " as criteria, e.g. SELECT Point FROM tracks WHERE trackid LIKE '.+?non.*' OR pt = 'e2e'. Spatial criteria" +
+            " WITHIN <meters> OF (<lat>, <lon>), INSIDE H3 '<cell>', and INSIDE BOX (<south>, <west>, <north>, <east>)" +
+            " test the location of a Point, or the centroid of any other object, through an index of H3 cells")
     @Override
     public String verb() {
         return VERB;
@@ -99,17 +103,24 @@ public class SpatialToolboxOperation extends Operation {
 
     @Override
     public Map<String, JavaRDDLike> getResult(Map<String, JavaRDDLike> input) {
-        final List<Expressions.QueryExpr> _query = query;
+        final Expressions.QueryPredicate _query = query;
         final String _what = what;
+        // percentage limit is applied before the predicate, so objects left out of the sample are never evaluated
+        final double _fraction = (limitPercent != null) ? (limitPercent / 100.D) : 1.D;
 
         final GeometryFactory geometryFactory = new GeometryFactory();
 
         JavaRDD<Object> output = ((JavaRDD<Object>) input.get(inputName))
-                .mapPartitions(it -> {
+                .mapPartitionsWithIndex((idx, it) -> {
                     List<Object> ret = new ArrayList<>();
 
-                    QueryMatcher qm = new QueryMatcher(_query);
+                    Random sample = new Random(idx);
+                    boolean sampled = (_fraction < 1.D);
+
+                    PropertyView.Plain plain = new PropertyView.Plain();
+                    PropertyView.Layered layered = new PropertyView.Layered();
                     boolean selectTrackSegment = _what.equalsIgnoreCase("TrackSegment");
+                    int[] selected = new int[0];
 
                     while (it.hasNext()) {
                         Geometry g = (Geometry) it.next();
@@ -118,43 +129,38 @@ public class SpatialToolboxOperation extends Operation {
                         MapWritable props = (MapWritable) g.getUserData();
 
                         if (thisType.equalsIgnoreCase(_what)) { // direct SELECT of Point or Polygon or SegmentedTrack
-                            if (qm.matches(props)) {
+                            if ((!sampled || (sample.nextDouble() < _fraction)) && _query.test(plain.geometry(g))) {
                                 ret.add(g);
                             }
                         } else { // otherwise SELECTing objects inside SegmentedTrack
                             List<TrackSegment> segments = new ArrayList<>();
+                            layered.track((SegmentedTrack) g);
 
                             int numSegments = g.getNumGeometries();
                             for (int n = 0; n < numSegments; n++) {
                                 TrackSegment seg = (TrackSegment) g.getGeometryN(n);
-
-                                MapWritable segProps = (MapWritable) seg.getUserData();
-                                MapWritable props2 = new MapWritable(props);
-                                props2.putAll(segProps);
+                                layered.segment(seg);
 
                                 if (selectTrackSegment) { // SELECTing TrackSegments
-                                    if (qm.matches(props2)) {
+                                    if ((!sampled || (sample.nextDouble() < _fraction)) && _query.test(layered)) {
                                         segments.add(seg);
                                     }
                                 } else { // SELECTing Points
-                                    List<Geometry> points = new ArrayList<>();
+                                    int numPoints = seg.size();
+                                    if (selected.length < numPoints) {
+                                        selected = new int[numPoints];
+                                    }
 
-                                    int numPoints = seg.getNumGeometries();
+                                    int count = 0;
                                     for (int nn = 0; nn < numPoints; nn++) {
-                                        Geometry point = seg.getGeometryN(nn);
-
-                                        MapWritable pointProps = (MapWritable) point.getUserData();
-                                        MapWritable props3 = new MapWritable(props2);
-                                        props3.putAll(pointProps);
-
-                                        if (qm.matches(props3)) {
-                                            points.add(point);
+                                        if ((!sampled || (sample.nextDouble() < _fraction)) && _query.test(layered.point(nn))) {
+                                            selected[count++] = nn;
                                         }
                                     }
 
-                                    if (!points.isEmpty()) {
-                                        TrackSegment newSeg = new TrackSegment(points.toArray(new Geometry[0]), geometryFactory);
-                                        newSeg.setUserData(segProps);
+                                    if (count > 0) {
+                                        TrackSegment newSeg = (count == numPoints) ? seg : seg.subset(selected, count);
+                                        newSeg.setUserData(seg.getUserData());
 
                                         segments.add(newSeg);
                                     }
@@ -171,64 +177,49 @@ public class SpatialToolboxOperation extends Operation {
                     }
 
                     return ret.iterator();
-                });
+                }, true);
 
         if (limitRecords != null) {
-            output = output.sample(false, limitRecords.doubleValue() / output.count());
-        }
-        if (limitPercent != null) {
-            output = output.sample(false, limitPercent);
-        }
-
-        return Collections.singletonMap(outputName, output);
-    }
+            // query is evaluated once into the cache, and then only its per-partition counts are collected to take
+            // exactly first limitRecords in partition order
+            JavaRDD<Object> unlimited = output.persist(StorageLevel.MEMORY_AND_DISK());
+
+            List<Tuple2<Integer, Long>> counts = unlimited
+                    .mapPartitionsWithIndex((idx, it) -> {
+                        long count = 0L;
+                        for (; it.hasNext(); it.next()) {
+                            count++;
+                        }
+                        return Collections.singletonList(new Tuple2<>(idx, count)).iterator();
+                    }, true)
+                    .collect();
+
+            final HashMap<Integer, Long> _take = new HashMap<>();
+            long left = limitRecords;
+            for (Tuple2<Integer, Long> count : counts) {
+                long take = Math.min(left, count._2);
+                _take.put(count._1, take);
+                left -= take;
+            }
 
-    private static class QueryMatcher implements Serializable {
-        private final List<Expressions.QueryExpr> query;
+            output = unlimited
+                    .mapPartitionsWithIndex((idx, it) -> {
+                        List<Object> ret = new ArrayList<>();
 
-        public QueryMatcher(List<Expressions.QueryExpr> query) {
-            this.query = query;
-        }
-
-        public boolean matches(MapWritable props) {
-            if (query.isEmpty()) {
-                return true;
-            }
+                        long take = _take.getOrDefault(idx, 0L);
+                        for (long i = 0L; (i < take) && it.hasNext(); i++) {
+                            ret.add(it.next());
+                        }
 
-            Deque<Boolean> stack = new LinkedList<>();
-            Deque<Boolean> top = null;
-            Object prop = null;
-            for (Expressions.QueryExpr qe : query) {
-                if (qe instanceof Expressions.PropGetter) {
-                    prop = ((Expressions.PropGetter) qe).get(props);
-                    continue;
-                }
-                if (qe instanceof Expressions.StackGetter) {
-                    top = ((Expressions.StackGetter) qe).eval(stack);
-                    continue;
-                }
-                if (qe instanceof Expressions.StringExpr) {
-                    stack.push(((Expressions.StringExpr) qe).eval((String) prop));
-                    continue;
-                }
-                if (qe instanceof Expressions.NumericExpr) {
-                    stack.push(((Expressions.NumericExpr) qe).eval((Double) prop));
-                    continue;
-                }
-                if (qe instanceof Expressions.LogicBinaryExpr) {
-                    stack.push(((Expressions.LogicBinaryExpr) qe).eval(top.pop(), top.pop()));
-                    continue;
-                }
-                if (qe instanceof Expressions.LogicUnaryExpr) {
-                    stack.push(((Expressions.LogicUnaryExpr) qe).eval(top.pop()));
-                    continue;
-                }
-                if (qe instanceof Expressions.NullExpr) {
-                    stack.push(((Expressions.NullExpr) qe).eval(prop));
-                }
-            }
+                        return ret.iterator();
+                    }, true)
+                    .persist(StorageLevel.MEMORY_AND_DISK());
 
-            return stack.pop();
+            // only the limited records stay cached, and the whole query result is released
+            output.count();
+            unlimited.unpersist(false);
         }
+
+        return Collections.singletonMap(outputName, output);
     }
 }
@@ -15,16 +15,12 @@ import ash.nazg.spatial.TrackSegment;
 import ash.nazg.spatial.config.ConfigurationParameters;
 import com.opencsv.CSVParser;
 import com.opencsv.CSVParserBuilder;
-import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
-import org.apache.spark.broadcast.Broadcast;
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.Point;
 import scala.Tuple2;
 import scala.Tuple4;
 
@@ -126,14 +122,22 @@ public class TrackCSVSourceOperation extends Operation {
         final int _useridColumn = useridColumn;
         final int _tsColumn = tsColumn;
         final Integer _trackColumn = trackColumn;
-        final Map<String, Integer> _outputColumns = outputColumns;
+
+        final String[] _outputNames = new String[outputColumns.size()];
+        final int[] _outputIndices = new int[outputColumns.size()];
+        int c = 0;
+        for (Map.Entry<String, Integer> col : outputColumns.entrySet()) {
+            _outputNames[c] = col.getKey();
+            _outputIndices[c] = col.getValue();
+            c++;
+        }
 
         JavaRDD<Object> signalsInput = (JavaRDD<Object>) input.get(inputName);
         int _numPartitions = signalsInput.getNumPartitions();
 
-        JavaPairRDD<Tuple2<Text, Double>, Tuple4<Double, Double, Text, Text>> signals = signalsInput
+        JavaPairRDD<Tuple2<Text, Double>, Tuple4<Double, Double, Text, Text[]>> signals = signalsInput
                 .mapPartitionsToPair(it -> {
-                    List<Tuple2<Tuple2<Text, Double>, Tuple4<Double, Double, Text, Text>>> ret = new ArrayList<>();
+                    List<Tuple2<Tuple2<Text, Double>, Tuple4<Double, Double, Text, Text[]>>> ret = new ArrayList<>();
                     CSVParser parser = new CSVParserBuilder().withSeparator(_inputDelimiter)
                             .build();
 
@@ -149,149 +153,106 @@ public class TrackCSVSourceOperation extends Operation {
 
                         Text track = (_trackColumn != null) ? new Text(row[_trackColumn]) : null;
 
-                        ret.add(new Tuple2<>(new Tuple2<>(userId, timestamp), new Tuple4<>(lat, lon, track, new Text(l))));
+                        Text[] values = new Text[_outputIndices.length];
+                        for (int i = 0; i < _outputIndices.length; i++) {
+                            values[i] = new Text(row[_outputIndices[i]]);
+                        }
+
+                        ret.add(new Tuple2<>(new Tuple2<>(userId, timestamp), new Tuple4<>(lat, lon, track, values)));
                     }
 
                     return ret.iterator();
                 })
-                .repartitionAndSortWithinPartitions(new TrackPartitioner(_numPartitions), new TrackComparator()) // pre-sort by timestamp
+                .repartitionAndSortWithinPartitions(new TrackPartitioner(_numPartitions), new TrackComparator()) // sort by userid, then timestamp
                 ;
 
-        HashMap<Integer, Integer> useridCountPerPartition = new HashMap<>(signals
-                .mapPartitionsWithIndex((idx, it) -> {
-                    List<Tuple2<Integer, Integer>> num = new ArrayList<>();
-
-                    Set<Text> userids = new HashSet<>();
-                    while (it.hasNext()) {
-                        Text userid = it.next()._1._1;
-                        userids.add(userid);
-                    }
-
-                    num.add(new Tuple2<>(idx, userids.size()));
-
-                    return num.iterator();
-                }, true)
-                .mapToPair(t -> t)
-                .collectAsMap()
-        );
-
-        Broadcast<HashMap<Integer, Integer>> num = ctx.broadcast(useridCountPerPartition);
-
-        final GeometryFactory geometryFactory = new GeometryFactory();
-
-        JavaRDD<SegmentedTrack> output = signals.mapPartitionsWithIndex((idx, it) -> {
-            int useridCount = num.getValue().get(idx);
-            boolean isSegmented = (_trackColumn != null);
+        JavaRDD<SegmentedTrack> output = signals
+                .mapPartitions(it -> new TrackAssembler(it, _trackColumn != null, _outputNames), true);
 
-            Text useridAttr = new Text(GEN_USERID);
-            Text trackidAttr = new Text(GEN_TRACKID);
-            Text tsAttr = new Text("_ts");
-
-            Map<Text, Integer> useridOrd = new HashMap<>();
+        return Collections.singletonMap(outputName, output);
+    }
 
-            CSVParser parser = new CSVParserBuilder().withSeparator(_inputDelimiter).build();
+    /**
+     * Assembles SegmentedTracks from signals sorted by userid and timestamp, and emits each one as soon as its
+     * userid changes, so only points of a single track are held in memory, packed into columns. Sorted shuffle
+     * output itself spills to disk as needed
+     */
+    private static class TrackAssembler implements Iterator<SegmentedTrack> {
+        private final Iterator<Tuple2<Tuple2<Text, Double>, Tuple4<Double, Double, Text, Text[]>>> it;
+        private final boolean isSegmented;
+        private final Text[] outputNames;
+
+        private final GeometryFactory geometryFactory = new GeometryFactory();
+        private final Text useridAttr = new Text(GEN_USERID);
+        private final Text trackidAttr = new Text(GEN_TRACKID);
+
+        private Tuple2<Tuple2<Text, Double>, Tuple4<Double, Double, Text, Text[]>> pending;
+
+        private TrackAssembler(Iterator<Tuple2<Tuple2<Text, Double>, Tuple4<Double, Double, Text, Text[]>>> it,
+                               boolean isSegmented, String[] outputNames) {
+            this.it = it;
+            this.isSegmented = isSegmented;
+            this.outputNames = Arrays.stream(outputNames).map(Text::new).toArray(Text[]::new);
+
+            pending = it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending != null;
+        }
+
+        @Override
+        public SegmentedTrack next() {
+            if (pending == null) {
+                throw new NoSuchElementException();
+            }
 
-            Text[] userids = new Text[useridCount];
-            List<MapWritable>[] allSegProps = new List[useridCount];
-            List<List<Point>>[] allPoints = new List[useridCount];
-            int n = 0;
-            while (it.hasNext()) {
-                Tuple2<Tuple2<Text, Double>, Tuple4<Double, Double, Text, Text>> line = it.next();
+            Text userid = pending._1._1;
 
-                Text userid = line._1._1;
-                int current;
-                if (useridOrd.containsKey(userid)) {
-                    current = useridOrd.get(userid);
-                } else {
-                    useridOrd.put(userid, n);
-                    userids[n] = userid;
-                    current = n;
+            List<TrackSegment> segments = new ArrayList<>();
+            TrackSegment.Builder segPoints = new TrackSegment.Builder(outputNames);
+            Text lastTrackId = null;
+            do {
+                Tuple4<Double, Double, Text, Text[]> signal = pending._2;
 
-                    n++;
+                if (isSegmented && !signal._3().equals(lastTrackId)) {
+                    addSegment(segments, segPoints, userid, lastTrackId);
+                    segPoints = new TrackSegment.Builder(outputNames);
+                    lastTrackId = signal._3();
                 }
 
-                List<MapWritable> segProps = allSegProps[current];
-                List<List<Point>> trackPoints = allPoints[current];
-                if (segProps == null) {
-                    segProps = new ArrayList<>();
-                    allSegProps[current] = segProps;
-                    trackPoints = new ArrayList<>();
-                    allPoints[current] = trackPoints;
-                }
+                segPoints.add(signal._1(), signal._2(), pending._1._2, signal._4());
 
-                List<Point> segPoints;
-                String trackId;
-                if (isSegmented) {
-                    trackId = line._2._3().toString();
+                pending = it.hasNext() ? it.next() : null;
+            } while ((pending != null) && pending._1._1.equals(userid));
 
-                    String lastTrackId = null;
-                    MapWritable lastSegment;
-                    if (segProps.size() != 0) {
-                        lastSegment = segProps.get(segProps.size() - 1);
-                        lastTrackId = lastSegment.get(trackidAttr).toString();
-                    }
+            addSegment(segments, segPoints, userid, lastTrackId);
 
-                    if (trackId.equals(lastTrackId)) {
-                        segPoints = trackPoints.get(trackPoints.size() - 1);
-                    } else {
-                        MapWritable props = new MapWritable();
-                        props.put(useridAttr, userid);
-                        props.put(trackidAttr, new Text(trackId));
+            SegmentedTrack trk = new SegmentedTrack(segments.toArray(new TrackSegment[0]), geometryFactory);
 
-                        segProps.add(props);
-                        segPoints = new ArrayList<>();
-                        trackPoints.add(segPoints);
-                    }
-                } else {
-                    if (segProps.size() == 0) {
-                        MapWritable props = new MapWritable();
-                        props.put(useridAttr, userid);
-
-                        segProps.add(props);
-                        segPoints = new ArrayList<>();
-                        trackPoints.add(segPoints);
-                    } else {
-                        segPoints = trackPoints.get(0);
-                    }
-                }
+            MapWritable props = new MapWritable();
+            props.put(useridAttr, userid);
+            trk.setUserData(props);
 
-                Point point = geometryFactory.createPoint(new Coordinate(line._2._2(), line._2._1()));
-                MapWritable pointProps = new MapWritable();
-                String[] row = parser.parseLine(line._2._4().toString());
-                for (Map.Entry<String, Integer> col : _outputColumns.entrySet()) {
-                    pointProps.put(new Text(col.getKey()), new Text(row[col.getValue()]));
-                }
-                pointProps.put(tsAttr, new DoubleWritable(line._1._2));
-                point.setUserData(pointProps);
+            return trk;
+        }
 
-                segPoints.add(point);
+        private void addSegment(List<TrackSegment> segments, TrackSegment.Builder segPoints, Text userid, Text trackId) {
+            if (segPoints.size() == 0) {
+                return;
             }
 
-            List<SegmentedTrack> result = new ArrayList<>(useridCount);
+            TrackSegment segment = segPoints.build(geometryFactory);
 
-            for (n = 0; n < useridCount; n++) {
-                Text userid = userids[n];
-
-                List<List<Point>> points = allPoints[n];
-                TrackSegment[] segments = new TrackSegment[points.size()];
-                for (int i = 0; i < points.size(); i++) {
-                    List<Point> segPoints = points.get(i);
-                    segments[i] = new TrackSegment(segPoints.toArray(new Point[0]), geometryFactory);
-                    segments[i].setUserData(allSegProps[n].get(i));
-                }
-
-                SegmentedTrack trk = new SegmentedTrack(segments, geometryFactory);
-
-                MapWritable props = new MapWritable();
-                props.put(useridAttr, userid);
-                trk.setUserData(props);
-
-                result.add(trk);
+            MapWritable props = new MapWritable();
+            props.put(useridAttr, userid);
+            if (isSegmented) {
+                props.put(trackidAttr, trackId);
             }
+            segment.setUserData(props);
 
-            return result.iterator();
-        }, true);
-
-        return Collections.singletonMap(outputName, output);
+            segments.add(segment);
+        }
     }
 }
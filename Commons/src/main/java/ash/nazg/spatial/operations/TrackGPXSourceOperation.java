@@ -9,25 +9,14 @@ import ash.nazg.config.tdl.Description;
 import ash.nazg.config.tdl.TaskDescriptionLanguage;
 import ash.nazg.spark.Operation;
 import ash.nazg.spatial.SegmentedTrack;
-import ash.nazg.spatial.TrackSegment;
-import io.jenetics.jpx.GPX;
-import io.jenetics.jpx.Track;
-import io.jenetics.jpx.WayPoint;
-import org.apache.commons.codec.Charsets;
-import org.apache.hadoop.io.DoubleWritable;
-import org.apache.hadoop.io.MapWritable;
-import org.apache.hadoop.io.Text;
+import ash.nazg.spatial.StreamingGPXReader;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.Point;
 
-import java.io.ByteArrayInputStream;
-import java.util.*;
-
-import static ash.nazg.spatial.config.ConfigurationParameters.GEN_TRACKID;
-import static ash.nazg.spatial.config.ConfigurationParameters.GEN_USERID;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
 
 @SuppressWarnings("unused")
 public class TrackGPXSourceOperation extends Operation {
@@ -37,7 +26,8 @@ public class TrackGPXSourceOperation extends Operation {
     private String outputName;
 
     @Override
-    @Description("Take GPX fragment file and produce a Track RDD")
+    @Description("Take GPX fragment file and produce a Track RDD. Tracks are parsed one by one, and a file with" +
+            " one track per line may be split by lines")
     public String verb() {
         return VERB;
     }
@@ -78,66 +68,8 @@ public class TrackGPXSourceOperation extends Operation {
 
         final GeometryFactory geometryFactory = new GeometryFactory();
 
-        JavaRDD<SegmentedTrack> output = rdd.flatMap(o -> {
-            List<SegmentedTrack> result = new ArrayList<>();
-
-            Text tsAttr = new Text("_ts");
-            Text useridAttr = new Text(GEN_USERID);
-            Text trackidAttr = new Text(GEN_TRACKID);
-
-            String l = String.valueOf(o);
-
-            GPX gpx = GPX.reader(GPX.Reader.Mode.LENIENT).read(new ByteArrayInputStream(l.getBytes(Charsets.UTF_8)));
-
-            MapWritable props;
-            for (Track g : gpx.getTracks()) {
-                Text userid = new Text(g.getName().orElse(UUID.randomUUID().toString()));
-
-                List<io.jenetics.jpx.TrackSegment> segments = g.getSegments();
-                int segmentsSize = segments.size();
-                TrackSegment[] ts = new TrackSegment[segmentsSize];
-
-                for (int i = 0; i < segmentsSize; i++) {
-                    io.jenetics.jpx.TrackSegment t = segments.get(i);
-
-                    List<WayPoint> points = t.getPoints();
-                    int pointsSize = points.size();
-                    Point[] p = new Point[pointsSize];
-
-                    for (int j = 0; j < pointsSize; j++) {
-                        WayPoint wp = points.get(j);
-                        Point pt = geometryFactory.createPoint(new Coordinate(wp.getLongitude().doubleValue(), wp.getLatitude().doubleValue()));
-
-                        props = new MapWritable();
-                        props.put(tsAttr, new DoubleWritable(wp.getTime().isPresent() ? wp.getTime().get().toEpochSecond() : j));
-                        pt.setUserData(props);
-
-                        p[j] = pt;
-                    }
-
-                    TrackSegment seg = new TrackSegment(p, geometryFactory);
-
-                    props = new MapWritable();
-                    props.put(trackidAttr, new Text(Integer.toString(i)));
-                    props.put(useridAttr, userid);
-                    seg.setUserData(props);
-
-                    ts[i] = seg;
-                }
-
-                if (segmentsSize > 0) {
-                    SegmentedTrack st = new SegmentedTrack(ts, geometryFactory);
-
-                    props = new MapWritable();
-                    props.put(useridAttr, userid);
-                    st.setUserData(props);
-
-                    result.add(st);
-                }
-            }
-
-            return result.iterator();
-        });
+        // tracks are parsed one by one while the result is consumed
+        JavaRDD<SegmentedTrack> output = rdd.flatMap(o -> new StreamingGPXReader(String.valueOf(o), geometryFactory));
 
         return Collections.singletonMap(outputName, output);
     }
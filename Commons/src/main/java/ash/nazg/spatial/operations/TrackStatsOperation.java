@@ -8,17 +8,17 @@ import ash.nazg.config.InvalidConfigValueException;
 import ash.nazg.config.tdl.Description;
 import ash.nazg.config.tdl.TaskDescriptionLanguage;
 import ash.nazg.spark.Operation;
+import ash.nazg.spatial.GeoMath;
 import ash.nazg.spatial.SegmentedTrack;
 import ash.nazg.spatial.TrackSegment;
-import net.sf.geographiclib.Geodesic;
-import net.sf.geographiclib.GeodesicMask;
-import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
-import org.locationtech.jts.geom.Geometry;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.SizeEstimator;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Point;
 import scala.Tuple2;
@@ -39,12 +39,25 @@ public class TrackStatsOperation extends Operation {
     public static final String OP_PINNING_MODE = "pinning.mode";
     @Description("By default, pin to points supplied by an external input")
     public static final PinningMode DEF_PINNING_MODE = PinningMode.INPUT_PINS;
+    @Description("Method to calculate distances between track points and to pins")
+    public static final String OP_DISTANCE_MODE = "distance.mode";
+    @Description("By default, calculate exact geodesic distances")
+    public static final DistanceMode DEF_DISTANCE_MODE = DistanceMode.EXACT;
+    @Description("Pins are broadcast to all executors if their estimated size in bytes is under this limit, and joined" +
+            " with tracks by a shuffle otherwise")
+    public static final String OP_PINS_BROADCAST_LIMIT = "pins.broadcast.limit";
+    @Description("By default, broadcast pins that fit in 32 MiB")
+    public static final Long DEF_PINS_BROADCAST_LIMIT = 32L * 1024L * 1024L;
+
+    private static final int PINS_SAMPLE_SIZE = 100;
 
     private String inputName;
     private String outputName;
 
     private String pinsName;
     private PinningMode pinningMode;
+    private DistanceMode distanceMode;
+    private long pinsBroadcastLimit;
 
     @Override
     @Description("Take a Track RDD and augment its Points', TrackSegments' and SegmentedTracks' properties with statistics")
@@ -57,6 +70,8 @@ public class TrackStatsOperation extends Operation {
         return new TaskDescriptionLanguage.Operation(verb(),
                 new TaskDescriptionLanguage.DefBase[]{
                         new TaskDescriptionLanguage.Definition(OP_PINNING_MODE, PinningMode.class, DEF_PINNING_MODE),
+                        new TaskDescriptionLanguage.Definition(OP_DISTANCE_MODE, DistanceMode.class, DEF_DISTANCE_MODE),
+                        new TaskDescriptionLanguage.Definition(OP_PINS_BROADCAST_LIMIT, Long.class, DEF_PINS_BROADCAST_LIMIT),
                 },
 
                 new TaskDescriptionLanguage.OpStreams(
@@ -93,18 +108,24 @@ public class TrackStatsOperation extends Operation {
         outputName = describedProps.namedOutputs.get(RDD_OUTPUT_TRACKS);
 
         pinningMode = describedProps.defs.getTyped(OP_PINNING_MODE);
+        distanceMode = describedProps.defs.getTyped(OP_DISTANCE_MODE);
+        pinsBroadcastLimit = describedProps.defs.getTyped(OP_PINS_BROADCAST_LIMIT);
     }
 
     @Override
     public Map<String, JavaRDDLike> getResult(Map<String, JavaRDDLike> input) {
-        JavaPairRDD<Point, SegmentedTrack> inp;
+        final PinningMode _pinningMode = pinningMode;
+        final boolean _fast = (distanceMode == DistanceMode.FAST);
 
+        JavaRDD<SegmentedTrack> tracksInput = (JavaRDD<SegmentedTrack>) input.get(inputName);
+
+        JavaRDD<SegmentedTrack> output;
         if (pinningMode == PinningMode.INPUT_PINS) {
             JavaPairRDD<Text, Point> pins = ((JavaRDD<Point>) input.get(pinsName))
                     .mapPartitionsToPair(it -> {
                         List<Tuple2<Text, Point>> result = new ArrayList<>();
 
-                        Text useridAttr = new Text("_userid");
+                        Text useridAttr = new Text(GEN_USERID);
 
                         while (it.hasNext()) {
                             Point next = it.next();
@@ -115,169 +136,246 @@ public class TrackStatsOperation extends Operation {
                         return result.iterator();
                     });
 
-            JavaPairRDD<Text, SegmentedTrack> tracks = ((JavaRDD<SegmentedTrack>) input.get(inputName))
-                    .mapPartitionsToPair(it -> {
-                        List<Tuple2<Text, SegmentedTrack>> result = new ArrayList<>();
+            // pins are read once for the count, and then sampled and collected from the cache
+            pins = pins.persist(StorageLevel.MEMORY_AND_DISK());
+            long pinsCount = pins.count();
+            List<Tuple2<Text, Point>> sample = pins.take(PINS_SAMPLE_SIZE);
+            long estimatedSize = sample.isEmpty() ? 0L : SizeEstimator.estimate(sample) / sample.size() * pinsCount;
+
+            if (estimatedSize <= pinsBroadcastLimit) {
+                HashMap<Text, List<Point>> pinsByUserid = new HashMap<>();
+                for (Tuple2<Text, Point> pin : pins.collect()) {
+                    pinsByUserid.computeIfAbsent(pin._1, k -> new ArrayList<>()).add(pin._2);
+                }
+                final Broadcast<HashMap<Text, List<Point>>> pinsBroadcast = ctx.broadcast(pinsByUserid);
+                pins.unpersist(false);
+
+                output = tracksInput
+                        .mapPartitions(it -> {
+                            List<SegmentedTrack> result = new ArrayList<>();
+
+                            GeometryFactory geometryFactory = new GeometryFactory();
+                            Text useridAttr = new Text(GEN_USERID);
+                            HashMap<Text, List<Point>> userPins = pinsBroadcast.getValue();
+
+                            while (it.hasNext()) {
+                                SegmentedTrack trk = it.next();
+
+                                List<Point> trkPins = userPins.get((Text) ((MapWritable) trk.getUserData()).get(useridAttr));
+                                if (trkPins != null) {
+                                    for (int i = 0; i < trkPins.size(); i++) {
+                                        // stats are written into the track, so each of the other pins gets a copy
+                                        SegmentedTrack pinned = (i == 0) ? trk : (SegmentedTrack) trk.copy();
+
+                                        result.add(stats(pinned, trkPins.get(i), _pinningMode, _fast, geometryFactory));
+                                    }
+                                }
+                            }
 
-                        Text useridAttr = new Text("_userid");
+                            return result.iterator();
+                        });
+            } else {
+                // the join is lazy and would keep too many pins cached until the end of the task, so it reads them
+                // once more instead
+                pins.unpersist(false);
 
-                        while (it.hasNext()) {
-                            SegmentedTrack next = it.next();
+                JavaPairRDD<Text, SegmentedTrack> tracks = tracksInput
+                        .mapPartitionsToPair(it -> {
+                            List<Tuple2<Text, SegmentedTrack>> result = new ArrayList<>();
 
-                            result.add(new Tuple2<>((Text) ((MapWritable) next.getUserData()).get(useridAttr), next));
-                        }
+                            Text useridAttr = new Text(GEN_USERID);
 
-                        return result.iterator();
-                    });
+                            while (it.hasNext()) {
+                                SegmentedTrack next = it.next();
 
-            inp = pins.join(tracks)
-                    .mapToPair(Tuple2::_2);
-        } else {
-            inp = ((JavaRDD<SegmentedTrack>) input.get(inputName))
-                    .mapToPair(t -> new Tuple2<>(null, t));
-        }
-
-        PinningMode _pinningMode = pinningMode;
-
-        final GeometryFactory geometryFactory = new GeometryFactory();
-
-        JavaRDD<SegmentedTrack> output = inp
-                .mapPartitions(it -> {
-                    List<SegmentedTrack> result = new ArrayList<>();
-
-                    Text tsAttr = new Text("_ts");
-                    Text durationAttr = new Text(GEN_DURATION);
-                    Text distanceAttr = new Text(GEN_DISTANCE);
-                    Text pointsAttr = new Text(GEN_POINTS);
-                    Text radiusAttr = new Text(GEN_RADIUS);
-
-                    while (it.hasNext()) {
-                        Tuple2<Point, SegmentedTrack> o = it.next();
-
-                        SegmentedTrack trk = o._2;
-
-                        Point trkPin = null;
-                        Point segPin = null;
-                        int numSegs = trk.getNumGeometries();
-                        TrackSegment[] segs = new TrackSegment[numSegs];
-                        int augPoints = 0;
-                        double augDistance = 0.D;
-                        double augRadius = 0.D;
-                        long augDuration = 0L;
-                        for (int j = 0; j < numSegs; j++) {
-                            TrackSegment augSeg;
-
-                            TrackSegment seg = (TrackSegment) trk.getGeometryN(j);
-                            Geometry[] wayPoints = seg.geometries();
-                            int segPoints = wayPoints.length;
-                            double segDistance = 0.D;
-                            double segRadius = 0.D;
-                            long segDuration = 0L;
-
-                            switch (_pinningMode) {
-                                case SEGMENT_CENTROIDS: {
-                                    if (j == 0) {
-                                        trkPin = trk.getCentroid();
-                                    }
-                                    segPin = seg.getCentroid();
-                                    break;
-                                }
-                                case TRACK_CENTROIDS: {
-                                    if (j == 0) {
-                                        trkPin = trk.getCentroid();
-                                        segPin = trkPin;
-                                    }
-                                    break;
-                                }
-                                case SEGMENT_STARTS: {
-                                    segPin = (Point) wayPoints[0];
-                                    if (j == 0) {
-                                        trkPin = segPin;
-                                    }
-                                    break;
-                                }
-                                case TRACK_STARTS: {
-                                    if (j == 0) {
-                                        trkPin = (Point) wayPoints[0];
-                                        segPin = trkPin;
-                                    }
-                                    break;
-                                }
-                                default: {
-                                    if (j == 0) {
-                                        trkPin = o._1;
-                                        segPin = trkPin;
-                                    }
-                                    break;
-                                }
+                                result.add(new Tuple2<>((Text) ((MapWritable) next.getUserData()).get(useridAttr), next));
                             }
 
-                            double pntRadius;
-                            Point prev = (Point) wayPoints[0];
-                            for (int i = 0; i < segPoints; i++) {
-                                Geometry wayPoint = wayPoints[i];
-                                Point point = (Point) wayPoint;
-
-                                MapWritable props = (MapWritable) point.getUserData();
-                                MapWritable prevProps = (MapWritable) prev.getUserData();
-
-                                segDuration += ((DoubleWritable) props.get(tsAttr)).get() - ((DoubleWritable) prevProps.get(tsAttr)).get();
-                                segDistance += Geodesic.WGS84.Inverse(prev.getY(), prev.getX(),
-                                        point.getY(), point.getX(), GeodesicMask.DISTANCE).s12;
-
-                                pntRadius = Geodesic.WGS84.Inverse(segPin.getY(), segPin.getX(),
-                                        point.getY(), point.getX(), GeodesicMask.DISTANCE).s12;
-                                props.put(radiusAttr, new Text(String.valueOf(pntRadius)));
-                                segRadius = Math.max(segRadius, pntRadius);
-
-                                augRadius = Math.max(augRadius, Geodesic.WGS84.Inverse(trkPin.getY(), trkPin.getX(),
-                                        point.getY(), point.getX(), GeodesicMask.DISTANCE).s12);
-
-                                if ((_pinningMode == PinningMode.SEGMENT_CENTROIDS) || (_pinningMode == PinningMode.SEGMENT_STARTS)) {
-                                    props.put(durationAttr, new Text(String.valueOf(segDuration)));
-                                    props.put(distanceAttr, new Text(String.valueOf(segDistance)));
-                                    props.put(pointsAttr, new Text(String.valueOf(i + 1)));
-                                } else {
-                                    props.put(durationAttr, new Text(String.valueOf(augDuration + segDuration)));
-                                    props.put(distanceAttr, new Text(String.valueOf(augDistance + segDistance)));
-                                    props.put(pointsAttr, new Text(String.valueOf(augPoints + i + 1)));
-                                }
+                            return result.iterator();
+                        });
 
-                                prev = point;
-                            }
+                output = pins.join(tracks)
+                        .mapPartitions(it -> {
+                            List<SegmentedTrack> result = new ArrayList<>();
 
-                            augSeg = new TrackSegment(wayPoints, geometryFactory);
+                            GeometryFactory geometryFactory = new GeometryFactory();
 
-                            augDuration += segDuration;
-                            augDistance += segDistance;
-                            augPoints += segPoints;
+                            while (it.hasNext()) {
+                                Tuple2<Point, SegmentedTrack> o = it.next()._2;
 
-                            MapWritable segProps = (MapWritable) seg.getUserData();
-                            segProps.put(durationAttr, new Text(String.valueOf(segDuration)));
-                            segProps.put(distanceAttr, new Text(String.valueOf(segDistance)));
-                            segProps.put(pointsAttr, new Text(String.valueOf(segPoints)));
-                            segProps.put(radiusAttr, new Text(String.valueOf(segRadius)));
-                            augSeg.setUserData(segProps);
+                                result.add(stats(o._2, o._1, _pinningMode, _fast, geometryFactory));
+                            }
 
-                            segs[j] = augSeg;
+                            return result.iterator();
+                        });
+            }
+        } else {
+            output = tracksInput
+                    .mapPartitions(it -> {
+                        List<SegmentedTrack> result = new ArrayList<>();
+
+                        GeometryFactory geometryFactory = new GeometryFactory();
+
+                        while (it.hasNext()) {
+                            result.add(stats(it.next(), null, _pinningMode, _fast, geometryFactory));
                         }
 
-                        SegmentedTrack aug = new SegmentedTrack(segs, geometryFactory);
+                        return result.iterator();
+                    });
+        }
 
-                        MapWritable augProps = (MapWritable) trk.getUserData();
-                        augProps.put(durationAttr, new Text(String.valueOf(augDuration)));
-                        augProps.put(distanceAttr, new Text(String.valueOf(augDistance)));
-                        augProps.put(pointsAttr, new Text(String.valueOf(augPoints)));
-                        augProps.put(radiusAttr, new Text(String.valueOf(augRadius)));
-                        aug.setUserData(augProps);
+        return Collections.singletonMap(outputName, output);
+    }
 
-                        result.add(aug);
+    /**
+     * Single pass over packed columns of each TrackSegment. Point, segment and track statistics are accumulated
+     * together, and the distance to the pin is computed only once per Point if segment and track share the pin
+     */
+    static SegmentedTrack stats(SegmentedTrack trk, Point inputPin, PinningMode pinningMode, boolean fast,
+                                GeometryFactory geometryFactory) {
+        Text durationAttr = new Text(GEN_DURATION);
+        Text distanceAttr = new Text(GEN_DISTANCE);
+        Text pointsAttr = new Text(GEN_POINTS);
+        Text radiusAttr = new Text(GEN_RADIUS);
+
+        boolean segmentPins = (pinningMode == PinningMode.SEGMENT_CENTROIDS) || (pinningMode == PinningMode.SEGMENT_STARTS);
+
+        int numSegs = trk.getNumGeometries();
+        TrackSegment[] segs = new TrackSegment[numSegs];
+
+        double trkPinLat = 0.D;
+        double trkPinLon = 0.D;
+        switch (pinningMode) {
+            case SEGMENT_CENTROIDS:
+            case TRACK_CENTROIDS: {
+                // centroid of a Track is the average of its Points
+                int count = 0;
+                for (int j = 0; j < numSegs; j++) {
+                    TrackSegment seg = (TrackSegment) trk.getGeometryN(j);
+                    double[] lat = seg.lats();
+                    double[] lon = seg.lons();
+                    for (int i = 0; i < lat.length; i++) {
+                        trkPinLat += lat[i];
+                        trkPinLon += lon[i];
                     }
+                    count += lat.length;
+                }
+                trkPinLat /= count;
+                trkPinLon /= count;
+                break;
+            }
+            case SEGMENT_STARTS:
+            case TRACK_STARTS: {
+                TrackSegment seg = (TrackSegment) trk.getGeometryN(0);
+                trkPinLat = seg.getLat(0);
+                trkPinLon = seg.getLon(0);
+                break;
+            }
+            default: {
+                trkPinLat = inputPin.getY();
+                trkPinLon = inputPin.getX();
+                break;
+            }
+        }
+
+        int augPoints = 0;
+        double augDistance = 0.D;
+        double augRadius = 0.D;
+        long augDuration = 0L;
+        for (int j = 0; j < numSegs; j++) {
+            TrackSegment seg = (TrackSegment) trk.getGeometryN(j);
+            double[] lat = seg.lats();
+            double[] lon = seg.lons();
+            double[] ts = seg.timestamps();
+            int segPoints = lat.length;
+
+            double segPinLat = trkPinLat;
+            double segPinLon = trkPinLon;
+            if (pinningMode == PinningMode.SEGMENT_CENTROIDS) {
+                segPinLat = 0.D;
+                segPinLon = 0.D;
+                for (int i = 0; i < segPoints; i++) {
+                    segPinLat += lat[i];
+                    segPinLon += lon[i];
+                }
+                segPinLat /= segPoints;
+                segPinLon /= segPoints;
+            } else if (pinningMode == PinningMode.SEGMENT_STARTS) {
+                segPinLat = lat[0];
+                segPinLon = lon[0];
+            }
+            boolean sharedPin = (segPinLat == trkPinLat) && (segPinLon == trkPinLon);
+
+            double[] pntDuration = new double[segPoints];
+            double[] pntDistance = new double[segPoints];
+            double[] pntPoints = new double[segPoints];
+            double[] pntRadius = new double[segPoints];
+
+            double segDistance = 0.D;
+            double segRadius = 0.D;
+            long segDuration = 0L;
+            for (int i = 0; i < segPoints; i++) {
+                if (i > 0) {
+                    segDuration += ts[i] - ts[i - 1];
+                    segDistance += fast
+                            ? GeoMath.approximateDistance(lat[i - 1], lon[i - 1], lat[i], lon[i])
+                            : GeoMath.distance(lat[i - 1], lon[i - 1], lat[i], lon[i]);
+                }
+
+                double radius = fast
+                        ? GeoMath.approximateDistance(segPinLat, segPinLon, lat[i], lon[i])
+                        : GeoMath.distance(segPinLat, segPinLon, lat[i], lon[i]);
+                pntRadius[i] = radius;
+                segRadius = Math.max(segRadius, radius);
+
+                if (sharedPin) {
+                    augRadius = Math.max(augRadius, radius);
+                } else if (fast) {
+                    augRadius = Math.max(augRadius, GeoMath.approximateDistance(trkPinLat, trkPinLon, lat[i], lon[i]));
+                } else {
+                    augRadius = GeoMath.distanceOver(trkPinLat, trkPinLon, lat[i], lon[i], augRadius);
+                }
+
+                if (segmentPins) {
+                    pntDuration[i] = segDuration;
+                    pntDistance[i] = segDistance;
+                    pntPoints[i] = i + 1;
+                } else {
+                    pntDuration[i] = augDuration + segDuration;
+                    pntDistance[i] = augDistance + segDistance;
+                    pntPoints[i] = augPoints + i + 1;
+                }
+            }
+
+            seg.setIntegral(durationAttr, pntDuration);
+            seg.setNumeric(distanceAttr, pntDistance);
+            seg.setIntegral(pointsAttr, pntPoints);
+            seg.setNumeric(radiusAttr, pntRadius);
+
+            augDuration += segDuration;
+            augDistance += segDistance;
+            augPoints += segPoints;
+
+            MapWritable segProps = (seg.getUserData() != null) ? new MapWritable((MapWritable) seg.getUserData()) : new MapWritable();
+            segProps.put(durationAttr, new Text(String.valueOf(segDuration)));
+            segProps.put(distanceAttr, new Text(String.valueOf(segDistance)));
+            segProps.put(pointsAttr, new Text(String.valueOf(segPoints)));
+            segProps.put(radiusAttr, new Text(String.valueOf(segRadius)));
+            seg.setUserData(segProps);
+
+            segs[j] = seg;
+        }
 
-                    return result.iterator();
-                });
+        SegmentedTrack aug = new SegmentedTrack(segs, geometryFactory);
 
-        return Collections.singletonMap(outputName, output);
+        MapWritable augProps = (trk.getUserData() != null) ? new MapWritable((MapWritable) trk.getUserData()) : new MapWritable();
+        augProps.put(durationAttr, new Text(String.valueOf(augDuration)));
+        augProps.put(distanceAttr, new Text(String.valueOf(augDistance)));
+        augProps.put(pointsAttr, new Text(String.valueOf(augPoints)));
+        augProps.put(radiusAttr, new Text(String.valueOf(augRadius)));
+        aug.setUserData(augProps);
+
+        return aug;
     }
 
     public enum PinningMode {
@@ -292,4 +390,12 @@ public class TrackStatsOperation extends Operation {
         @Description("Pin both SegmentedTracks and TrackSegments by externally supplied pin points")
         INPUT_PINS
     }
+
+    public enum DistanceMode {
+        @Description("Exact geodesic distance on WGS84 ellipsoid")
+        EXACT,
+        @Description("Local flat-earth approximation, within 0.02% of exact distance. Exact geodesic is still used" +
+                " for distances over 50 km and near the poles")
+        FAST
+    }
 }
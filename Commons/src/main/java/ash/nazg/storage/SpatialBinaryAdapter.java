@@ -0,0 +1,23 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.storage;
+
+import ash.nazg.config.tdl.Description;
+
+import java.util.regex.Pattern;
+
+public abstract class SpatialBinaryAdapter implements StorageAdapter {
+    protected static final Pattern PATTERN = Pattern.compile("^wkb:(.+)");
+
+    @Description("Spatial binary adapter, which stores Point, Polygon and Track objects as block-compressed" +
+            " SequenceFiles of WKB geometries with typed properties, on any Hadoop filesystem")
+    public Pattern proto() {
+        return PATTERN;
+    }
+
+    protected static String hadoopPath(String path) {
+        return path.split(":", 2)[1];
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.storage.input;
+
+import ash.nazg.config.InvalidConfigValueException;
+import ash.nazg.config.WrapperConfig;
+import ash.nazg.storage.InputAdapter;
+import ash.nazg.storage.SpatialBinaryAdapter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.api.java.JavaSparkContext;
+
+@SuppressWarnings("unused")
+public class SpatialBinaryInput extends SpatialBinaryAdapter implements InputAdapter {
+    private int partCount;
+
+    private JavaSparkContext ctx;
+
+    @Override
+    public void setProperties(String name, WrapperConfig wrapperConfig) throws InvalidConfigValueException {
+        partCount = wrapperConfig.inputParts(name);
+    }
+
+    @Override
+    public void setContext(JavaSparkContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * @return RDD of raw records, to be decoded by spatialBinarySource operation. SequenceFiles are split at their
+     * sync marks, so each block is read and decompressed by one partition
+     */
+    @Override
+    public JavaRDDLike load(String path) {
+        return ctx.sequenceFile(hadoopPath(path), NullWritable.class, BytesWritable.class, Math.max(partCount, 1))
+                // the reader reuses its Writable
+                .map(t -> t._2.copyBytes());
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.storage.output;
+
+import ash.nazg.config.InvalidConfigValueException;
+import ash.nazg.config.WrapperConfig;
+import ash.nazg.spatial.SpatialBinaryCodec;
+import ash.nazg.storage.OutputAdapter;
+import ash.nazg.storage.SpatialBinaryAdapter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import scala.Tuple2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+@SuppressWarnings("unused")
+public class SpatialBinaryOutput extends SpatialBinaryAdapter implements OutputAdapter {
+    private Class<? extends CompressionCodec> codec;
+
+    @Override
+    public void setProperties(String outputName, WrapperConfig wrapperConfig) throws InvalidConfigValueException {
+        String codecName = wrapperConfig.getOutputProperty("wkb.codec", outputName, DefaultCodec.class.getName());
+
+        try {
+            codec = Class.forName(codecName).asSubclass(CompressionCodec.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new InvalidConfigValueException("Compression codec '" + codecName + "' of the output '" + outputName + "' is not available", e);
+        }
+    }
+
+    @Override
+    public void save(String path, JavaRDDLike rdd) {
+        Job job;
+        try {
+            job = Job.getInstance(rdd.context().hadoopConfiguration());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        FileOutputFormat.setCompressOutput(job, true);
+        FileOutputFormat.setOutputCompressorClass(job, codec);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+
+        ((JavaRDD<Object>) rdd).mapPartitionsToPair(SpatialBinaryOutput::encode)
+                .saveAsNewAPIHadoopFile(hadoopPath(path), NullWritable.class, BytesWritable.class, SequenceFileOutputFormat.class, job.getConfiguration());
+    }
+
+    private static Iterator<Tuple2<NullWritable, BytesWritable>> encode(Iterator<Object> it) {
+        SpatialBinaryCodec spatialCodec = new SpatialBinaryCodec(new GeometryFactory());
+
+        return new Iterator<Tuple2<NullWritable, BytesWritable>>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Tuple2<NullWritable, BytesWritable> next() {
+                Object o = it.next();
+                if (!(o instanceof Geometry)) {
+                    throw new IllegalArgumentException("Spatial binary output accepts only spatial objects, but got " + o.getClass().getName());
+                }
+
+                try {
+                    return new Tuple2<>(NullWritable.get(), new BytesWritable(spatialCodec.encode((Geometry) o)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.uber.h3core.H3Core;
+import com.uber.h3core.util.GeoCoord;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CellBoundaryCacheTest {
+    @Before
+    public void clearCache() {
+        // the cache is shared by all tests in the JVM
+        CellBoundaryCache.clear();
+    }
+
+    @Test
+    public void boundaryCacheTest() throws Exception {
+        try (JavaSparkContext ctx = new JavaSparkContext("local", "test")) {
+            H3Core h3 = H3Core.newInstance();
+            GeometryFactory factory = new GeometryFactory();
+
+            CellBoundaryCache.Metrics metrics = new CellBoundaryCache.Metrics(ctx);
+            CellBoundaryCache.Lookup lookup = metrics.lookup();
+
+            long cell = h3.geoToH3(-33.8568, 151.2153, 14);
+
+            Polygon first = lookup.get(cell).toPolygon(factory);
+            Polygon second = lookup.get(cell).toPolygon(factory);
+            assertNotSame(first, second);
+            assertSame(first.getExteriorRing().getCoordinateSequence(), second.getExteriorRing().getCoordinateSequence());
+            assertTrue(first.equalsExact(second));
+
+            List<GeoCoord> geo = h3.h3ToGeoBoundary(cell);
+            Coordinate[] coordinates = first.getCoordinates();
+            assertEquals(geo.size() + 1, coordinates.length);
+            for (int i = 0; i < geo.size(); i++) {
+                assertEquals(geo.get(i).lng, coordinates[i].x, 0.D);
+                assertEquals(geo.get(i).lat, coordinates[i].y, 0.D);
+            }
+
+            CellBoundaryCache.CellBoundary boundary = lookup.get(cell);
+            assertEquals(first.getCentroid().getY(), boundary.getCentroidLat(), 0.D);
+            assertEquals(first.getCentroid().getX(), boundary.getCentroidLon(), 0.D);
+
+            // the cached boundary can't be changed in place, neither directly nor through its coordinates, and
+            // copies of a Polygon are mutable
+            Polygon expected = (Polygon) first.copy();
+            try {
+                first.getExteriorRing().getCoordinateSequence().setOrdinate(0, 0, 0.D);
+                fail();
+            } catch (UnsupportedOperationException ignored) {
+            }
+            first.getCoordinates()[0].x = 0.D;
+            first.getExteriorRing().getCoordinateN(0).x = 0.D;
+            assertTrue(expected.equalsExact(boundary.toPolygon(factory)));
+
+            Polygon copy = (Polygon) first.copy();
+            copy.normalize();
+            copy.getExteriorRing().getCoordinateSequence().setOrdinate(0, 0, 0.D);
+            assertTrue(expected.equalsExact(boundary.toPolygon(factory)));
+
+            lookup.report();
+            assertEquals(2L, metrics.getHits());
+            assertEquals(1L, metrics.getMisses());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import net.sf.geographiclib.Geodesic;
+import net.sf.geographiclib.GeodesicData;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GeoMathTest {
+    @Test
+    public void fastDistanceTest() {
+        Random random = new Random(1L);
+
+        for (int i = 0; i < 200_000; i++) {
+            double lat1 = (random.nextDouble() * 2.D - 1.D) * GeoMath.FAST_MAX_LATITUDE;
+            double lon1 = (random.nextDouble() * 2.D - 1.D) * 180.D;
+            double distance = 1.D + random.nextDouble() * (GeoMath.FAST_RANGE - 1.D);
+
+            GeodesicData gd = Geodesic.WGS84.Direct(lat1, lon1, random.nextDouble() * 360.D, distance);
+            if (Math.abs(gd.lat2) > GeoMath.FAST_MAX_LATITUDE) {
+                continue;
+            }
+
+            double fast = GeoMath.fastDistance(lat1, lon1, gd.lat2, gd.lon2);
+            assertEquals(distance, fast, distance * GeoMath.FAST_ERROR);
+        }
+    }
+
+    @Test
+    public void beyondTest() {
+        Random random = new Random(2L);
+
+        for (int i = 0; i < 200_000; i++) {
+            double lat1 = (random.nextDouble() * 2.D - 1.D) * 90.D;
+            double lon1 = (random.nextDouble() * 2.D - 1.D) * 180.D;
+            double lat2 = (random.nextDouble() * 2.D - 1.D) * 90.D;
+            double lon2 = lon1 + (random.nextDouble() * 2.D - 1.D) * ((i % 2 == 0) ? 1.D : 180.D);
+
+            double exact = Geodesic.WGS84.Inverse(lat1, lon1, lat2, lon2).s12;
+
+            assertFalse(GeoMath.beyond(lat1, lon1, lat2, lon2, exact));
+        }
+
+        // antimeridian
+        assertFalse(GeoMath.beyond(10.D, 179.999D, 10.D, -179.999D, 300.D));
+        assertTrue(GeoMath.beyond(10.D, 179.99D, 10.D, -179.99D, 300.D));
+    }
+
+    @Test
+    public void distanceWithinTest() {
+        Random random = new Random(3L);
+
+        for (int i = 0; i < 200_000; i++) {
+            double lat1 = (random.nextDouble() * 2.D - 1.D) * 89.D;
+            double lon1 = (random.nextDouble() * 2.D - 1.D) * 180.D;
+            double radius = Math.pow(10.D, 1.D + random.nextDouble() * 5.D);
+            // mostly near the radius boundary
+            double distance = radius * (1.D + (random.nextDouble() * 2.D - 1.D) * ((i % 2 == 0) ? 1.E-3 : 1.D));
+
+            GeodesicData gd = Geodesic.WGS84.Direct(lat1, lon1, random.nextDouble() * 360.D, distance);
+            double exact = Geodesic.WGS84.Inverse(lat1, lon1, gd.lat2, gd.lon2).s12;
+
+            double within = GeoMath.distanceWithin(lat1, lon1, gd.lat2, gd.lon2, radius);
+            if (exact <= radius) {
+                assertEquals(exact, within, exact * GeoMath.FAST_ERROR);
+            } else {
+                assertTrue(Double.isNaN(within));
+            }
+
+            double bound = radius * random.nextDouble() * 2.D;
+            assertEquals(Math.max(bound, exact), GeoMath.distanceOver(lat1, lon1, gd.lat2, gd.lon2, bound), 1.E-6);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import ash.nazg.spark.TestRunner;
+import com.uber.h3core.H3Core;
+import org.apache.hadoop.io.Text;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.junit.Test;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class H3CoverageTest {
+    @Test
+    public void compactCoverageTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/test.h3.coverage.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            H3Core h3 = H3Core.newInstance();
+
+            Polygon polygon = ((JavaRDD<Polygon>) ret.get("polygons")).first();
+            Set<Long> expected = new HashSet<>();
+            for (Long hash : CoverageTiles.polyfill(polygon, 13)) {
+                expected.addAll(h3.kRing(hash, 1));
+            }
+
+            Set<Long> compact = coverage(h3, (JavaRDD<Text>) ret.get("compact"));
+            assertTrue(compact.size() < expected.size());
+            assertEquals(expected, uncompact(h3, compact));
+
+            Set<Long> tiled = coverage(h3, (JavaRDD<Text>) ret.get("tiled"));
+            assertEquals(compact, tiled);
+        }
+    }
+
+    @Test
+    public void uniformCoverageTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/test.h3.coverage.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            Polygon polygon = ((JavaRDD<Polygon>) ret.get("polygons")).first();
+            Set<Long> expected = new HashSet<>(CoverageTiles.polyfill(polygon, 13));
+
+            List<Text> uniform = ((JavaRDD<Text>) ret.get("uniform")).collect();
+            assertEquals(expected.size(), uniform.size());
+            assertEquals(expected, uniform.stream().map(t -> Long.parseLong(t.toString())).collect(Collectors.toSet()));
+
+            List<Text> tiled = ((JavaRDD<Text>) ret.get("uniform_tiled")).collect();
+            assertEquals(expected.size(), tiled.size());
+            assertEquals(expected, tiled.stream().map(t -> Long.parseLong(t.toString())).collect(Collectors.toSet()));
+        }
+    }
+
+    private static Set<Long> coverage(H3Core h3, JavaRDD<Text> rdd) {
+        Set<Long> ret = new HashSet<>();
+        for (Text line : rdd.collect()) {
+            String[] row = line.toString().split("\t");
+
+            long hash = Long.parseLong(row[0], 16);
+            int level = Integer.parseInt(row[1]);
+            assertEquals(h3.h3GetResolution(hash), level);
+            assertTrue((level >= 9) && (level <= 13));
+
+            assertTrue(ret.add(hash));
+        }
+        return ret;
+    }
+
+    private static Set<Long> uncompact(H3Core h3, Set<Long> compact) {
+        Set<Long> ret = new HashSet<>();
+        for (Long hash : compact) {
+            for (Long child : h3.h3ToChildren(hash, 13)) {
+                assertTrue(ret.add(child));
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.uber.h3core.H3Core;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LongIntMapTest {
+    @Test
+    public void cellIndexTest() throws Exception {
+        H3Core h3 = H3Core.newInstance();
+
+        List<Long> cells = h3.kRing(h3.geoToH3(-33.8568, 151.2153, 12), 20);
+
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < cells.size(); i++) {
+            map.put(cells.get(i), i);
+            expected.put(cells.get(i), i);
+        }
+        map.put(0L, 42);
+        expected.put(0L, 42);
+        map.put(cells.get(7), 7000);
+        expected.put(cells.get(7), 7000);
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            assertEquals((int) e.getValue(), map.get(e.getKey()));
+        }
+        assertEquals(LongIntMap.MISSING, map.get(h3.geoToH3(51.5, -0.1, 12)));
+
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        assertArrayEquals(expected.keySet().stream().mapToLong(Long::longValue).sorted().toArray(), keys);
+
+        CellPartitioner partitioner = new CellPartitioner(16);
+        int[] counts = new int[16];
+        for (Long cell : cells) {
+            counts[partitioner.getPartition(cell)]++;
+        }
+        for (int count : counts) {
+            assertEquals(cells.size() / 16.D, count, cells.size() / 16.D / 2.D);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.*;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PolygonCellIndexTest {
+    private static final int POINTS = 20_000;
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    @Test
+    public void concavePolygonTest() {
+        // a U-shaped block, about 30 by 30 km, with a notch from the north
+        Polygon concave = factory.createPolygon(new Coordinate[]{
+                new Coordinate(151.20, -33.90),
+                new Coordinate(151.50, -33.90),
+                new Coordinate(151.50, -33.60),
+                new Coordinate(151.40, -33.60),
+                new Coordinate(151.40, -33.80),
+                new Coordinate(151.30, -33.80),
+                new Coordinate(151.30, -33.60),
+                new Coordinate(151.20, -33.60),
+                new Coordinate(151.20, -33.90),
+        });
+
+        assertSameAsContains(concave, 1L);
+    }
+
+    @Test
+    public void polygonWithHoleTest() {
+        LinearRing shell = factory.createLinearRing(new Coordinate[]{
+                new Coordinate(139.60, 35.50),
+                new Coordinate(140.00, 35.50),
+                new Coordinate(140.00, 35.85),
+                new Coordinate(139.60, 35.85),
+                new Coordinate(139.60, 35.50),
+        });
+        // a hole off the center, with interior cells around it on every side
+        LinearRing hole = factory.createLinearRing(new Coordinate[]{
+                new Coordinate(139.72, 35.62),
+                new Coordinate(139.80, 35.62),
+                new Coordinate(139.80, 35.69),
+                new Coordinate(139.72, 35.69),
+                new Coordinate(139.72, 35.62),
+        });
+        Polygon holed = factory.createPolygon(shell, new LinearRing[]{hole});
+
+        assertSameAsContains(holed, 2L);
+    }
+
+    private void assertSameAsContains(Polygon polygon, long seed) {
+        PolygonCellIndex.Cells cells = PolygonCellIndex.cover(polygon);
+        assertTrue(cells.interior.length > 0);
+        assertTrue(cells.boundary.length > 0);
+
+        PolygonCellIndex index = new PolygonCellIndex();
+        index.add(polygon, cells);
+
+        // points are spread over the envelope grown by a quarter on each side, so there are plenty of them inside,
+        // outside, in the hole and in the concavity, and near each edge
+        Envelope envelope = polygon.getEnvelopeInternal();
+        double dX = envelope.getWidth() / 4.D;
+        double dY = envelope.getHeight() / 4.D;
+
+        Random random = new Random(seed);
+        int inside = 0;
+        for (int i = 0; i < POINTS; i++) {
+            double lon = envelope.getMinX() - dX + random.nextDouble() * (envelope.getWidth() + 2.D * dX);
+            double lat = envelope.getMinY() - dY + random.nextDouble() * (envelope.getHeight() + 2.D * dY);
+            Point point = factory.createPoint(new Coordinate(lon, lat));
+
+            boolean expected = polygon.contains(point);
+            List<Polygon> covering = index.covering(point);
+
+            assertEquals("Point " + point, expected, !covering.isEmpty());
+            if (expected) {
+                assertEquals(1, covering.size());
+                assertSame(polygon, covering.get(0));
+                inside++;
+            }
+        }
+
+        assertTrue(inside > POINTS / 10);
+        assertTrue(inside < POINTS * 9 / 10);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import ash.nazg.spatial.functions.*;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryPredicateTest {
+    private static Expressions.QueryPredicate compile(String query) {
+        QueryParser parser = new QueryParser(new CommonTokenStream(new QueryLexer(CharStreams.fromString(query))));
+        QueryListenerImpl listener = new QueryListenerImpl();
+        parser.addParseListener(listener);
+        parser.parse();
+
+        return listener.getQuery();
+    }
+
+    @Test
+    public void compiledQueryTest() {
+        MapWritable props = new MapWritable();
+        props.put(new Text("acc"), new Text("15.0"));
+        props.put(new Text("type"), new Text("car"));
+        PropertyView view = new PropertyView.Plain().props(props);
+
+        assertTrue(compile("SELECT Point WHERE acc <= 15").test(view));
+        assertFalse(compile("SELECT Point WHERE acc <= 14.9").test(view));
+        assertTrue(compile("SELECT Point WHERE NOT acc > 15 AND type = 'car'").test(view));
+        assertTrue(compile("SELECT Point WHERE type = 'bike' OR (acc >= 10 AND type LIKE 'c.r')").test(view));
+        assertFalse(compile("SELECT Point WHERE missing != 5 OR missing = 'x'").test(view));
+        assertTrue(compile("SELECT Point WHERE missing IS NULL AND type IS NOT NULL").test(view));
+        assertTrue(compile("SELECT Point").test(view));
+    }
+
+    @Test
+    public void layeredViewTest() {
+        TrackSegment.Builder builder = new TrackSegment.Builder(new Text[]{new Text("type")});
+        builder.add(1.D, 2.D, 100.D, new Text[]{new Text("car")});
+        builder.add(1.D, 2.D, 200.D, new Text[]{null});
+        TrackSegment segment = builder.build(new GeometryFactory());
+
+        MapWritable segProps = new MapWritable();
+        segProps.put(new Text("type"), new Text("bike"));
+        segProps.put(new Text("_points"), new DoubleWritable(2.D));
+        segment.setUserData(segProps);
+
+        MapWritable trkProps = new MapWritable();
+        trkProps.put(new Text("_userid"), new Text("a1"));
+
+        PropertyView.Layered view = new PropertyView.Layered().track(trkProps).segment(segment);
+
+        Expressions.QueryPredicate query = compile("SELECT Point WHERE type = 'car' AND _userid = 'a1' AND _ts < 150 AND _points = 2");
+        assertTrue(query.test(view.point(0)));
+        assertFalse(query.test(view.point(1)));
+        assertTrue(compile("SELECT Point WHERE type = 'bike'").test(view.point(1)));
+        assertTrue(segment.isPacked());
+    }
+
+    @Test
+    public void spatialPredicateTest() {
+        GeometryFactory factory = new GeometryFactory();
+        PropertyView.Plain view = new PropertyView.Plain();
+
+        Expressions.QueryPredicate within = compile("SELECT Point WHERE WITHIN 1500 OF (36.66, 45.33)");
+        Expressions.QueryPredicate box = compile("SELECT Point WHERE INSIDE BOX (36.65, 45.32, 36.67, 45.345)");
+        Expressions.QueryPredicate wrapped = compile("SELECT Point WHERE INSIDE BOX (-10, 179.5, 10, -179.5)");
+
+        // every compiled answer must be the same as of an exact test, cells or not
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            double lat = 36.64 + random.nextDouble() * 0.04;
+            double lon = 45.30 + random.nextDouble() * 0.06;
+            view.geometry(factory.createPoint(new Coordinate(lon, lat)));
+
+            assertEquals(GeoMath.distance(36.66, 45.33, lat, lon) <= 1500.D, within.test(view));
+            assertEquals((lat >= 36.65) && (lat <= 36.67) && (lon >= 45.32) && (lon <= 45.345), box.test(view));
+
+            lat = -12.D + random.nextDouble() * 24.D;
+            lon = 178.5D + random.nextDouble() * 3.D;
+            lon = (lon > 180.D) ? (lon - 360.D) : lon;
+            view.geometry(factory.createPoint(new Coordinate(lon, lat)));
+
+            assertEquals((lat >= -10.D) && (lat <= 10.D) && ((lon >= 179.5D) || (lon <= -179.5D)), wrapped.test(view));
+        }
+
+        view.geometry(factory.createPoint(new Coordinate(45.33, 36.66)));
+        String address = Long.toHexString(view.getCell(9));
+        assertTrue(compile("SELECT Point WHERE INSIDE H3 '" + address + "' AND NOT WITHIN 10 OF (0, 0)").test(view));
+        assertFalse(compile("SELECT Point WHERE INSIDE H3 '" + address + "' AND within = 1").test(view));
+
+        // objects without location never match spatial predicates
+        assertFalse(within.test(view.props(new MapWritable())));
+
+        // centroid of a segment is the mean of its points
+        TrackSegment.Builder builder = new TrackSegment.Builder(new Text[0]);
+        builder.add(36.64, 45.33, 100.D, new Text[0]);
+        builder.add(36.68, 45.33, 200.D, new Text[0]);
+        TrackSegment segment = builder.build(factory);
+        PropertyView.Layered layered = new PropertyView.Layered().segment(segment);
+        assertTrue(within.test(layered));
+        assertFalse(within.test(layered.point(1)));
+        assertTrue(segment.isPacked());
+    }
+}
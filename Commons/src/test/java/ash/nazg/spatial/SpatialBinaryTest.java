@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import ash.nazg.config.WrapperConfig;
+import ash.nazg.spark.TestRunner;
+import ash.nazg.spatial.operations.SpatialBinarySourceOperation;
+import ash.nazg.storage.Adapters;
+import ash.nazg.storage.InputAdapter;
+import ash.nazg.storage.OutputAdapter;
+import org.apache.hadoop.io.*;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SpatialBinaryTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void codecTest() throws Exception {
+        GeometryFactory factory = new GeometryFactory();
+
+        Point point = factory.createPoint(new Coordinate(30.5D, 50.25D));
+        MapWritable props = new MapWritable();
+        props.put(new Text("text"), new Text("value"));
+        props.put(new Text("double"), new DoubleWritable(1.5D));
+        props.put(new Text("int"), new IntWritable(-7));
+        props.put(new Text("long"), new LongWritable(1L << 40));
+        props.put(new Text("boolean"), new BooleanWritable(true));
+        props.put(new Text("null"), NullWritable.get());
+        point.setUserData(props);
+
+        SpatialBinaryCodec codec = new SpatialBinaryCodec(factory);
+        byte[] record = codec.encode(point);
+
+        Geometry all = codec.decode(record, null);
+        assertTrue(point.equalsExact(all));
+        assertEquals(props, all.getUserData());
+
+        Geometry some = codec.decode(record, new HashSet<>(Arrays.asList(new Text("long"), new Text("int"))));
+        assertTrue(point.equalsExact(some));
+        MapWritable expected = new MapWritable();
+        expected.put(new Text("int"), new IntWritable(-7));
+        expected.put(new Text("long"), new LongWritable(1L << 40));
+        assertEquals(expected, some.getUserData());
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/test.spatial.binary.properties")) {
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            for (String name : new String[]{"point_objects", "polygon_objects", "track_objects"}) {
+                List<Geometry> expected = ret.get(name).collect();
+                assertFalse(expected.isEmpty());
+
+                List<Geometry> actual = roundTrip(ret.get(name), name, Collections.emptyList());
+
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    Geometry e = expected.get(i);
+                    Geometry a = actual.get(i);
+
+                    assertEquals(e.getClass(), a.getClass());
+                    assertTrue(e.equalsExact(a));
+                    assertEquals(e.getUserData(), a.getUserData());
+
+                    for (int s = 0; (e instanceof SegmentedTrack) && (s < e.getNumGeometries()); s++) {
+                        Geometry es = e.getGeometryN(s);
+                        Geometry as = a.getGeometryN(s);
+                        assertEquals(es.getUserData(), as.getUserData());
+
+                        for (int p = 0; p < es.getNumGeometries(); p++) {
+                            assertEquals(es.getGeometryN(p).getUserData(), as.getGeometryN(p).getUserData());
+                        }
+                    }
+                }
+            }
+
+            List<Geometry> centroids = roundTrip(ret.get("polygon_objects"), "centroids", Arrays.asList("centroids._center_lat", "centroids._center_lon"));
+            Set<Text> columns = new HashSet<>(Arrays.asList(new Text("_center_lat"), new Text("_center_lon")));
+            for (Geometry c : centroids) {
+                assertEquals(columns, ((MapWritable) c.getUserData()).keySet());
+            }
+        }
+    }
+
+    private List<Geometry> roundTrip(JavaRDDLike rdd, String name, List<String> columns) throws Exception {
+        String path = "wkb:" + temp.getRoot().getPath() + "/" + name;
+        JavaSparkContext ctx = JavaSparkContext.fromSparkContext(rdd.context());
+
+        Properties properties = new Properties();
+        properties.setProperty("op.operation.decode", SpatialBinarySourceOperation.VERB);
+        properties.setProperty("op.inputs.decode", "records");
+        properties.setProperty("op.outputs.decode", name);
+        if (!columns.isEmpty()) {
+            properties.setProperty("ds.output.columns." + name, String.join(",", columns));
+        }
+        WrapperConfig wrapperConfig = new WrapperConfig();
+        wrapperConfig.setProperties(properties);
+
+        OutputAdapter output = Adapters.output(path);
+        output.setProperties(name, wrapperConfig);
+        output.save(path, rdd);
+
+        InputAdapter input = Adapters.input(path);
+        input.setContext(ctx);
+        input.setProperties(name, wrapperConfig);
+        JavaRDDLike records = input.load(path);
+
+        SpatialBinarySourceOperation decode = new SpatialBinarySourceOperation();
+        decode.initialize("decode", ctx);
+        decode.configure(properties, new Properties());
+
+        return decode.getResult(Collections.singletonMap("records", records)).get(name).collect();
+    }
+}
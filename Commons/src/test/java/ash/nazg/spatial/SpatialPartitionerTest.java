@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import ash.nazg.spark.TestRunner;
+import com.uber.h3core.H3Core;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.junit.Test;
+import org.locationtech.jts.geom.Point;
+import scala.Tuple2;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SpatialPartitionerTest {
+    @Test
+    public void spatialPartitionTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/test.spatial.partition.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            JavaRDD<Point> points = (JavaRDD<Point>) ret.get("points");
+            JavaRDD<Point> partitioned = (JavaRDD<Point>) ret.get("partitioned");
+
+            assertNull(SpatialPartitioner.of(points));
+            SpatialPartitioner partitioner = SpatialPartitioner.of(partitioned);
+            assertNotNull(partitioner);
+            assertEquals(11, partitioner.level);
+            assertEquals(3, partitioner.numPartitions());
+
+            List<Tuple2<Integer, Point>> placed = partitioned
+                    .mapPartitionsWithIndex((idx, it) -> {
+                        List<Tuple2<Integer, Point>> result = new ArrayList<>();
+                        it.forEachRemaining(p -> result.add(new Tuple2<>(idx, p)));
+                        return result.iterator();
+                    }, true)
+                    .collect();
+
+            assertEquals(points.count(), placed.size());
+            int[] counts = new int[partitioner.numPartitions()];
+            for (Tuple2<Integer, Point> p : placed) {
+                assertEquals(partitioner.getPartition(p._2.getY(), p._2.getX()), (int) p._1);
+                counts[p._1]++;
+            }
+            for (int count : counts) {
+                assertTrue(count > 0);
+            }
+        }
+    }
+
+    @Test
+    public void finerCellPartitionsTest() throws Exception {
+        H3Core h3 = H3Core.newInstance();
+
+        Random random = new Random(7L);
+        int level = 5;
+
+        long[] bounds = new long[15];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = h3.geoToH3(random.nextDouble() * 170.D - 85.D, random.nextDouble() * 360.D - 180.D, level);
+        }
+        Arrays.sort(bounds);
+        SpatialPartitioner partitioner = new SpatialPartitioner(level, bounds);
+
+        for (int i = 0; i < 100_000; i++) {
+            double lat = random.nextDouble() * 170.D - 85.D;
+            double lon = random.nextDouble() * 360.D - 180.D;
+
+            int resolution = level + random.nextInt(16 - level);
+            int[] partitions = partitioner.getPartitions(h3.geoToH3(lat, lon, resolution));
+
+            int partition = partitioner.getPartition(lat, lon);
+            assertTrue(Arrays.stream(partitions).anyMatch(p -> p == partition));
+        }
+    }
+}
@@ -5,12 +5,14 @@
 package ash.nazg.spatial;
 
 import ash.nazg.spark.TestRunner;
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
 import org.junit.Test;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -88,6 +90,35 @@ public class SpatialToolboxTest {
             for (MapWritable data : datas) {
                 assertTrue(Integer.parseInt(data.get(new Text("_points")).toString()) > 3);
             }
+
+            JavaRDD<Point> rddP = (JavaRDD<Point>) ret.get("ret6");
+
+            List<Point> limited = rddP.collect();
+            assertEquals(4, limited.size());
+            assertEquals(limited, rddP.collect());
+
+            rddS = (JavaRDD<SegmentedTrack>) ret.get("ret7");
+
+            int sampled = 0;
+            for (SegmentedTrack trk : rddS.collect()) {
+                for (Geometry seg : trk.geometries()) {
+                    for (Geometry pt : ((TrackSegment) seg).geometries()) {
+                        assertTrue(Double.parseDouble(((MapWritable) pt.getUserData()).get(new Text("acc")).toString()) >= 15.D);
+                        sampled++;
+                    }
+                }
+            }
+            assertTrue(sampled > 0);
+            assertTrue(sampled < 20); // of 20 points with acc >= 15
+
+            rddP = (JavaRDD<Point>) ret.get("ret8");
+
+            List<Point> near = rddP.collect();
+            assertEquals(3, near.size());
+            for (Point pt : near) {
+                assertTrue(GeoMath.distance(36.6648530960083, 45.33276122421652, pt.getY(), pt.getX()) <= 100.D);
+                assertTrue(((DoubleWritable) ((MapWritable) pt.getUserData()).get(new Text("_radius"))).get() >= 40.D);
+            }
         }
     }
 }
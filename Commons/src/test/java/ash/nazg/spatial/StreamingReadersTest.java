@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import io.jenetics.jpx.GPX;
+import io.jenetics.jpx.WayPoint;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.wololo.geojson.Feature;
+import org.wololo.geojson.FeatureCollection;
+import org.wololo.geojson.GeoJSONFactory;
+import org.wololo.jts2geojson.GeoJSONReader;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class StreamingReadersTest {
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    @Test
+    public void geoJsonEquivalenceTest() throws Exception {
+        for (String file : new String[]{"/spatial/Chushka.GeoJson", "/spatial/roads.geojson", "/spatial/Hawaii_Standard_Time.geojson"}) {
+            String json = String.join("\n", readLines(file));
+
+            Feature[] features = ((FeatureCollection) GeoJSONFactory.create(json)).getFeatures();
+            List<Geometry> streamed = read(json, Collections.emptyList());
+
+            assertEquals(features.length, streamed.size());
+            GeoJSONReader reader = new GeoJSONReader();
+            for (int i = 0; i < features.length; i++) {
+                assertTrue(reader.read(features[i].getGeometry()).equalsExact(streamed.get(i)));
+
+                MapWritable properties = (MapWritable) streamed.get(i).getUserData();
+                assertEquals(features[i].getProperties().size(), properties.size());
+                for (Map.Entry<String, Object> e : features[i].getProperties().entrySet()) {
+                    assertEquals(String.valueOf(e.getValue()), properties.get(new Text(e.getKey())).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void geoJsonLinesTest() throws Exception {
+        String json = String.join("\n", readLines("/spatial/roads.geojson"));
+        List<Geometry> whole = read(json, Collections.singletonList("NAME"));
+
+        // same collection written with one Feature per line, and parsed line by line
+        Feature[] features = ((FeatureCollection) GeoJSONFactory.create(json)).getFeatures();
+        List<String> lines = new ArrayList<>();
+        lines.add("{\"type\": \"FeatureCollection\", \"name\": \"test1\", \"features\": [");
+        for (int i = 0; i < features.length; i++) {
+            lines.add(features[i].toString() + ((i < features.length - 1) ? "," : ""));
+        }
+        lines.add("]}");
+
+        List<Geometry> byLines = new ArrayList<>();
+        for (String line : lines) {
+            byLines.addAll(read(line, Collections.singletonList("NAME")));
+        }
+
+        assertEquals(whole.size(), byLines.size());
+        for (int i = 0; i < whole.size(); i++) {
+            assertTrue(whole.get(i).equalsExact(byLines.get(i)));
+            assertEquals(whole.get(i).getUserData(), byLines.get(i).getUserData());
+
+            MapWritable properties = (MapWritable) byLines.get(i).getUserData();
+            assertEquals(Collections.singleton(new Text("NAME")), properties.keySet());
+        }
+    }
+
+    @Test
+    public void geoJsonMalformedTest() {
+        String feature = "{\"type\": \"Feature\", \"geometry\": {\"type\": \"Point\", \"coordinates\": [1.5, 2.5]}, \"properties\": {\"name\": \"a\"}}";
+
+        // separators and closing brackets of the collection are line-split artefacts
+        assertEquals(2, read("," + feature + ", " + feature + "]}", Collections.emptyList()).size());
+
+        // but not inside strings
+        List<Geometry> quoted = read(feature.replace("\"a\"", "\"a,]} \\\"b\\\" ,}\"") + "]}", Collections.emptyList());
+        assertEquals(1, quoted.size());
+        assertEquals("a,]} \"b\" ,}", ((MapWritable) quoted.get(0).getUserData()).get(new Text("name")).toString());
+
+        // anything else between Features fails the record instead of dropping the rest of it
+        Iterator<Geometry> it = new StreamingGeoJSONReader(feature + ", garbage " + feature, Collections.emptyList(), FACTORY);
+        assertTrue(it.hasNext());
+        it.next();
+        try {
+            it.hasNext();
+            fail("Malformed text between Features must not be skipped");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause() instanceof JsonParseException);
+        }
+    }
+
+    @Test
+    public void gpxEquivalenceTest() throws Exception {
+        Text tsAttr = new Text("_ts");
+
+        int tracks = 0;
+        for (String line : readLines("/spatial/tracks.gpxx")) {
+            GPX gpx = GPX.reader(GPX.Reader.Mode.LENIENT).read(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)));
+            List<io.jenetics.jpx.Track> expected = gpx.getTracks().stream()
+                    .filter(t -> !t.getSegments().isEmpty())
+                    .collect(Collectors.toList());
+
+            List<SegmentedTrack> streamed = new ArrayList<>();
+            new StreamingGPXReader(line, FACTORY).forEachRemaining(streamed::add);
+
+            assertEquals(expected.size(), streamed.size());
+            for (int t = 0; t < expected.size(); t++) {
+                io.jenetics.jpx.Track track = expected.get(t);
+                SegmentedTrack st = streamed.get(t);
+
+                if (track.getName().isPresent()) {
+                    assertEquals(track.getName().get(), ((MapWritable) st.getUserData()).get(new Text("_userid")).toString());
+                }
+
+                assertEquals(track.getSegments().size(), st.getNumGeometries());
+                for (int s = 0; s < track.getSegments().size(); s++) {
+                    List<WayPoint> points = track.getSegments().get(s).getPoints();
+                    TrackSegment segment = (TrackSegment) st.getGeometryN(s);
+
+                    assertEquals(points.size(), segment.getNumGeometries());
+                    for (int p = 0; p < points.size(); p++) {
+                        WayPoint wp = points.get(p);
+                        Point pt = (Point) segment.getGeometryN(p);
+
+                        assertEquals(wp.getLatitude().doubleValue(), pt.getY(), 0.D);
+                        assertEquals(wp.getLongitude().doubleValue(), pt.getX(), 0.D);
+                        assertEquals(wp.getTime().isPresent() ? wp.getTime().get().toEpochSecond() : p,
+                                ((DoubleWritable) ((MapWritable) pt.getUserData()).get(tsAttr)).get(), 0.D);
+                    }
+                }
+                tracks++;
+            }
+        }
+
+        assertEquals(12, tracks);
+
+        // a bare track element, without the enclosing document
+        List<SegmentedTrack> bare = new ArrayList<>();
+        new StreamingGPXReader("<trk><name>bare</name><trkseg><trkpt lat=\"1.5\" lon=\"2.5\"/><trkpt lat=\"1.6\" lon=\"2.6\"/></trkseg></trk>", FACTORY)
+                .forEachRemaining(bare::add);
+        assertEquals(1, bare.size());
+        assertEquals("bare", ((MapWritable) bare.get(0).getUserData()).get(new Text("_userid")).toString());
+        assertEquals(2, bare.get(0).getNumPoints());
+
+        // fallback timestamps are positions of points in the segment, not counts of the valid ones before them
+        List<SegmentedTrack> skipped = new ArrayList<>();
+        new StreamingGPXReader("<trk><trkseg><trkpt lat=\"1.5\" lon=\"2.5\"/><trkpt lat=\"bad\" lon=\"2.6\"/><trkpt lat=\"1.7\" lon=\"2.7\"/></trkseg></trk>", FACTORY)
+                .forEachRemaining(skipped::add);
+        TrackSegment segment = (TrackSegment) skipped.get(0).getGeometryN(0);
+        assertEquals(2, segment.getNumGeometries());
+        assertEquals(0.D, ((DoubleWritable) ((MapWritable) segment.getGeometryN(0).getUserData()).get(tsAttr)).get(), 0.D);
+        assertEquals(2.D, ((DoubleWritable) ((MapWritable) segment.getGeometryN(1).getUserData()).get(tsAttr)).get(), 0.D);
+    }
+
+    private static List<Geometry> read(String json, List<String> columns) {
+        List<Geometry> ret = new ArrayList<>();
+        new StreamingGeoJSONReader(json, columns, FACTORY).forEachRemaining(ret::add);
+        return ret;
+    }
+
+    private static List<String> readLines(String resource) throws Exception {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                StreamingReadersTest.class.getResourceAsStream(resource), StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.toList());
+        }
+    }
+}
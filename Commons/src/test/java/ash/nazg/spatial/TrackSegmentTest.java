@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.spatial;
+
+import org.apache.hadoop.io.*;
+import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.serializer.SerializerInstance;
+import org.junit.Test;
+import org.locationtech.jts.geom.*;
+import scala.reflect.ClassTag$;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TrackSegmentTest {
+    private static final Text NAME = new Text("name");
+
+    private TrackSegment packed() {
+        TrackSegment.Builder builder = new TrackSegment.Builder(new Text[]{NAME});
+        for (int i = 0; i < 100; i++) {
+            builder.add(10.D + i / 1000.D, 20.D - i / 1000.D, 1_000_000.D + i, new Text[]{new Text("p" + i)});
+        }
+        return builder.build(new GeometryFactory());
+    }
+
+    @Test
+    public void viewsTest() {
+        TrackSegment segment = packed();
+
+        assertTrue(segment.isPacked());
+        assertEquals(100, segment.getNumGeometries());
+        assertEquals(new Envelope(19.901D, 20.D, 10.D, 10.099D), segment.getEnvelopeInternal());
+        assertTrue(segment.isPacked());
+
+        Point point = (Point) segment.getGeometryN(42);
+        assertFalse(segment.isPacked());
+        assertEquals(10.042D, point.getY(), 1.E-9);
+        assertEquals(19.958D, point.getX(), 1.E-9);
+
+        MapWritable props = (MapWritable) point.getUserData();
+        assertEquals("p42", props.get(NAME).toString());
+        assertEquals(1_000_042.D, ((DoubleWritable) props.get(TrackSegment.TS_ATTR)).get(), 0.D);
+
+        // changes to views are packed back
+        props.put(new Text("_radius"), new DoubleWritable(5.D));
+        props.put(NAME, new Text("changed"));
+        assertEquals(1_000_042.D, segment.getTs(42), 0.D);
+
+        double[] radius = segment.getNumeric(new Text("_radius"));
+        assertTrue(segment.isPacked());
+        assertEquals(5.D, radius[42], 0.D);
+        assertTrue(Double.isNaN(radius[41]));
+        assertEquals("changed", segment.getText(NAME)[42].toString());
+        assertEquals(10.042D, segment.lats()[42], 1.E-9);
+    }
+
+    @Test
+    public void kryoTest() {
+        SerializerInstance kryo = new KryoSerializer(new SparkConf()).newInstance();
+
+        TrackSegment segment = packed();
+        MapWritable segProps = new MapWritable();
+        segProps.put(new Text("_userid"), new Text("a1"));
+        segment.setUserData(segProps);
+
+        for (int round = 0; round < 2; round++) {
+            ByteBuffer bytes = kryo.serialize(segment, ClassTag$.MODULE$.apply(TrackSegment.class));
+            TrackSegment read = kryo.deserialize(bytes, ClassTag$.MODULE$.apply(TrackSegment.class));
+
+            assertTrue(read.isPacked());
+            assertEquals("a1", ((MapWritable) read.getUserData()).get(new Text("_userid")).toString());
+            assertArrayEquals(segment.lats(), read.lats(), 0.D);
+            assertArrayEquals(segment.lons(), read.lons(), 0.D);
+            assertArrayEquals(segment.timestamps(), read.timestamps(), 0.D);
+            assertArrayEquals(segment.getText(NAME), read.getText(NAME));
+
+            // second round goes from Point views
+            for (Geometry g : segment) {
+                assertNotNull(g.getUserData());
+            }
+            assertFalse(segment.isPacked());
+        }
+    }
+
+    @Test
+    public void typesRoundTripTest() throws Exception {
+        GeometryFactory factory = new GeometryFactory();
+
+        Point[] points = new Point[10];
+        for (int i = 0; i < points.length; i++) {
+            MapWritable props = new MapWritable();
+            props.put(new Text("text"), new Text("5"));
+            props.put(new Text("long"), new LongWritable(5L));
+            props.put(new Text("double"), new DoubleWritable(5.5D));
+            props.put(new Text("mixed"), (i % 2 == 0) ? new LongWritable(5L) : new DoubleWritable(2.5D));
+            props.put(new Text("int"), new IntWritable(7));
+            props.put(TrackSegment.TS_ATTR, new DoubleWritable(1_000_000.D + i));
+
+            points[i] = factory.createPoint(new Coordinate(20.D, 10.D + i / 1000.D));
+            points[i].setUserData(props);
+        }
+
+        TrackSegment segment = new TrackSegment(points, factory);
+        segment.lats();
+        assertTrue(segment.isPacked());
+        assertTypes(segment);
+
+        SerializerInstance kryo = new KryoSerializer(new SparkConf()).newInstance();
+        ByteBuffer bytes = kryo.serialize(segment, ClassTag$.MODULE$.apply(TrackSegment.class));
+        TrackSegment fromKryo = kryo.deserialize(bytes, ClassTag$.MODULE$.apply(TrackSegment.class));
+        assertTypes(fromKryo);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(segment);
+        }
+        TrackSegment fromJava;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()))) {
+            fromJava = (TrackSegment) in.readObject();
+        }
+        assertTrue(fromJava.isPacked());
+        assertTypes(fromJava);
+
+        // Point views get the original types back, and pack into the same columns again
+        for (int i = 0; i < fromJava.size(); i++) {
+            MapWritable props = (MapWritable) fromJava.getGeometryN(i).getUserData();
+            assertFalse(fromJava.isPacked());
+
+            assertEquals(Text.class, props.get(new Text("text")).getClass());
+            assertEquals(LongWritable.class, props.get(new Text("long")).getClass());
+            assertEquals(DoubleWritable.class, props.get(new Text("double")).getClass());
+            assertEquals((i % 2 == 0) ? LongWritable.class : DoubleWritable.class, props.get(new Text("mixed")).getClass());
+            assertEquals(IntWritable.class, props.get(new Text("int")).getClass());
+            assertEquals(DoubleWritable.class, props.get(TrackSegment.TS_ATTR).getClass());
+        }
+        fromJava.lats();
+        assertTypes(fromJava);
+    }
+
+    private static void assertTypes(TrackSegment segment) {
+        for (int i = 0; i < segment.size(); i++) {
+            assertEquals("5", segment.getString(i, new Text("text")));
+            assertEquals("5", segment.getString(i, new Text("long")));
+            assertEquals("5.5", segment.getString(i, new Text("double")));
+            assertEquals((i % 2 == 0) ? "5" : "2.5", segment.getString(i, new Text("mixed")));
+            assertEquals("7", segment.getString(i, new Text("int")));
+
+            assertEquals(5.D, segment.getNumber(i, new Text("text")), 0.D);
+            assertEquals(7.D, segment.getNumber(i, new Text("int")), 0.D);
+            assertEquals(1_000_000.D + i, segment.getTs(i), 0.D);
+        }
+    }
+}
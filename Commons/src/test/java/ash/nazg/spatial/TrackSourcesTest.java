@@ -5,18 +5,23 @@
 package ash.nazg.spatial;
 
 import ash.nazg.spark.TestRunner;
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
 import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Point;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TrackSourcesTest {
     @Test
@@ -53,4 +58,32 @@ public class TrackSourcesTest {
             );
         }
     }
+
+    @Test
+    public void streamingAssemblyCsvTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/test.track.csv.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            List<SegmentedTrack> tracks = ((JavaRDD<SegmentedTrack>) ret.get("tracks")).collect();
+
+            Set<String> userids = new HashSet<>();
+            for (SegmentedTrack track : tracks) {
+                String userid = ((MapWritable) track.getUserData()).get(new Text("_userid")).toString();
+                assertTrue(userids.add(userid));
+
+                for (Geometry s : track) {
+                    TrackSegment segment = (TrackSegment) s;
+                    assertEquals(userid, ((MapWritable) segment.getUserData()).get(new Text("_userid")).toString());
+
+                    double prevTs = Double.NEGATIVE_INFINITY;
+                    for (Geometry p : segment) {
+                        double ts = ((DoubleWritable) ((MapWritable) p.getUserData()).get(new Text("_ts"))).get();
+                        assertTrue(ts >= prevTs);
+                        prevTs = ts;
+                    }
+                }
+            }
+        }
+    }
 }
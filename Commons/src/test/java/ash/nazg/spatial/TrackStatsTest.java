@@ -5,11 +5,13 @@
 package ash.nazg.spatial;
 
 import ash.nazg.spark.TestRunner;
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
 import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
 
 import java.util.List;
 import java.util.Map;
@@ -52,4 +54,42 @@ public class TrackStatsTest {
             assertEquals(287, Integer.parseInt(data.get(new Text("_points")).toString()));
         }
     }
+
+    @Test
+    public void trackStatsFastTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/test.track.stats.fast.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            JavaRDD<SegmentedTrack> rddS = (JavaRDD<SegmentedTrack>) ret.get("stats");
+            List<SegmentedTrack> tracks = rddS.collect();
+            assertEquals(12, tracks.size());
+
+            MapWritable data = (MapWritable) tracks.get(11).getUserData();
+            assertEquals(2_488.D, Double.parseDouble(data.get(new Text("_distance")).toString()), 2);
+            assertEquals(141, Integer.parseInt(data.get(new Text("_points")).toString()));
+
+            for (SegmentedTrack track : tracks) {
+                for (Geometry g : track) {
+                    TrackSegment seg = (TrackSegment) g;
+                    MapWritable segData = (MapWritable) seg.getUserData();
+
+                    double maxRadius = 0.D;
+                    double lastDistance = 0.D;
+                    for (Geometry p : seg) {
+                        MapWritable pntData = (MapWritable) p.getUserData();
+                        maxRadius = Math.max(maxRadius, ((DoubleWritable) pntData.get(new Text("_radius"))).get());
+                        lastDistance = ((DoubleWritable) pntData.get(new Text("_distance"))).get();
+
+                        // whole-number stats are formatted as integers, the same as segment and track stats
+                        Long.parseLong(pntData.get(new Text("_points")).toString());
+                        Long.parseLong(pntData.get(new Text("_duration")).toString());
+                    }
+
+                    assertEquals(Double.parseDouble(segData.get(new Text("_radius")).toString()), maxRadius, 0.D);
+                    assertEquals(Double.parseDouble(segData.get(new Text("_distance")).toString()), lastDistance, 0.D);
+                }
+            }
+        }
+    }
 }
@@ -14,6 +14,7 @@ import java.io.*;
 public class CSVRecordInputStream extends RecordInputStream {
     private final BufferedReader reader;
     private final CSVParser parser;
+    private boolean eof = false;
 
     public CSVRecordInputStream(InputStream input, int[] columnOrder, char delimiter) {
         super(columnOrder, delimiter);
@@ -22,10 +23,12 @@ public class CSVRecordInputStream extends RecordInputStream {
     }
 
     protected void ensureRecord() throws IOException {
-        if (position == size) {
+        // skip malformed lines, an empty record would look like the end of stream to the reader
+        while (!eof && (position == size)) {
             String line = reader.readLine();
 
             if (line == null) {
+                eof = true;
                 recordBuffer = null;
             } else {
                 position = 0;
@@ -49,8 +52,11 @@ public class CSVRecordInputStream extends RecordInputStream {
                     size = recordBuffer.length;
                 } catch (Exception e) {
                     size = 0;
+                    malformed++;
 
-                    System.err.println("Malformed input line: " + line);
+                    if (malformed <= MALFORMED_SAMPLES) {
+                        System.err.println("Malformed input line: " + line);
+                    }
                 }
             }
         }
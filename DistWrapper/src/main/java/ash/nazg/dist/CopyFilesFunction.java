@@ -5,25 +5,38 @@
 package ash.nazg.dist;
 
 import ash.nazg.config.InvalidConfigValueException;
+import com.opencsv.CSVParser;
+import com.opencsv.CSVParserBuilder;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.compress.*;
 import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
 import org.apache.parquet.format.converter.ParquetMetadataConverter;
 import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetFileWriter;
 import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
 import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 import org.apache.parquet.hadoop.metadata.ParquetMetadata;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
 import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.Types;
 import org.apache.spark.api.java.function.VoidFunction;
+import scala.Tuple2;
 import scala.Tuple3;
 
+import java.io.BufferedReader;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.IntStream;
 
 public class CopyFilesFunction implements VoidFunction<Tuple3<List<String>, String, String>> {
     private static final Map<String, Class<? extends CompressionCodec>> CODECS = new HashMap<>();
@@ -36,19 +49,39 @@ public class CopyFilesFunction implements VoidFunction<Tuple3<List<String>, Stri
         CODECS.put("lz4", Lz4Codec.class);
     }
 
+    private static final Map<String, CompressionCodecName> PARQUET_CODECS = new HashMap<>();
+
+    static {
+        PARQUET_CODECS.put("gz", CompressionCodecName.GZIP);
+        PARQUET_CODECS.put("gzip", CompressionCodecName.GZIP);
+        PARQUET_CODECS.put("snappy", CompressionCodecName.SNAPPY);
+        PARQUET_CODECS.put("lz4", CompressionCodecName.LZ4);
+    }
+
     private static final int BUFFER_SIZE = 1024 * 1024;
 
     private final boolean deleteOnSuccess;
     // sink -> schema, columns, delimiter
     private final Map<String, Tuple3<String[], String[], Character>> sinkInfo;
+    // tee -> columns, delimiter
+    private final Map<String, Tuple2<String[], Character>> teeInfo;
+    private final int parquetBlockSize;
+    private final int codecThreads;
+    private final CopyMetricsAccumulator metrics;
 
     private String codec;
     private String sink;
 
-    public CopyFilesFunction(boolean deleteOnSuccess, String codec, Map<String, Tuple3<String[], String[], Character>> sinkInfo) {
+    public CopyFilesFunction(boolean deleteOnSuccess, String codec, Map<String, Tuple3<String[], String[], Character>> sinkInfo,
+                             Map<String, Tuple2<String[], Character>> teeInfo, int parquetBlockSize, int codecThreads,
+                             CopyMetricsAccumulator metrics) {
         this.deleteOnSuccess = deleteOnSuccess;
         this.codec = codec;
         this.sinkInfo = sinkInfo;
+        this.teeInfo = teeInfo;
+        this.parquetBlockSize = parquetBlockSize;
+        this.codecThreads = codecThreads;
+        this.metrics = metrics;
     }
 
     private String getSuffix(String name) {
@@ -62,24 +95,28 @@ public class CopyFilesFunction implements VoidFunction<Tuple3<List<String>, Stri
         return "";
     }
 
-    private OutputStream decorateOutputStream(Path outputFilePath, Configuration conf) throws Exception {
+    private MeteredOutput decorateOutputStream(Path outputFilePath, Configuration conf) throws Exception {
         FileSystem outputFs = outputFilePath.getFileSystem(conf);
         outputFs.setVerifyChecksum(false);
-        OutputStream outputStream = outputFs.create(outputFilePath);
+        MeteredOutput output = new MeteredOutput(outputFs.create(outputFilePath));
 
         String suffix = getSuffix(outputFilePath.getName()).toLowerCase();
-        if (CODECS.containsKey(suffix)) {
+        if ((codecThreads > 1) && (CODECS.get(suffix) == GzipCodec.class)) {
+            output.encode = new MeteredOutputStream(new ParallelGzipOutputStream(output.write, codecThreads));
+        } else if (CODECS.containsKey(suffix)) {
             Class<? extends CompressionCodec> cc = CODECS.get(suffix);
             CompressionCodec codec = cc.newInstance();
             ((Configurable) codec).setConf(conf);
 
-            return codec.createOutputStream(outputStream);
-        } else {
-            return outputStream;
+            output.encode = new MeteredOutputStream(codec.createOutputStream(output.write));
         }
+
+        return output;
     }
 
-    private InputStream decorateInputStream(Path inputFilePath, Configuration conf) throws Exception {
+    private MeteredInput decorateInputStream(Path inputFilePath, Configuration conf) throws Exception {
+        MeteredInput input = new MeteredInput(inputFilePath.toString());
+
         String suffix = getSuffix(inputFilePath.getName()).toLowerCase();
         if ("parquet".equalsIgnoreCase(suffix)) {
             ParquetMetadata readFooter = ParquetFileReader.readFooter(conf, inputFilePath, ParquetMetadataConverter.NO_FILTER);
@@ -87,89 +124,57 @@ public class CopyFilesFunction implements VoidFunction<Tuple3<List<String>, Stri
 
             Tuple3<String[], String[], Character> si = sinkInfo.get(sink);
 
-            String[] sinkColumns = si._2();
-
-            int[] fieldOrder;
-            if (sinkColumns != null) {
-                fieldOrder = new int[sinkColumns.length];
-
-                for (int i = 0; i < sinkColumns.length; i++) {
-                    String column = sinkColumns[i];
-                    fieldOrder[i] = schema.getFieldIndex(column);
-                }
-            } else {
-                fieldOrder = IntStream.range(0, schema.getFieldCount()).toArray();
-            }
+            int[] fieldOrder = SinkColumns.parquetOrder(schema, si._2());
 
             GroupReadSupport readSupport = new GroupReadSupport();
             readSupport.init(conf, null, schema);
             ParquetReader<Group> reader = ParquetReader.builder(readSupport, inputFilePath).build();
 
-            return new ParquetRecordInputStream(reader, fieldOrder, si._3());
+            // Parquet reader does its own reading and decoding, so only the file size is known
+            input.fileLength = inputFilePath.getFileSystem(conf).getFileStatus(inputFilePath).getLen();
+            input.decode = new MeteredInputStream(new ParquetRecordInputStream(reader, fieldOrder, si._3()));
         } else {
             FileSystem inputFs = inputFilePath.getFileSystem(conf);
-            InputStream inputStream = inputFs.open(inputFilePath);
+            input.read = new MeteredInputStream(inputFs.open(inputFilePath));
 
             if (CODECS.containsKey(suffix)) {
                 Class<? extends CompressionCodec> cc = CODECS.get(suffix);
                 CompressionCodec codec = cc.newInstance();
                 ((Configurable) codec).setConf(conf);
 
-                inputStream = codec.createInputStream(inputStream);
+                input.decode = new MeteredInputStream(codec.createInputStream(input.read));
             }
 
-            if (sink != null) {
+            if ((sink != null) && (sinkInfo != null)) {
                 Tuple3<String[], String[], Character> si = sinkInfo.get(sink);
 
-                String[] sinkSchema = si._1();
-                String[] sinkColumns = si._2();
-
-                if ((sinkSchema != null) || (sinkColumns != null)) {
-                    int[] columnOrder;
-
-                    if (sinkSchema != null) {
-                        if (sinkColumns == null) {
-                            columnOrder = IntStream.range(0, sinkSchema.length).toArray();
-                        } else {
-                            Map<String, Integer> schema = new HashMap<>();
-                            for (int i = 0; i < sinkSchema.length; i++) {
-                                schema.put(sinkSchema[i], i);
-                            }
-
-                            Map<Integer, String> columns = new HashMap<>();
-                            for (int i = 0; i < sinkColumns.length; i++) {
-                                columns.put(i, sinkColumns[i]);
-                            }
-
-                            columnOrder = new int[sinkColumns.length];
-                            for (int i = 0; i < sinkColumns.length; i++) {
-                                columnOrder[i] = schema.get(columns.get(i));
-                            }
-                        }
-                    } else {
-                        columnOrder = IntStream.range(0, sinkColumns.length).toArray();
-                    }
-
-                    inputStream = new CSVRecordInputStream(inputStream, columnOrder, si._3());
+                int[] columnOrder = SinkColumns.textOrder(si._1(), si._2());
+                if (columnOrder != null) {
+                    input.reorder = new MeteredInputStream(new CSVRecordInputStream(input.stream(), columnOrder, si._3()));
                 }
             }
-
-            return inputStream;
         }
+
+        return input;
     }
 
-    public void mergeAndCopyFiles(List<String> inputFiles, String outputFile, Configuration conf) throws Exception {
+    public CopyMetrics mergeAndCopyFiles(List<String> inputFiles, String outputFile, Configuration conf) throws Exception {
         Path outputFilePath = new Path(outputFile);
+        CopyMetrics partMetrics = new CopyMetrics(outputFile);
 
-        try (OutputStream outputStream = decorateOutputStream(outputFilePath, conf)) {
+        MeteredOutput output = decorateOutputStream(outputFilePath, conf);
+        try (OutputStream outputStream = output.stream()) {
             for (String inputFile : inputFiles) {
                 System.out.println(inputFile + " >+ " + outputFile);
                 Path inputFilePath = new Path(inputFile);
 
-                try (InputStream inputStream = decorateInputStream(inputFilePath, conf)) {
+                MeteredInput input = decorateInputStream(inputFilePath, conf);
+                try (InputStream inputStream = input.stream()) {
                     int len;
                     for (byte[] buffer = new byte[BUFFER_SIZE]; (len = inputStream.read(buffer)) > 0; ) {
                         outputStream.write(buffer, 0, len);
+
+                        partMetrics.progress(output.decoded());
                     }
                 } catch (Exception e) {
                     FileSystem outFs = outputFilePath.getFileSystem(conf);
@@ -177,8 +182,103 @@ public class CopyFilesFunction implements VoidFunction<Tuple3<List<String>, Stri
 
                     throw e;
                 }
+
+                CopyMetrics.FileMetrics fileMetrics = input.metrics();
+                partMetrics.add(fileMetrics);
+                reportMalformed(fileMetrics);
             }
         }
+
+        partMetrics.written(output.write.bytes, output.encodeNanos(), output.write.nanos);
+
+        return partMetrics;
+    }
+
+    public CopyMetrics mergeToParquet(List<String> inputFiles, String outputFile, Configuration conf, String[] columns, char delimiter) throws Exception {
+        Path outputFilePath = new Path(outputFile);
+        CopyMetrics partMetrics = new CopyMetrics(outputFile);
+        long encodeNanos = 0L;
+
+        Types.MessageTypeBuilder schemaBuilder = Types.buildMessage();
+        Set<String> fieldNames = new HashSet<>();
+        for (String column : columns) {
+            String fieldName = column.contains(".") ? column.substring(column.indexOf('.') + 1) : column;
+            if (!fieldNames.add(fieldName)) {
+                throw new InvalidConfigValueException("Duplicate Parquet field '" + fieldName + "' derived from output column '" + column + "'");
+            }
+
+            schemaBuilder.optional(PrimitiveType.PrimitiveTypeName.BINARY)
+                    .as(LogicalTypeAnnotation.stringType())
+                    .named(fieldName);
+        }
+        MessageType schema = schemaBuilder.named("one_ring");
+
+        SimpleGroupFactory groupFactory = new SimpleGroupFactory(schema);
+        CSVParser parser = new CSVParserBuilder().withSeparator(delimiter).build();
+
+        // a partial output is removed only after the writer is closed, so it doesn't recreate the file on close
+        try {
+            try (ParquetWriter<Group> writer = ExampleParquetWriter.builder(outputFilePath)
+                    .withConf(conf)
+                    .withType(schema)
+                    .withCompressionCodec(PARQUET_CODECS.getOrDefault(codec, CompressionCodecName.UNCOMPRESSED))
+                    .withRowGroupSize(parquetBlockSize)
+                    .withWriteMode(ParquetFileWriter.Mode.OVERWRITE)
+                    .build()) {
+                for (String inputFile : inputFiles) {
+                    System.out.println(inputFile + " >+ " + outputFile);
+                    Path inputFilePath = new Path(inputFile);
+
+                    MeteredInput input = decorateInputStream(inputFilePath, conf);
+                    long malformed = 0L;
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(input.stream(), StandardCharsets.UTF_8))) {
+                        for (String line; (line = reader.readLine()) != null; ) {
+                            String[] ll;
+                            try {
+                                ll = parser.parseLine(line);
+                            } catch (Exception e) {
+                                malformed++;
+                                if (malformed <= RecordInputStream.MALFORMED_SAMPLES) {
+                                    System.err.println("Malformed input line: " + line);
+                                }
+                                continue;
+                            }
+
+                            long start = System.nanoTime();
+                            Group group = groupFactory.newGroup();
+                            for (int i = 0, len = Math.min(ll.length, columns.length); i < len; i++) {
+                                group.add(i, ll[i]);
+                            }
+                            writer.write(group);
+                            encodeNanos += System.nanoTime() - start;
+
+                            partMetrics.progress(partMetrics.bytesDecoded + input.stream().bytes);
+                        }
+                    }
+
+                    CopyMetrics.FileMetrics fileMetrics = input.metrics();
+                    fileMetrics.malformed += malformed;
+                    partMetrics.add(fileMetrics);
+                    reportMalformed(fileMetrics);
+                }
+            }
+        } catch (Exception e) {
+            FileSystem outFs = outputFilePath.getFileSystem(conf);
+            outFs.delete(outputFilePath, true);
+
+            throw e;
+        }
+
+        // Parquet writer does its own encoding and writing, so only the file size is known
+        partMetrics.written(outputFilePath.getFileSystem(conf).getFileStatus(outputFilePath).getLen(), encodeNanos, 0L);
+
+        return partMetrics;
+    }
+
+    private static void reportMalformed(CopyMetrics.FileMetrics fileMetrics) {
+        if (fileMetrics.malformed > 0L) {
+            System.err.println(fileMetrics.malformed + " malformed input lines skipped in " + fileMetrics.source);
+        }
     }
 
     @Override
@@ -204,13 +304,23 @@ public class CopyFilesFunction implements VoidFunction<Tuple3<List<String>, Stri
                 }
             }
 
-            if (CODECS.containsKey(codec)) {
-                dest += "." + codec;
-            }
-
             Configuration conf = new Configuration();
 
-            mergeAndCopyFiles(srcFiles, dest, conf);
+            CopyMetrics partMetrics;
+            Tuple2<String[], Character> ti = (teeInfo != null) ? teeInfo.get(sink) : null;
+            if (ti != null) {
+                partMetrics = mergeToParquet(srcFiles, dest + ".parquet", conf, ti._1, ti._2);
+            } else {
+                if (CODECS.containsKey(codec)) {
+                    dest += "." + codec;
+                }
+
+                partMetrics = mergeAndCopyFiles(srcFiles, dest, conf);
+            }
+
+            if (metrics != null) {
+                metrics.add(partMetrics);
+            }
 
             if (deleteOnSuccess) {
                 for (String srcFile: srcFiles) {
@@ -225,4 +335,58 @@ public class CopyFilesFunction implements VoidFunction<Tuple3<List<String>, Stri
             System.exit(14);
         }
     }
+
+    private static class MeteredInput {
+        private final String source;
+        private MeteredInputStream read;
+        private MeteredInputStream decode;
+        private MeteredInputStream reorder;
+        private long fileLength = -1L;
+
+        private MeteredInput(String source) {
+            this.source = source;
+        }
+
+        private MeteredInputStream stream() {
+            return (reorder != null) ? reorder : ((decode != null) ? decode : read);
+        }
+
+        private CopyMetrics.FileMetrics metrics() {
+            CopyMetrics.FileMetrics fm = new CopyMetrics.FileMetrics(source);
+
+            long readNanos = (read != null) ? read.nanos : 0L;
+            long decodeNanos = (decode != null) ? decode.nanos : readNanos;
+            long reorderNanos = (reorder != null) ? reorder.nanos : decodeNanos;
+
+            fm.bytesRead = (read != null) ? read.bytes : fileLength;
+            fm.bytesDecoded = ((decode != null) ? decode : read).bytes;
+            fm.readMillis = readNanos / 1_000_000L;
+            fm.decodeMillis = (decodeNanos - readNanos) / 1_000_000L;
+            fm.reorderMillis = (reorderNanos - decodeNanos) / 1_000_000L;
+            fm.malformed = stream().getMalformed();
+
+            return fm;
+        }
+    }
+
+    private static class MeteredOutput {
+        private final MeteredOutputStream write;
+        private MeteredOutputStream encode;
+
+        private MeteredOutput(OutputStream outputStream) {
+            this.write = new MeteredOutputStream(outputStream);
+        }
+
+        private OutputStream stream() {
+            return (encode != null) ? encode : write;
+        }
+
+        private long decoded() {
+            return (encode != null) ? encode.bytes : write.bytes;
+        }
+
+        private long encodeNanos() {
+            return (encode != null) ? encode.nanos - write.nanos : 0L;
+        }
+    }
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import java.io.Serializable;
+
+/**
+ * Transfer metrics of a single part file, summed over source files merged into it. Byte counts are raw file
+ * sizes for read and written, and uncompressed size of the records for decoded. Times are in milliseconds
+ */
+public class CopyMetrics implements Serializable {
+    private static final long REPORT_INTERVAL = 30_000_000_000L;
+
+    public String dest;
+    public long bytesRead = 0L;
+    public long bytesDecoded = 0L;
+    public long bytesWritten = 0L;
+    public double compressionRatio = 0.D;
+    public long readMillis = 0L;
+    public long decodeMillis = 0L;
+    public long reorderMillis = 0L;
+    public long encodeMillis = 0L;
+    public long writeMillis = 0L;
+    public long totalMillis = 0L;
+    public long malformed = 0L;
+    public long files = 0L;
+
+    private transient long started;
+    private transient long lastReport;
+
+    public CopyMetrics() {
+    }
+
+    public CopyMetrics(String dest) {
+        this.dest = dest;
+
+        started = System.nanoTime();
+        lastReport = started;
+    }
+
+    public void add(FileMetrics fm) {
+        files++;
+
+        bytesRead += fm.bytesRead;
+        bytesDecoded += fm.bytesDecoded;
+        readMillis += fm.readMillis;
+        decodeMillis += fm.decodeMillis;
+        reorderMillis += fm.reorderMillis;
+        malformed += fm.malformed;
+    }
+
+    public void add(CopyMetrics part) {
+        bytesRead += part.bytesRead;
+        bytesDecoded += part.bytesDecoded;
+        bytesWritten += part.bytesWritten;
+        readMillis += part.readMillis;
+        decodeMillis += part.decodeMillis;
+        reorderMillis += part.reorderMillis;
+        encodeMillis += part.encodeMillis;
+        writeMillis += part.writeMillis;
+        totalMillis += part.totalMillis;
+        malformed += part.malformed;
+        files += part.files;
+
+        compressionRatio = (bytesWritten > 0L) ? (double) bytesDecoded / bytesWritten : 0.D;
+    }
+
+    public void written(long bytesWritten, long encodeNanos, long writeNanos) {
+        this.bytesWritten = bytesWritten;
+        encodeMillis = encodeNanos / 1_000_000L;
+        writeMillis = writeNanos / 1_000_000L;
+        totalMillis = (System.nanoTime() - started) / 1_000_000L;
+
+        compressionRatio = (bytesWritten > 0L) ? (double) bytesDecoded / bytesWritten : 0.D;
+    }
+
+    /**
+     * Prints current throughput of the part, if it wasn't reported for a while
+     */
+    public void progress(long bytesDecodedSoFar) {
+        long now = System.nanoTime();
+        if (now - lastReport >= REPORT_INTERVAL) {
+            lastReport = now;
+
+            double seconds = (now - started) / 1E9D;
+            System.out.println(String.format("%s: %d bytes decoded in %.0f s, %.2f MB/s",
+                    dest, bytesDecodedSoFar, seconds, bytesDecodedSoFar / seconds / (1024 * 1024)));
+        }
+    }
+
+    public static class FileMetrics implements Serializable {
+        public String source;
+        public long bytesRead = 0L;
+        public long bytesDecoded = 0L;
+        public long readMillis = 0L;
+        public long decodeMillis = 0L;
+        public long reorderMillis = 0L;
+        public long malformed = 0L;
+
+        public FileMetrics() {
+        }
+
+        public FileMetrics(String source) {
+            this.source = source;
+        }
+    }
+}
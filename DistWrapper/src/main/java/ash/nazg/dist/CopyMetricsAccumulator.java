@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import org.apache.spark.util.AccumulatorV2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Accumulates totals of part metrics, and keeps only a bounded number of the slowest parts, so the driver's memory
+ * doesn't grow with the number of copied parts
+ */
+public class CopyMetricsAccumulator extends AccumulatorV2<CopyMetrics, List<CopyMetrics>> {
+    public static final int SLOWEST_PARTS = 20;
+
+    // the queue goes with the accumulator between executors and the driver, so its comparator must be serializable
+    private static final Comparator<CopyMetrics> BY_TIME = new ByTime();
+
+    private CopyMetrics totals = new CopyMetrics();
+    private long parts = 0L;
+    private PriorityQueue<CopyMetrics> slowest = new PriorityQueue<>(BY_TIME);
+
+    @Override
+    public boolean isZero() {
+        return parts == 0L;
+    }
+
+    @Override
+    public AccumulatorV2<CopyMetrics, List<CopyMetrics>> copy() {
+        CopyMetricsAccumulator copy = new CopyMetricsAccumulator();
+        copy.merge(this);
+        return copy;
+    }
+
+    @Override
+    public void reset() {
+        totals = new CopyMetrics();
+        parts = 0L;
+        slowest = new PriorityQueue<>(BY_TIME);
+    }
+
+    @Override
+    public void add(CopyMetrics part) {
+        totals.add(part);
+        parts++;
+        offer(part);
+    }
+
+    @Override
+    public void merge(AccumulatorV2<CopyMetrics, List<CopyMetrics>> other) {
+        CopyMetricsAccumulator o = (CopyMetricsAccumulator) other;
+
+        totals.add(o.totals);
+        parts += o.parts;
+        o.slowest.forEach(this::offer);
+    }
+
+    /**
+     * @return slowest parts, slowest first
+     */
+    @Override
+    public List<CopyMetrics> value() {
+        List<CopyMetrics> ret = new ArrayList<>(slowest);
+        ret.sort(BY_TIME.reversed());
+        return ret;
+    }
+
+    public CopyMetrics getTotals() {
+        return totals;
+    }
+
+    public long getParts() {
+        return parts;
+    }
+
+    private void offer(CopyMetrics part) {
+        slowest.add(part);
+        if (slowest.size() > SLOWEST_PARTS) {
+            slowest.poll();
+        }
+    }
+
+    private static class ByTime implements Comparator<CopyMetrics>, Serializable {
+        @Override
+        public int compare(CopyMetrics a, CopyMetrics b) {
+            return Long.compare(a.totalMillis, b.totalMillis);
+        }
+    }
+}
@@ -11,12 +11,14 @@ import ash.nazg.storage.Adapters;
 import ash.nazg.storage.HadoopAdapter;
 import ash.nazg.storage.InputAdapter;
 import ash.nazg.storage.OutputAdapter;
-import com.google.common.collect.Lists;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import scala.Tuple2;
@@ -29,11 +31,16 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class DistWrapper extends WrapperBase {
+    private static final int DEFAULT_PARQUET_BLOCK_SIZE = 256 * 1024 * 1024;
+
     private final boolean local;
     protected DistCpSettings settings;
     private String codec;
     private boolean deleteOnSuccess = false;
     private Map<String, Tuple3<String[], String[], Character>> sinkInfo;
+    private Map<String, Tuple2<String[], Character>> teeInfo;
+    private int parquetBlockSize;
+    private int codecThreads;
 
     public DistWrapper(JavaSparkContext context, WrapperConfig config, boolean local) {
         super(context, config);
@@ -42,85 +49,237 @@ public class DistWrapper extends WrapperBase {
         settings = DistCpSettings.fromConfig(wrapperConfig);
     }
 
-    // from, to, group, ?sink
-    private void distCpCmd(List<Tuple4<String, String, String, String>> list) {
-        JavaRDD<Tuple4<String, String, String, String>> srcDestGroups = context.parallelize(list);
+    // from, to, group, ?sink or tee
+    private void distCpCmd(List<Tuple4<String, String, String, String>> list, CpDirection direction) {
+        // sink?, dest
+        List<Tuple2<String, String>> groups = new ArrayList<>();
+        List<Tuple2<Integer, Tuple4<String, String, String, String>>> sources = new ArrayList<>();
+        for (Tuple4<String, String, String, String> srcDestGroup : list) {
+            Tuple2<String, String> group = new Tuple2<>(srcDestGroup._4(), srcDestGroup._2());
+
+            int g = groups.indexOf(group);
+            if (g < 0) {
+                g = groups.size();
+                groups.add(group);
+            }
+            sources.add(new Tuple2<>(g, srcDestGroup));
+        }
+
+        if (sources.isEmpty()) {
+            System.out.println("Nothing to copy");
+            return;
+        }
 
-        // sink?, dest -> files
-        Map<Tuple2<String, String>, List<String>> discoveredFiles = srcDestGroups
-                .mapToPair(srcDestGroup -> {
-                    List<String> files = new ArrayList<>();
-                    try {
-                        Path srcPath = new Path(srcDestGroup._1());
+        // group, path, size or -1 for a subdirectory, ?regex
+        JavaRDD<Tuple4<Integer, String, Long, String>> topLevel = context.parallelize(sources, sources.size())
+                .flatMap(new ListSourcesFunction())
+                .cache();
 
-                        Configuration conf = new Configuration();
+        int subdirCount = (int) topLevel.filter(t -> t._3() < 0L).count();
 
-                        FileSystem srcFS = srcPath.getFileSystem(conf);
-                        RemoteIterator<LocatedFileStatus> srcFiles = srcFS.listFiles(srcPath, true);
+        // group, path, size
+        JavaRDD<Tuple3<Integer, String, Long>> discoveredFiles = topLevel
+                .filter(t -> t._3() >= 0L)
+                .map(t -> new Tuple3<>(t._1(), t._2(), t._3()));
 
-                        Pattern pattern = Pattern.compile(srcDestGroup._3());
+        if (subdirCount > 0) {
+            discoveredFiles = discoveredFiles.union(topLevel
+                    .filter(t -> t._3() < 0L)
+                    .repartition(subdirCount)
+                    .flatMap(subdir -> {
+                        List<Tuple3<Integer, String, Long>> files = new ArrayList<>();
+                        try {
+                            Path subdirPath = new Path(subdir._2());
 
-                        while (srcFiles.hasNext()) {
-                            String srcFile = srcFiles.next().getPath().toString();
+                            Configuration conf = new Configuration();
 
-                            Matcher m = pattern.matcher(srcFile);
-                            if (m.matches()) {
-                                files.add(srcFile);
+                            FileSystem srcFS = subdirPath.getFileSystem(conf);
+                            RemoteIterator<LocatedFileStatus> srcFiles = srcFS.listFiles(subdirPath, true);
+
+                            Pattern pattern = Pattern.compile(subdir._4());
+
+                            while (srcFiles.hasNext()) {
+                                LocatedFileStatus srcFile = srcFiles.next();
+                                String path = srcFile.getPath().toString();
+
+                                Matcher m = pattern.matcher(path);
+                                if (m.matches()) {
+                                    files.add(new Tuple3<>(subdir._1(), path, srcFile.getLen()));
+                                }
                             }
+                        } catch (Exception e) {
+                            System.err.println("Exception while enumerating files to copy: " + e.getMessage());
+                            e.printStackTrace(System.err);
+                            System.exit(13);
                         }
-                    } catch (Exception e) {
-                        System.err.println("Exception while enumerating files to copy: " + e.getMessage());
-                        e.printStackTrace(System.err);
-                        System.exit(13);
-                    }
 
-                    return new Tuple2<>(new Tuple2<>(srcDestGroup._4(), srcDestGroup._2()), files);
-                })
-                .combineByKey(t -> t, (c, t) -> {
-                    c.addAll(t);
-                    return c;
-                }, (c1, c2) -> {
-                    c1.addAll(c2);
-                    return c1;
-                })
-                .collectAsMap();
+                        return files.iterator();
+                    }));
+        }
+
+        JavaRDD<Tuple3<Integer, String, Long>> sortedFiles = discoveredFiles
+                .sortBy(t -> String.format("%08d/%s", t._1(), t._2()), true, discoveredFiles.getNumPartitions())
+                .cache();
+
+        // partition, group, files, bytes
+        List<Tuple4<Integer, Integer, Long, Long>> partitionStats = sortedFiles
+                .mapPartitionsWithIndex((idx, it) -> {
+                    Map<Integer, long[]> stats = new TreeMap<>();
+                    while (it.hasNext()) {
+                        Tuple3<Integer, String, Long> file = it.next();
 
-        CopyFilesFunction cff = new CopyFilesFunction(deleteOnSuccess, codec, sinkInfo);
+                        long[] stat = stats.computeIfAbsent(file._1(), g -> new long[2]);
+                        stat[0]++;
+                        stat[1] += file._3();
+                    }
 
-        List<Tuple3<List<String>, String, String>> regrouped = new ArrayList<>();
+                    List<Tuple4<Integer, Integer, Long, Long>> ret = new ArrayList<>();
+                    stats.forEach((g, stat) -> ret.add(new Tuple4<>(idx, g, stat[0], stat[1])));
+                    return ret.iterator();
+                }, false)
+                .collect();
+
+        // files are sorted by group, so each partition continues the groups of previous partitions
+        final long[] groupFiles = new long[groups.size()];
+        final long[] groupBytes = new long[groups.size()];
+        // partition, group -> files, bytes before that partition
+        final HashMap<Tuple2<Integer, Integer>, Tuple2<Long, Long>> offsets = new HashMap<>();
+        for (Tuple4<Integer, Integer, Long, Long> stat : partitionStats) {
+            int g = stat._2();
+
+            offsets.put(new Tuple2<>(stat._1(), g), new Tuple2<>(groupFiles[g], groupBytes[g]));
+            groupFiles[g] += stat._3();
+            groupBytes[g] += stat._4();
+        }
 
         int numOfExecutors = local ? 1 : (int) Math.ceil(Integer.parseInt(context.getConf().get("spark.executor.instances", "20")) * 0.8);
         numOfExecutors = Math.max(numOfExecutors, 1);
-        for (Map.Entry<Tuple2<String, String>, List<String>> group : discoveredFiles.entrySet()) {
+
+        final int[] groupParts = new int[groups.size()];
+        final int[] groupBase = new int[groups.size()];
+        final List<String> partDest = new ArrayList<>();
+        final List<String> partSink = new ArrayList<>();
+        for (int g = 0; g < groups.size(); g++) {
             int desiredNumber = numOfExecutors;
 
-            String sink = group.getKey()._1;
-            if (sink != null) {
+            String sink = groups.get(g)._1;
+            if ((sink != null) && (sinkInfo != null)) {
                 desiredNumber = wrapperConfig.inputParts(sink);
                 if (desiredNumber <= 0) {
                     desiredNumber = numOfExecutors;
                 }
             }
 
-            List<String> sinkFiles = group.getValue();
-            int countOfFiles = sinkFiles.size();
-
-            int groupSize = countOfFiles / desiredNumber;
-            if (groupSize <= 0) {
-                groupSize = 1;
+            groupParts[g] = (int) Math.min(desiredNumber, groupFiles[g]);
+            groupBase[g] = partDest.size();
+            for (int i = 0; i < groupParts[g]; i++) {
+                partDest.add(groups.get(g)._2 + "/part-" + String.format("%05d", i));
+                partSink.add(sink);
             }
+        }
+
+        if (partDest.isEmpty()) {
+            topLevel.unpersist();
+            sortedFiles.unpersist();
+
+            System.out.println("Nothing to copy");
+            return;
+        }
+
+        CopyMetricsAccumulator metrics = new CopyMetricsAccumulator();
+        context.sc().register(metrics, "one-ring:distcp:metrics");
+        CopyFilesFunction cff = new CopyFilesFunction(deleteOnSuccess, codec, sinkInfo, teeInfo, parquetBlockSize, codecThreads, metrics);
 
-            List<List<String>> sinkParts = Lists.partition(sinkFiles, groupSize);
+        // consecutive runs of files of each group go into its parts, balanced by their size
+        JavaRDD<Tuple3<List<String>, String, String>> regrouped = sortedFiles
+                .mapPartitionsWithIndex((idx, it) -> {
+                    Map<Integer, long[]> running = new HashMap<>();
 
-            for (int i = 0; i < sinkParts.size(); i++) {
-                List<String> sinkPart = sinkParts.get(i);
+                    List<Tuple2<Integer, String>> ret = new ArrayList<>();
+                    while (it.hasNext()) {
+                        Tuple3<Integer, String, Long> file = it.next();
+                        int g = file._1();
 
-                regrouped.add(new Tuple3<>(new ArrayList<>(sinkPart), group.getKey()._2 + "/part-" + String.format("%05d", i), sink));
+                        long[] before = running.computeIfAbsent(g, k -> {
+                            Tuple2<Long, Long> offset = offsets.get(new Tuple2<>(idx, k));
+                            return new long[]{offset._1, offset._2};
+                        });
+
+                        int part = (groupBytes[g] > 0L)
+                                ? (int) ((double) before[1] / groupBytes[g] * groupParts[g])
+                                : (int) ((double) before[0] / groupFiles[g] * groupParts[g]);
+                        ret.add(new Tuple2<>(groupBase[g] + Math.min(part, groupParts[g] - 1), file._2()));
+
+                        before[0]++;
+                        before[1] += file._3();
+                    }
+
+                    return ret.iterator();
+                }, true)
+                .mapToPair(t -> t)
+                .groupByKey(new HashPartitioner(partDest.size()))
+                .map(t -> {
+                    List<String> files = new ArrayList<>();
+                    t._2.forEach(files::add);
+                    Collections.sort(files);
+
+                    return new Tuple3<>(files, partDest.get(t._1), partSink.get(t._1));
+                });
+
+        long started = System.currentTimeMillis();
+        regrouped.foreach(cff);
+
+        topLevel.unpersist();
+        sortedFiles.unpersist();
+
+        report(direction, metrics, System.currentTimeMillis() - started);
+    }
+
+    private void report(CpDirection direction, CopyMetricsAccumulator metrics, long wallMillis) {
+        CopyMetrics totals = metrics.getTotals();
+
+        double seconds = Math.max(wallMillis, 1L) / 1000.D;
+        System.out.println(String.format("Copied %d parts in %.1f s: %d bytes read, %d decoded, %d written, %d malformed lines",
+                metrics.getParts(), seconds, totals.bytesRead, totals.bytesDecoded, totals.bytesWritten, totals.malformed));
+        System.out.println(String.format("- throughput: %.2f MB/s read, %.2f MB/s decoded, %.2f MB/s written",
+                totals.bytesRead / seconds / (1024 * 1024), totals.bytesDecoded / seconds / (1024 * 1024), totals.bytesWritten / seconds / (1024 * 1024)));
+        System.out.println(String.format("- task time, ms: %d read, %d decode, %d reorder, %d encode, %d write",
+                totals.readMillis, totals.decodeMillis, totals.reorderMillis, totals.encodeMillis, totals.writeMillis));
+
+        if (settings.wrapperStorePath != null) {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("direction", direction.toString());
+            report.put("wallMillis", wallMillis);
+            report.put("totals", totals);
+            report.put("parts", metrics.getParts());
+            report.put("slowestParts", metrics.value());
+
+            try {
+                String json = new ObjectMapper().disable(SerializationFeature.FAIL_ON_EMPTY_BEANS).writeValueAsString(report);
+
+                String path = settings.wrapperStorePath + "/distcp_" + (direction.toCluster ? "to" : "from");
+                OutputAdapter reportOutput = Adapters.output(path);
+                reportOutput.setProperties("_default", wrapperConfig);
+                reportOutput.save(path, context.parallelize(Collections.singletonList(json), 1));
+            } catch (Exception e) {
+                System.err.println("Exception while writing copy metrics report: " + e.getMessage());
+                e.printStackTrace(System.err);
             }
         }
+    }
+
+    private void addTeeInfo(String tee) {
+        if (teeInfo != null) {
+            String[] columns = wrapperConfig.getTeeColumns(tee);
+
+            if (columns != null) {
+                teeInfo.put(tee, new Tuple2<>(columns, wrapperConfig.getTeeDelimiter(tee)));
 
-        context.parallelize(regrouped, regrouped.size())
-                .foreach(cff);
+                System.out.println("Tee: " + tee);
+                System.out.println("- columns: " + Arrays.toString(columns));
+                System.out.println("- delimiter: " + wrapperConfig.getTeeDelimiter(tee));
+            }
+        }
     }
 
     public void go() {
@@ -131,12 +290,22 @@ public class DistWrapper extends WrapperBase {
 
         if (distDirection.anyDirection && settings.anyDirection) {
             codec = wrapperConfig.getDistCpProperty("codec", "none");
+            codecThreads = Integer.parseInt(wrapperConfig.getDistCpProperty("codec.threads", "1"));
 
             if (distDirection == CpDirection.FROM_CLUSTER) {
                 deleteOnSuccess = Boolean.parseBoolean(wrapperConfig.getDistCpProperty("move", "true"));
+
+                if ("parquet".equalsIgnoreCase(wrapperConfig.getDistCpProperty("format", "text"))) {
+                    teeInfo = new HashMap<>();
+                    parquetBlockSize = Integer.parseInt(wrapperConfig.getDistCpProperty("parquet.block.size", String.valueOf(DEFAULT_PARQUET_BLOCK_SIZE)));
+                }
             }
 
-            if (distDirection.toCluster && settings.toCluster) {
+            if (distDirection.toCluster && settings.toCluster && settings.streamInputs) {
+                System.out.println("Sinks are streamed directly to the task, nothing to copy");
+            }
+
+            if (distDirection.toCluster && settings.toCluster && !settings.streamInputs) {
                 List<Tuple4<String, String, String, String>> inputs = new ArrayList<>();
 
                 List<String> sinks = wrapperConfig.getInputSink();
@@ -160,7 +329,7 @@ public class DistWrapper extends WrapperBase {
                     }
                 }
 
-                distCpCmd(inputs);
+                distCpCmd(inputs, distDirection);
             }
 
             if (distDirection.fromCluster && settings.fromCluster) {
@@ -176,12 +345,13 @@ public class DistWrapper extends WrapperBase {
                             .map(output -> {
                                 String path = String.valueOf(output);
                                 String name = path.substring((settings.outputDir + "/").length());
+                                addTeeInfo(name);
 
-                                return new Tuple4<>(path, wrapperConfig.outputPath(name), ".*/(" + name + ".*?)/part.*", (String) null);
+                                return new Tuple4<>(path, wrapperConfig.outputPath(name), ".*/(" + name + ".*?)/part.*", name);
                             })
                             .collect(Collectors.toList());
 
-                    distCpCmd(outputs);
+                    distCpCmd(outputs, distDirection);
                 } else {
                     List<String> tees = wrapperConfig.getTeeOutput();
 
@@ -196,14 +366,16 @@ public class DistWrapper extends WrapperBase {
                         OutputAdapter outputAdapter = Adapters.output(path);
                         if (outputAdapter instanceof HadoopAdapter) {
                             if (Adapters.PATH_PATTERN.matcher(path).matches()) {
-                                teeList.add(new Tuple4<>(settings.outputDir + "/" + tee, path, ".*/(" + tee + ".*?)/part.*", null));
+                                addTeeInfo(tee);
+
+                                teeList.add(new Tuple4<>(settings.outputDir + "/" + tee, path, ".*/(" + tee + ".*?)/part.*", tee));
                             } else {
                                 throw new InvalidConfigValueException("Output path '" + path + "' must point to a subdirectory for an output '" + tee + "'");
                             }
                         }
                     }
 
-                    distCpCmd(teeList);
+                    distCpCmd(teeList, distDirection);
                 }
             }
         }
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import scala.Tuple2;
+import scala.Tuple4;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Lists only the top level of a source path. Files are returned as is, with their size, and subdirectories are
+ * returned with size of -1 and the group regex, to be walked recursively each by a separate task. Subdirectories
+ * that can't lead to any path matching the regex anchored at the source are skipped right away
+ */
+public class ListSourcesFunction implements FlatMapFunction<Tuple2<Integer, Tuple4<String, String, String, String>>, Tuple4<Integer, String, Long, String>> {
+    @Override
+    public Iterator<Tuple4<Integer, String, Long, String>> call(Tuple2<Integer, Tuple4<String, String, String, String>> groupSrc) {
+        Integer group = groupSrc._1;
+        String regex = groupSrc._2._3();
+
+        List<Tuple4<Integer, String, Long, String>> ret = new ArrayList<>();
+        try {
+            Path srcPath = new Path(groupSrc._2._1());
+
+            Configuration conf = new Configuration();
+
+            FileSystem srcFS = srcPath.getFileSystem(conf);
+            srcPath = srcFS.makeQualified(srcPath);
+
+            Pattern pattern = Pattern.compile(regex);
+            Pattern prefix = anchoredPrefix(srcPath, regex);
+
+            for (FileStatus status : srcFS.listStatus(srcPath)) {
+                String child = status.getPath().toString();
+
+                if (status.isDirectory()) {
+                    if (prefix != null) {
+                        Matcher m = prefix.matcher(child + "/");
+                        if (!m.matches() && !m.hitEnd()) {
+                            continue;
+                        }
+                    }
+
+                    ret.add(new Tuple4<>(group, child, -1L, regex));
+                } else if (pattern.matcher(child).matches()) {
+                    ret.add(new Tuple4<>(group, child, status.getLen(), null));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Exception while enumerating files to copy: " + e.getMessage());
+            e.printStackTrace(System.err);
+            System.exit(13);
+        }
+
+        return ret.iterator();
+    }
+
+    /**
+     * Group regexes always start with a wildcard and a slash followed by the last part of the source path, so
+     * replacing the wildcard with the parent of the source gives a pattern that a directory must be a prefix of
+     * to contain anything to copy
+     */
+    private static Pattern anchoredPrefix(Path srcPath, String regex) {
+        Path parent = srcPath.getParent();
+        if ((parent == null) || !regex.startsWith(".*/")) {
+            return null;
+        }
+
+        String anchor = parent.toString();
+        if (anchor.endsWith("/")) {
+            return null;
+        }
+
+        return Pattern.compile(Pattern.quote(anchor) + regex.substring(2));
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts bytes passed through and time spent inside the wrapped stream, including all the streams it wraps itself
+ */
+public class MeteredInputStream extends FilterInputStream {
+    public long bytes = 0L;
+    public long nanos = 0L;
+
+    public MeteredInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = in.read();
+        nanos += System.nanoTime() - start;
+
+        if (b >= 0) {
+            bytes++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int read = in.read(b, off, len);
+        nanos += System.nanoTime() - start;
+
+        if (read > 0) {
+            bytes += read;
+        }
+        return read;
+    }
+
+    public long getMalformed() {
+        return (in instanceof RecordInputStream) ? ((RecordInputStream) in).getMalformed() : 0L;
+    }
+}
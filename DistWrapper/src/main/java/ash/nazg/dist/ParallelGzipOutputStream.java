@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses independent blocks of the stream on a thread pool, and writes each of them in order as a separate
+ * gzip member. A sequence of concatenated members is a valid gzip file for any standard decoder.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private final int blockSize;
+
+    private byte[] block;
+    private int blockPosition = 0;
+    private boolean written = false;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out, int threads) {
+        this(out, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.maxPending = threads * 2;
+        this.block = new byte[blockSize];
+
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "one-ring-pgzip");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockPosition++] = (byte) b;
+
+        if (blockPosition == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunk = Math.min(len, blockSize - blockPosition);
+
+            System.arraycopy(b, off, block, blockPosition, chunk);
+            blockPosition += chunk;
+            off += chunk;
+            len -= chunk;
+
+            if (blockPosition == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = blockPosition;
+
+        pending.add(executor.submit(() -> compress(data, length)));
+        written = true;
+
+        block = new byte[blockSize];
+        blockPosition = 0;
+
+        while (pending.size() >= maxPending) {
+            writeNextMember();
+        }
+    }
+
+    private void writeNextMember() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Block compression failed", e);
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member, 64 * 1024)) {
+            gzip.write(data, 0, length);
+        }
+
+        return member.toByteArray();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            // an empty file isn't valid gzip, so there must be at least one member
+            if ((blockPosition > 0) || !written) {
+                submitBlock();
+            }
+
+            while (!pending.isEmpty()) {
+                writeNextMember();
+            }
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+}
@@ -8,12 +8,18 @@ import java.io.IOException;
 import java.io.InputStream;
 
 public abstract class RecordInputStream extends InputStream {
+    /**
+     * Max number of malformed lines printed for each source file, the rest are only counted
+     */
+    public static final int MALFORMED_SAMPLES = 3;
+
     protected final int[] order;
     protected final char delimiter;
 
     protected byte[] recordBuffer;
     protected int position = 0;
     protected int size = 0;
+    protected long malformed = 0L;
 
     public RecordInputStream(int[] order, char delimiter) {
         this.order = order;
@@ -27,7 +33,7 @@ public abstract class RecordInputStream extends InputStream {
             return -1;
         }
 
-        int c = recordBuffer[position];
+        int c = recordBuffer[position] & 0xFF;
         position++;
 
         return c;
@@ -35,19 +41,31 @@ public abstract class RecordInputStream extends InputStream {
 
     @Override
     public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
         ensureRecord();
         if (recordBuffer == null) {
             return -1;
         }
 
         int remaining = size - position;
-        int len = Math.min(remaining, b.length);
+        len = Math.min(remaining, len);
 
-        System.arraycopy(recordBuffer, position, b, 0, len);
+        System.arraycopy(recordBuffer, position, b, off, len);
         position += len;
 
         return len;
     }
 
+    /**
+     * @return number of source records skipped because they couldn't be parsed
+     */
+    public long getMalformed() {
+        return malformed;
+    }
+
     protected abstract void ensureRecord() throws IOException;
 }
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CopyMetricsAccumulatorTest {
+    @Test
+    public void boundedSlowestPartsTest() {
+        try (JavaSparkContext ctx = new JavaSparkContext("local[2]", "test")) {
+            CopyMetricsAccumulator metrics = new CopyMetricsAccumulator();
+            ctx.sc().register(metrics, "one-ring:distcp:metrics");
+
+            List<Integer> parts = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                parts.add(i);
+            }
+
+            ctx.parallelize(parts, 4).foreach(i -> {
+                CopyMetrics part = new CopyMetrics("part-" + i);
+                part.totalMillis = i;
+                part.bytesRead = 1L;
+                part.files = 2L;
+
+                metrics.add(part);
+            });
+
+            assertEquals(100L, metrics.getParts());
+            assertEquals(100L, metrics.getTotals().bytesRead);
+            assertEquals(200L, metrics.getTotals().files);
+
+            List<CopyMetrics> slowest = metrics.value();
+            assertEquals(CopyMetricsAccumulator.SLOWEST_PARTS, slowest.size());
+            for (int i = 0; i < slowest.size(); i++) {
+                assertEquals(99L - i, slowest.get(i).totalMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import scala.Tuple2;
+import scala.Tuple3;
+import scala.Tuple4;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ListSourcesFunctionTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void topLevelTest() throws Exception {
+        File source = folder.newFolder("source");
+        new File(source, "2020-01").mkdirs();
+        new File(source, "2020-02").mkdirs();
+        new File(source, "2019-12").mkdirs();
+        Files.write(new File(source, "2020-top.csv").toPath(), new byte[10]);
+        Files.write(new File(source, "other.csv").toPath(), new byte[10]);
+
+        String glob = "file:" + source.getAbsolutePath() + "/2020*";
+        Tuple3<String, String, String> split = DistCpSettings.srcDestGroup(glob).get(0);
+
+        List<Tuple4<Integer, String, Long, String>> found = new ArrayList<>();
+        new ListSourcesFunction().call(new Tuple2<>(7, new Tuple4<>(split._2(), "file:/dest", split._3(), null)))
+                .forEachRemaining(found::add);
+        found.sort((a, b) -> a._2().compareTo(b._2()));
+
+        assertEquals(3, found.size());
+
+        assertEquals(7, found.get(0)._1().intValue());
+        assertEquals("2020-01", new File(found.get(0)._2()).getName());
+        assertEquals(-1L, found.get(0)._3().longValue());
+        assertEquals(split._3(), found.get(0)._4());
+
+        assertEquals("2020-02", new File(found.get(1)._2()).getName());
+        assertEquals(-1L, found.get(1)._3().longValue());
+
+        assertEquals("2020-top.csv", new File(found.get(2)._2()).getName());
+        assertEquals(10L, found.get(2)._3().longValue());
+        assertNull(found.get(2)._4());
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class MeteredCopyTest {
+    @Test
+    public void malformedLinesTest() throws Exception {
+        String source = "a,b,c\n\"broken,d,e\nf,g,h\n";
+
+        MeteredInputStream raw = new MeteredInputStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+        MeteredInputStream reordered = new MeteredInputStream(new CSVRecordInputStream(raw, new int[]{2, 0}, ','));
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        MeteredOutputStream written = new MeteredOutputStream(result);
+
+        // malformed line in the middle must not cut the copy short
+        IOUtils.copy(reordered, written);
+
+        assertEquals("c,a\nh,f\n", new String(result.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(source.length(), raw.bytes);
+        assertEquals(8L, reordered.bytes);
+        assertEquals(8L, written.bytes);
+        assertEquals(1L, reordered.getMalformed());
+    }
+}
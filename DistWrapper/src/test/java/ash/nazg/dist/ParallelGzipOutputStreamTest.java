@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParallelGzipOutputStreamTest {
+    @Test
+    public void roundTripTest() throws Exception {
+        byte[] source = new byte[1000 * 1000 + 17];
+        Random random = new Random(42L);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (byte) ('a' + random.nextInt(8));
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new ParallelGzipOutputStream(compressed, 4, 64 * 1024)) {
+            out.write(source, 0, 100);
+            out.write(source[100]);
+            out.write(source, 101, source.length - 101);
+        }
+
+        byte[] decompressed = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+        assertArrayEquals(source, decompressed);
+    }
+
+    @Test
+    public void emptyStreamTest() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, 2).close();
+
+        byte[] decompressed = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+        assertEquals(0, decompressed.length);
+    }
+}
@@ -5,30 +5,45 @@
 package ash.nazg.geohashing.functions;
 
 import com.uber.h3core.H3Core;
-import org.apache.hadoop.io.Text;
-import scala.Tuple2;
-import scala.Tuple3;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.io.IOException;
 
 public class H3Function extends HasherFunction {
+    private static H3Core h3 = null;
+
     public H3Function(int level) {
         super(level);
     }
 
+    private static void setupH3() {
+        try {
+            if (h3 == null) {
+                h3 = H3Core.newInstance();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
-    public Iterator<Tuple2<Text, Text>> call(Iterator<Tuple3<Double, Double, Text>> signals) throws Exception {
-        H3Core h3 = H3Core.newInstance();
+    public long hash(double lat, double lon) {
+        setupH3();
+
+        return h3.geoToH3(lat, lon, level);
+    }
 
-        List<Tuple2<Text, Text>> ret = new ArrayList<>();
-        while (signals.hasNext()) {
-            Tuple3<Double, Double, Text> signal = signals.next();
+    @Override
+    public long parent(long hash, int level) {
+        setupH3();
 
-            ret.add(new Tuple2<>(new Text(h3.geoToH3Address(signal._1(), signal._2(), level)), signal._3()));
-        }
+        return (level == this.level) ? hash : h3.h3ToParent(hash, level);
+    }
 
-        return ret.iterator();
+    /**
+     * @return same hexadecimal address as {@link H3Core#h3ToString(long)}
+     */
+    @Override
+    public String format(long hash, int level) {
+        return Long.toHexString(hash);
     }
 }
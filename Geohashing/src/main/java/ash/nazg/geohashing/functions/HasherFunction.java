@@ -4,19 +4,25 @@
  */
 package ash.nazg.geohashing.functions;
 
-import org.apache.hadoop.io.Text;
-import org.apache.spark.api.java.function.FlatMapFunction;
-import scala.Tuple2;
-import scala.Tuple3;
+import java.io.Serializable;
 
-import java.util.Iterator;
-
-public abstract class HasherFunction implements FlatMapFunction<Iterator<Tuple3<Double, Double, Text>>, Tuple2<Text, Text>> {
+/**
+ * Geohasher of a coordinate pair into a primitive long hash of the finest requested level, which is formatted into
+ * its textual code only when it is written into an output column. Hashes of coarser levels are derived from it
+ */
+public abstract class HasherFunction implements Serializable {
     protected int level;
 
     protected HasherFunction(int level) {
         this.level = level;
     }
 
-    abstract public Iterator<Tuple2<Text, Text>> call(Iterator<Tuple3<Double, Double, Text>> signals) throws Exception;
+    abstract public long hash(double lat, double lon);
+
+    /**
+     * @return hash of a coarser level that contains the hash of the finest level
+     */
+    abstract public long parent(long hash, int level);
+
+    abstract public String format(long hash, int level);
 }
@@ -5,15 +5,19 @@
 package ash.nazg.geohashing.functions;
 
 import org.apache.commons.math3.fraction.Fraction;
-import org.apache.hadoop.io.Text;
-import scala.Tuple2;
-import scala.Tuple3;
-
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
 
 public class JapanMeshFunction extends HasherFunction {
+    // number of decimal digits in the mesh code of each level
+    private static final int[] CODE_DIGITS = {0, 4, 6, 8, 9, 10, 11};
+    private static final long[] CODE_LIMITS = {1L, 10_000L, 1_000_000L, 100_000_000L, 1_000_000_000L, 10_000_000_000L, 100_000_000_000L};
+
+    // all levels are aligned to the grid of level 6 mesh, which is 1/960 degree of latitude by 1/640 of longitude
+    private static final double LAT_UNITS = 960.D;
+    private static final double LNG_UNITS = 640.D;
+    private static final double MAX_UNITS = 64_000.D;
+    // locations closer to a grid line than this (in grid units) are hashed with exact fractions
+    private static final double EPSILON = 1.E-7;
+
     private final Fraction LAT_HEIGHT_MESH1 = new Fraction(2, 3);
     private final Fraction LNG_WIDTH_MESH1 = new Fraction(1, 1);
     private final Fraction LAT_HEIGHT_MESH2 = LAT_HEIGHT_MESH1.divide(8);
@@ -27,6 +31,8 @@ public class JapanMeshFunction extends HasherFunction {
     private final Fraction LAT_HEIGHT_MESH6 = LAT_HEIGHT_MESH5.divide(2);
     private final Fraction LNG_WIDTH_MESH6 = LNG_WIDTH_MESH5.divide(2);
 
+    private transient char[] buffer;
+
     public JapanMeshFunction(int level) {
         super(level);
     }
@@ -38,7 +44,75 @@ public class JapanMeshFunction extends HasherFunction {
      * @param lat   latitude(decimal)
      */
     public String getHash(double lat, double lon) {
-        String code = "";
+        return format(hash(lat, lon), level);
+    }
+
+    /**
+     * Calculate code as a number, which decimal digits are the digits of the mesh code. Location is converted to
+     * integer cells of the finest grid once, and digits of all levels are taken from them. Locations on or very
+     * close to grid lines, and outside of the mesh domain, are hashed by {@link #exactHash(double, double)}
+     *
+     * @param lon   longitude(decimal)
+     * @param lat   latitude(decimal)
+     */
+    @Override
+    public long hash(double lat, double lon) {
+        double latUnits = lat * LAT_UNITS;
+        double lngUnits = (lon - 100.D) * LNG_UNITS;
+        if (!((latUnits >= 0.D) && (latUnits < MAX_UNITS) && (lngUnits >= 0.D) && (lngUnits < MAX_UNITS))) {
+            return exactHash(lat, lon);
+        }
+
+        long latCell = (long) latUnits;
+        long lngCell = (long) lngUnits;
+        if ((latUnits - latCell < EPSILON) || (latCell + 1 - latUnits < EPSILON)
+                || (lngUnits - lngCell < EPSILON) || (lngCell + 1 - lngUnits < EPSILON)) {
+            return exactHash(lat, lon);
+        }
+
+        int latRest = (int) latCell;
+        int lngRest = (int) lngCell;
+
+        // level 1 mesh is 640 by 640 grid cells
+        long code = (latRest / 640) * 100L + (lngRest / 640);
+        if (level < 2) return code;
+        latRest %= 640;
+        lngRest %= 640;
+
+        // level 2 is 80 by 80
+        code = code * 100L + (latRest / 80) * 10L + (lngRest / 80);
+        if (level < 3) return code;
+        latRest %= 80;
+        lngRest %= 80;
+
+        // level 3 is 8 by 8
+        code = code * 100L + (latRest / 8) * 10L + (lngRest / 8);
+        if (level < 4) return code;
+        latRest %= 8;
+        lngRest %= 8;
+
+        // levels 4 to 6 are halves, numbered 1 to 4 from south-west to north-east
+        code = code * 10L + (latRest / 4) * 2 + (lngRest / 4) + 1;
+        if (level < 5) return code;
+        latRest %= 4;
+        lngRest %= 4;
+
+        code = code * 10L + (latRest / 2) * 2 + (lngRest / 2) + 1;
+        if (level < 6) return code;
+        latRest %= 2;
+        lngRest %= 2;
+
+        return code * 10L + latRest * 2 + lngRest + 1;
+    }
+
+    /**
+     * Calculate code as a number with exact fractions of mesh sizes.
+     *
+     * @param lon   longitude(decimal)
+     * @param lat   latitude(decimal)
+     */
+    public long exactHash(double lat, double lon) {
+        long code = 0L;
 
         // mesh level 1 : 4 characters ==============================
         int lat_1 = (int) (lat * 1.5) % 100;  // mesh1 lat
@@ -47,7 +121,7 @@ public class JapanMeshFunction extends HasherFunction {
         // level 1 ==============================
         if (level >= 1) {
             // Mesh code format:
-            code = String.format("%02d%02d", lat_1, lng_1);
+            code = lat_1 * 100L + lng_1;
         }
 
         // level 2 ==============================
@@ -59,7 +133,7 @@ public class JapanMeshFunction extends HasherFunction {
         int lng_2 = (int) ((lon - (lng_1 + 100)) / LNG_WIDTH_MESH2.doubleValue());
 
         // Mesh code format:  %02d%02d-%d%d
-        code = String.format("%02d%02d%d%d", lat_1, lng_1, lat_2, lng_2);
+        code = code * 100L + lat_2 * 10L + lng_2;
 
         // level 3 ==============================
         if (level < 3) return code;
@@ -74,7 +148,7 @@ public class JapanMeshFunction extends HasherFunction {
                 / LNG_WIDTH_MESH3.doubleValue());
 
         // Mesh code format:  %02d%02d-%d%d-%d%d
-        code = String.format("%02d%02d%d%d%d%d", lat_1, lng_1, lat_2, lng_2, lat_3, lng_3);
+        code = code * 100L + lat_3 * 10L + lng_3;
 
         // level 4 ==============================
         if (level < 4) return code;
@@ -92,8 +166,7 @@ public class JapanMeshFunction extends HasherFunction {
                 / LNG_WIDTH_MESH4.doubleValue());
 
         // Mesh code format: %02d%02d-%d%d-%d%d-%d
-        code = String.format("%02d%02d%d%d%d%d%d", lat_1, lng_1, lat_2, lng_2, lat_3, lng_3,
-                composeCode(lat_4, lng_4));
+        code = code * 10L + composeCode(lat_4, lng_4);
 
         // level 5 ==============================
         if (level < 5) return code;
@@ -113,9 +186,7 @@ public class JapanMeshFunction extends HasherFunction {
                 / LNG_WIDTH_MESH5.doubleValue());
 
         // Mesh code format:  %02d%02d-%d%d-%d%d-%d-%d
-        code = String.format("%02d%02d%d%d%d%d%d%d", lat_1, lng_1, lat_2, lng_2, lat_3, lng_3,
-                composeCode(lat_4, lng_4),
-                composeCode(lat_5, lng_5));
+        code = code * 10L + composeCode(lat_5, lng_5);
 
         // level 6 ==============================
         if (level < 6) return code;
@@ -136,10 +207,7 @@ public class JapanMeshFunction extends HasherFunction {
                 / LNG_WIDTH_MESH6.doubleValue());
 
         // Mesh code format:  %02d%02d-%d%d-%d%d-%d-%d-%d
-        code = String.format("%02d%02d%d%d%d%d%d%d%d", lat_1, lng_1, lat_2, lng_2, lat_3, lng_3,
-                composeCode(lat_4, lng_4),
-                composeCode(lat_5, lng_5),
-                composeCode(lat_6, lng_6));
+        code = code * 10L + composeCode(lat_6, lng_6);
 
         return code;
     }
@@ -164,15 +232,36 @@ public class JapanMeshFunction extends HasherFunction {
         }
     }
 
+    /**
+     * Mesh code of a coarser level is a prefix of the finer one
+     */
     @Override
-    public Iterator<Tuple2<Text, Text>> call(Iterator<Tuple3<Double, Double, Text>> signals) {
-        List<Tuple2<Text, Text>> ret = new ArrayList<>();
-        while (signals.hasNext()) {
-            Tuple3<Double, Double, Text> signal = signals.next();
+    public long parent(long hash, int level) {
+        for (int i = CODE_DIGITS[level]; i < CODE_DIGITS[this.level]; i++) {
+            hash /= 10L;
+        }
+        return hash;
+    }
 
-            ret.add(new Tuple2<>(new Text(getHash(signal._1(), signal._2())), signal._3()));
+    /**
+     * @return mesh code, zero-padded to the number of digits of the level
+     */
+    @Override
+    public String format(long hash, int level) {
+        // outside of the mesh domain
+        if ((hash < 0L) || (hash >= CODE_LIMITS[level])) {
+            return Long.toString(hash);
         }
 
-        return ret.iterator();
+        if (buffer == null) {
+            buffer = new char[CODE_DIGITS[CODE_DIGITS.length - 1]];
+        }
+
+        int digits = CODE_DIGITS[level];
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[i] = (char) ('0' + (hash % 10L));
+            hash /= 10L;
+        }
+        return new String(buffer, 0, digits);
     }
 }
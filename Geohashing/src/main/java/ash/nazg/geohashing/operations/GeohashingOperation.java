@@ -16,8 +16,6 @@ import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
 import org.sparkproject.guava.primitives.Ints;
-import scala.Tuple2;
-import scala.Tuple3;
 
 import java.io.StringWriter;
 import java.util.*;
@@ -29,14 +27,23 @@ public abstract class GeohashingOperation extends Operation {
     public static final String DS_LON_COLUMN = "lon.column";
     @Description("Level of the hash")
     public static final String OP_HASH_LEVEL = "hash.level";
+    @Description("Levels of additional hashes, computed in the same pass. Only the finest of all levels is hashed" +
+            " from coordinates, and hashes of coarser levels, including the main one, are its parents")
+    public static final String OP_HASH_LEVELS = "hash.levels";
     @Description("Column with a generated hash value")
     public static final String GEN_HASH = "_hash";
+    @Description("Columns with generated hash values of additional levels, i.e. '_hash_7' for the level 7")
+    public static final String GEN_HASH_PREFIX = "_hash_*";
+    @Description("By default, no additional levels are hashed")
+    public static final String[] DEF_HASH_LEVELS = null;
 
+    // finest of all requested levels
     protected Integer level;
     private String inputName;
     private char inputDelimiter;
     private String outputName;
     private char outputDelimiter;
+    // input column, or -1 minus hash level for generated columns
     private int[] outputColumns;
     private Integer latColumn;
     private Integer lonColumn;
@@ -49,6 +56,7 @@ public abstract class GeohashingOperation extends Operation {
                         new TaskDescriptionLanguage.Definition(DS_LAT_COLUMN),
                         new TaskDescriptionLanguage.Definition(DS_LON_COLUMN),
                         new TaskDescriptionLanguage.Definition(OP_HASH_LEVEL, Integer.class, getDefaultLevel()),
+                        new TaskDescriptionLanguage.Definition(OP_HASH_LEVELS, String[].class, DEF_HASH_LEVELS),
                 },
 
                 new TaskDescriptionLanguage.OpStreams(
@@ -61,7 +69,7 @@ public abstract class GeohashingOperation extends Operation {
                 new TaskDescriptionLanguage.OpStreams(
                         new TaskDescriptionLanguage.DataStream(
                                 new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.CSV},
-                                new String[]{GEN_HASH}
+                                new String[]{GEN_HASH, GEN_HASH_PREFIX}
                         )
                 )
         );
@@ -85,23 +93,58 @@ public abstract class GeohashingOperation extends Operation {
         prop = describedProps.defs.getTyped(DS_LON_COLUMN);
         lonColumn = inputColumns.get(prop);
 
+        Integer hashLevel = describedProps.defs.getTyped(OP_HASH_LEVEL);
+        checkLevel(hashLevel);
+
+        Set<Integer> levels = new HashSet<>();
+        String[] hashLevels = describedProps.defs.getTyped(OP_HASH_LEVELS);
+        if (hashLevels != null) {
+            for (String hl : hashLevels) {
+                Integer l;
+                try {
+                    l = Integer.valueOf(hl);
+                } catch (NumberFormatException e) {
+                    throw new InvalidConfigValueException("Geohash level must be an integer but is '" + hl + "' in the operation '" + name + "'");
+                }
+                checkLevel(l);
+                levels.add(l);
+            }
+        }
+
+        String hashPrefix = GEN_HASH_PREFIX.substring(0, GEN_HASH_PREFIX.length() - 1);
+
+        level = null;
         List<Integer> out = new ArrayList<>();
         String[] outColumns = dataStreamsProps.outputColumns.get(outputName);
         for (String outCol : outColumns) {
             if (inputColumns.containsKey(outCol)) {
                 out.add(inputColumns.get(outCol));
+                continue;
             }
+
+            Integer l = null;
             if (GEN_HASH.equalsIgnoreCase(outCol)) {
-                out.add(-1);
+                l = hashLevel;
+            } else if (outCol.startsWith(hashPrefix)) {
+                try {
+                    l = Integer.valueOf(outCol.substring(hashPrefix.length()));
+                } catch (NumberFormatException ignore) {
+                }
+                if ((l == null) || !levels.contains(l)) {
+                    throw new InvalidConfigValueException("Output column '" + outCol + "' refers to a hash level not listed in '" + OP_HASH_LEVELS + "' in the operation '" + name + "'");
+                }
+            }
+
+            if (l != null) {
+                out.add(-1 - l);
+                level = (level == null) ? l : Math.max(level, l);
             }
         }
 
         outputColumns = Ints.toArray(out);
 
-        level = describedProps.defs.getTyped(OP_HASH_LEVEL);
-
-        if (level < getMinLevel() || level > getMaxLevel()) {
-            throw new InvalidConfigValueException("Geohash level must fall into interval '" + getMinLevel() + "'..'" + getMaxLevel() + "' but is '" + level + "' in the operation '" + name + "'");
+        if (level == null) {
+            level = hashLevel;
         }
 
         try {
@@ -111,6 +154,12 @@ public abstract class GeohashingOperation extends Operation {
         }
     }
 
+    private void checkLevel(Integer l) throws InvalidConfigValueException {
+        if (l < getMinLevel() || l > getMaxLevel()) {
+            throw new InvalidConfigValueException("Geohash level must fall into interval '" + getMinLevel() + "'..'" + getMaxLevel() + "' but is '" + l + "' in the operation '" + name + "'");
+        }
+    }
+
     @Override
     public Map<String, JavaRDDLike> getResult(Map<String, JavaRDDLike> input) {
         JavaRDD<Object> inp = (JavaRDD<Object>) input.get(inputName);
@@ -122,44 +171,37 @@ public abstract class GeohashingOperation extends Operation {
         final char _inputDelimiter = inputDelimiter;
 
         final HasherFunction _hasher = hasher;
+        final int _maxLevel = getMaxLevel();
 
+        // each line is parsed once, coordinates are hashed once at the finest level, and hashes stay primitive longs
+        // until they are formatted for the output, once per level
         JavaRDD out = inp
                 .mapPartitions(it -> {
-                    List<Tuple3<Double, Double, Text>> ret = new ArrayList<>();
+                    List<Text> ret = new ArrayList<>();
 
                     CSVParser parser = new CSVParserBuilder().withSeparator(_inputDelimiter).build();
 
+                    String[] codes = new String[_maxLevel + 1];
                     while (it.hasNext()) {
                         Object v = it.next();
                         String l = v instanceof String ? (String) v : String.valueOf(v);
 
                         String[] ll = parser.parseLine(l);
-                        Double lat = new Double(ll[_latColumn]);
-                        Double lon = new Double(ll[_lonColumn]);
-
-                        ret.add(new Tuple3<>(lat, lon, new Text(l)));
-                    }
-
-                    return ret.iterator();
-                })
-                .mapPartitions(_hasher)
-                .mapPartitions(it -> {
-                    List<Text> ret = new ArrayList<>();
-
-                    CSVParser parser = new CSVParserBuilder().withSeparator(_inputDelimiter).build();
-
-                    while (it.hasNext()) {
-                        Tuple2<Text, Text> v = it.next();
-
-                        String hash = String.valueOf(v._1);
-
-                        String l = String.valueOf(v._2);
-                        String[] ll = parser.parseLine(l);
+                        long hash = _hasher.hash(Double.parseDouble(ll[_latColumn]), Double.parseDouble(ll[_lonColumn]));
 
+                        Arrays.fill(codes, null);
                         String[] acc = new String[_outputColumns.length];
                         int i = 0;
-                        for (Integer col : _outputColumns) {
-                            acc[i++] = (col >= 0) ? ll[col] : hash;
+                        for (int col : _outputColumns) {
+                            if (col >= 0) {
+                                acc[i++] = ll[col];
+                            } else {
+                                int hl = -1 - col;
+                                if (codes[hl] == null) {
+                                    codes[hl] = _hasher.format(_hasher.parent(hash, hl), hl);
+                                }
+                                acc[i++] = codes[hl];
+                            }
                         }
 
                         StringWriter buffer = new StringWriter();
@@ -5,6 +5,7 @@
 package ash.nazg.geohashing;
 
 import ash.nazg.spark.TestRunner;
+import com.uber.h3core.H3Core;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
@@ -49,4 +50,32 @@ public class H3OperationTest {
 
         }
     }
+
+    @Test
+    public void h3LevelsTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/test.h3.levels.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            List<Text> list = ((JavaRDD<Text>) ret.get("with_hash")).collect();
+            assertEquals(28, list.size());
+
+            H3Core h3 = H3Core.newInstance();
+
+            //columns: lat,lon,_hash,_hash_5,userid,_hash_11,_hash_7
+            for (Text l : list) {
+                String[] row = l.toString().split(",");
+
+                double lat = Double.parseDouble(row[0]);
+                double lon = Double.parseDouble(row[1]);
+
+                //only the finest level is hashed, and coarser ones are its parents
+                long hash = h3.geoToH3(lat, lon, 11);
+                assertEquals(h3.h3ToString(hash), row[5]);
+                assertEquals(h3.h3ToString(h3.h3ToParent(hash, 9)), row[2]);
+                assertEquals(h3.h3ToString(h3.h3ToParent(hash, 7)), row[6]);
+                assertEquals(h3.h3ToString(h3.h3ToParent(hash, 5)), row[3]);
+            }
+        }
+    }
 }
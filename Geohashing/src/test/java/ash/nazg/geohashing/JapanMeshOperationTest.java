@@ -13,6 +13,7 @@ import org.junit.Test;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
@@ -64,5 +65,46 @@ public class JapanMeshOperationTest {
         //border point
         japanMesh = new JapanMeshFunction(3);
         assertEquals("64414277", japanMesh.getHash(43.05833334, 141.33750000));
+
+        //coarser levels are derived from the finest one
+        japanMesh = new JapanMeshFunction(6);
+        long hash = japanMesh.hash(32.95776, 132.56197);
+        for (int level = 1; level <= 6; level++) {
+            assertEquals(new JapanMeshFunction(level).getHash(32.95776, 132.56197), japanMesh.format(japanMesh.parent(hash, level), level));
+        }
+    }
+
+    @Test
+    public void japanMeshEquivalenceTest() {
+        JapanMeshFunction[] japanMesh = new JapanMeshFunction[7];
+        for (int level = 1; level <= 6; level++) {
+            japanMesh[level] = new JapanMeshFunction(level);
+        }
+
+        Random random = new Random(20201019L);
+        for (int i = 0; i < 200_000; i++) {
+            double lat = 20.D + random.nextDouble() * 26.D;
+            double lon = 122.D + random.nextDouble() * 32.D;
+
+            // every other location is put on a grid line of some level, or next to it
+            if ((i & 1) == 1) {
+                lat = Math.floor(lat * 960.D) / 960.D;
+                for (int ulps = random.nextInt(5) - 2; ulps != 0; ulps -= Integer.signum(ulps)) {
+                    lat = (ulps > 0) ? Math.nextUp(lat) : Math.nextDown(lat);
+                }
+            }
+            if ((i & 2) == 2) {
+                lon = 100.D + Math.floor((lon - 100.D) * 640.D) / 640.D;
+            }
+
+            for (int level = 1; level <= 6; level++) {
+                JapanMeshFunction f = japanMesh[level];
+                assertEquals(lat + "," + lon + "@" + level, f.exactHash(lat, lon), f.hash(lat, lon));
+            }
+        }
+
+        assertEquals("00000000", japanMesh[3].format(japanMesh[3].hash(0.D, 100.D), 3));
+        assertEquals(japanMesh[6].exactHash(-33.8568, 151.2153), japanMesh[6].hash(-33.8568, 151.2153));
+        assertEquals(japanMesh[6].exactHash(51.5, -0.1), japanMesh[6].hash(51.5, -0.1));
     }
 }
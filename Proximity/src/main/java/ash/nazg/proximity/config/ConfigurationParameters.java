@@ -18,6 +18,17 @@ public final class ConfigurationParameters {
             " properties of the source signal will be unchanged. Otherwise a copy of source signal will be created" +
             " for each proximal geometry, and their properties will be augmented with properties of that geometry")
     public static final String OP_ENCOUNTER_ONCE = "encounter.once";
+    @Description("How to join signals with geometries: broadcast the index of geometries to every executor, or" +
+            " shuffle both by their H3 cells")
+    public static final String OP_JOIN_MODE = "join.mode";
+    @Description("Estimated size of the index of geometries in bytes, up to which it is broadcast in the AUTO join mode")
+    public static final String OP_BROADCAST_LIMIT = "broadcast.limit";
+    @Description("Number of nearest POIs to find for each signal")
+    public static final String OP_NEIGHBOURS_COUNT = "neighbours.count";
+    @Description("Level of H3 cells to index POIs and to search rings of around signals")
+    public static final String OP_SEARCH_LEVEL = "search.level";
+    @Description("Maximum distance to a POI in meters. Signals that have no POI this close are evicted")
+    public static final String OP_MAX_DISTANCE = "max.distance";
 
     @Description("Output Point RDD with target signals")
     public static final String RDD_OUTPUT_SIGNALS = "signals";
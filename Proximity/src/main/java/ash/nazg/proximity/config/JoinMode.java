@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.proximity.config;
+
+import ash.nazg.config.tdl.Description;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.util.SizeEstimator;
+
+import java.util.List;
+
+public enum JoinMode {
+    @Description("Broadcast the index if its estimated size is under the limit, or shuffle otherwise")
+    AUTO,
+    @Description("Always broadcast the index of geometries to every executor")
+    BROADCAST,
+    @Description("Always co-partition signals and geometries by their H3 cells, and join them partition by partition")
+    SHUFFLE;
+
+    private static final int SAMPLE_SIZE = 100;
+
+    /**
+     * @param geometries should be persisted, so the sample is taken from the cache
+     * @param count      number of geometries, known from a pass the operation makes over them anyway
+     * @return BROADCAST or SHUFFLE, depending on the estimated in-memory size of geometries for AUTO
+     */
+    public JoinMode resolve(JavaRDD<?> geometries, long count, long broadcastLimit) {
+        if (this != AUTO) {
+            return this;
+        }
+
+        List<?> sample = geometries.take(SAMPLE_SIZE);
+        if (sample.isEmpty()) {
+            return BROADCAST;
+        }
+
+        long estimatedSize = SizeEstimator.estimate(sample) / sample.size() * count;
+
+        return (estimatedSize <= broadcastLimit) ? BROADCAST : SHUFFLE;
+    }
+}
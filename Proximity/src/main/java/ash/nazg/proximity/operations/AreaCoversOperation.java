@@ -7,17 +7,23 @@ package ash.nazg.proximity.operations;
 import ash.nazg.config.InvalidConfigValueException;
 import ash.nazg.config.tdl.Description;
 import ash.nazg.config.tdl.TaskDescriptionLanguage;
+import ash.nazg.proximity.config.JoinMode;
 import ash.nazg.spark.Operation;
+import ash.nazg.spatial.CellPartitioner;
+import ash.nazg.spatial.GeoMath;
+import ash.nazg.spatial.PolygonCellIndex;
+import ash.nazg.spatial.SpatialPartitioner;
 import ash.nazg.spatial.SpatialUtils;
-import net.sf.geographiclib.Geodesic;
-import net.sf.geographiclib.GeodesicMask;
-import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.api.java.function.FlatMapFunction2;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.StatCounter;
 import org.locationtech.jts.geom.*;
 import scala.Tuple2;
 
@@ -29,6 +35,10 @@ import static ash.nazg.proximity.config.ConfigurationParameters.*;
 public class AreaCoversOperation extends Operation {
     @Description("By default, create a distinct copy of a signal for each area it encounters inside")
     public static final Boolean DEF_ENCOUNTER_ONCE = false;
+    @Description("By default, choose the join mode by the estimated size of geometries")
+    public static final JoinMode DEF_JOIN_MODE = JoinMode.AUTO;
+    @Description("By default, broadcast geometries if they are estimated to take up to 128 MB")
+    public static final Long DEF_BROADCAST_LIMIT = 128L * 1024 * 1024;
 
     public static final String VERB = "areaCovers";
 
@@ -36,6 +46,8 @@ public class AreaCoversOperation extends Operation {
     private String inputSignalsName;
 
     private Boolean once;
+    private JoinMode joinMode;
+    private Long broadcastLimit;
 
     private String outputSignalsName;
     private String outputEvictedName;
@@ -51,7 +63,9 @@ public class AreaCoversOperation extends Operation {
     public TaskDescriptionLanguage.Operation description() {
         return new TaskDescriptionLanguage.Operation(verb(),
                 new TaskDescriptionLanguage.DefBase[]{
-                        new TaskDescriptionLanguage.Definition(OP_ENCOUNTER_ONCE, Boolean.class, DEF_ENCOUNTER_ONCE)
+                        new TaskDescriptionLanguage.Definition(OP_ENCOUNTER_ONCE, Boolean.class, DEF_ENCOUNTER_ONCE),
+                        new TaskDescriptionLanguage.Definition(OP_JOIN_MODE, JoinMode.class, DEF_JOIN_MODE),
+                        new TaskDescriptionLanguage.Definition(OP_BROADCAST_LIMIT, Long.class, DEF_BROADCAST_LIMIT)
                 },
 
                 new TaskDescriptionLanguage.OpStreams(
@@ -92,6 +106,8 @@ public class AreaCoversOperation extends Operation {
         inputSignalsName = describedProps.namedInputs.get(RDD_INPUT_SIGNALS);
 
         once = describedProps.defs.getTyped(OP_ENCOUNTER_ONCE);
+        joinMode = describedProps.defs.getTyped(OP_JOIN_MODE);
+        broadcastLimit = describedProps.defs.getTyped(OP_BROADCAST_LIMIT);
 
         outputSignalsName = describedProps.namedOutputs.get(RDD_OUTPUT_SIGNALS);
         outputEvictedName = describedProps.namedOutputs.get(RDD_OUTPUT_EVICTED);
@@ -106,103 +122,126 @@ public class AreaCoversOperation extends Operation {
 
         JavaRDD<Polygon> geometriesInput = (JavaRDD<Polygon>) input.get(inputGeometriesName);
 
-        final double maxRadius = geometriesInput
-                .mapToDouble(poly -> {
-                    Envelope ei = poly.getEnvelopeInternal();
+        JavaRDD<Point> inputSignals = (JavaRDD<Point>) input.get(inputSignalsName);
 
-                    return Geodesic.WGS84.Inverse(
-                            (ei.getMaxY() + ei.getMinY()) / 2, (ei.getMaxX() + ei.getMinX()) / 2,
-                            ei.getMaxY(), ei.getMaxX(), GeodesicMask.DISTANCE
-                    ).s12;
-                })
-                .max(Comparator.naturalOrder());
+        final GeometryFactory geometryFactory = new GeometryFactory();
 
-        final SpatialUtils spatialUtils = new SpatialUtils(maxRadius);
+        // Polygons are covered with H3 cells on executors, and only the index is assembled from them
+        JavaRDD<Tuple2<Polygon, PolygonCellIndex.Cells>> coveredGeometries = geometriesInput
+                .map(poly -> new Tuple2<>(poly, PolygonCellIndex.cover(poly)));
+
+        long count = -1L;
+        double maxRadius = 0.D;
+        if (joinMode != JoinMode.BROADCAST) {
+            // Polygons are covered once for their count and radius, and then sampled and indexed from the cache
+            coveredGeometries = coveredGeometries.persist(StorageLevel.MEMORY_AND_DISK());
+
+            StatCounter radii = coveredGeometries
+                    .mapToDouble(t -> GeoMath.radius(t._1.getEnvelopeInternal()))
+                    .stats();
+            count = radii.count();
+            maxRadius = radii.max();
+        }
 
-        JavaPairRDD<Long, Polygon> hashedGeometries = geometriesInput
-                .mapPartitionsToPair(it -> {
-                    List<Tuple2<Long, Polygon>> result = new ArrayList<>();
+        JavaPairRDD<Boolean, Point> signals;
+        if ((count == 0L) || (joinMode.resolve(coveredGeometries, count, broadcastLimit) == JoinMode.BROADCAST)) {
+            PolygonCellIndex index = new PolygonCellIndex();
+            coveredGeometries.collect().forEach(t -> index.add(t._1, t._2));
 
-                    Text latAttr = new Text("_center_lat");
-                    Text lonAttr = new Text("_center_lon");
+            // Broadcast indexed polys
+            Broadcast<PolygonCellIndex> broadcastIndex = ctx.broadcast(index);
+            coveredGeometries.unpersist(false);
 
-                    while (it.hasNext()) {
-                        Polygon o = it.next();
+            // Filter signals by cell coverage
+            signals = inputSignals
+                    .mapPartitionsToPair(it -> {
+                        PolygonCellIndex geometries = broadcastIndex.getValue();
 
-                        MapWritable properties = (MapWritable) o.getUserData();
+                        List<Tuple2<Boolean, Point>> result = new ArrayList<>();
 
-                        result.add(new Tuple2<>(
-                                spatialUtils.getHash(((DoubleWritable) properties.get(latAttr)).get(), ((DoubleWritable) properties.get(lonAttr)).get()), o)
-                        );
-                    }
+                        while (it.hasNext()) {
+                            Point signal = it.next();
 
-                    return result.iterator();
-                });
+                            encounter(signal, geometries.covering(signal), _once, _inputGeometriesName, geometryFactory, result);
+                        }
 
-        JavaRDD<Point> inputSignals = (JavaRDD<Point>) input.get(inputSignalsName);
+                        return result.iterator();
+                    });
+        } else {
+            // the join is lazy and would keep polygons cached until the end of the task, so it covers them once more
+            // instead
+            coveredGeometries.unpersist(false);
+
+            // signals and polygons meet in the partitions of cells of the resolution suitable for the biggest polygon.
+            // A polygon goes once, with its cells, to each partition that may have signals inside its envelope, and
+            // there it is indexed same as in the broadcast mode
+            final SpatialUtils spatialUtils = new SpatialUtils(maxRadius);
+
+            JavaRDD<Tuple2<Polygon, PolygonCellIndex.Cells>> partitionedGeometries;
+            JavaRDD<Point> partitionedSignals;
+
+            final SpatialPartitioner spatialPartitioner = SpatialPartitioner.of(inputSignals);
+            if ((spatialPartitioner != null) && (spatialUtils.getResolution() >= spatialPartitioner.level)) {
+                // signals are spatially partitioned already, so they stay in place
+                partitionedGeometries = coveredGeometries
+                        .flatMapToPair(t -> {
+                            Set<Integer> parts = new HashSet<>();
+                            for (long hash : envelopeNeighood(t._1, spatialUtils)) {
+                                for (int part : spatialPartitioner.getPartitions(hash)) {
+                                    parts.add(part);
+                                }
+                            }
 
-        Map<Long, Iterable<Polygon>> hashedGeometriesMap = hashedGeometries
-                .groupByKey()
-                .collectAsMap();
+                            return toParts(t, parts).iterator();
+                        })
+                        .partitionBy(new HashPartitioner(spatialPartitioner.numPartitions()))
+                        .values();
 
-        // Broadcast hashed polys
-        Broadcast<HashMap<Long, Iterable<Polygon>>> broadcastHashedGeometries = ctx
-                .broadcast(new HashMap<>(hashedGeometriesMap));
+                partitionedSignals = inputSignals;
+            } else {
+                final CellPartitioner partitioner = new CellPartitioner(Math.max(inputSignals.getNumPartitions(), geometriesInput.getNumPartitions()));
 
-        final GeometryFactory geometryFactory = new GeometryFactory();
-
-        // Filter signals by hash coverage
-        JavaPairRDD<Boolean, Point> signals = inputSignals
-                .mapPartitionsToPair(it -> {
-                    HashMap<Long, Iterable<Polygon>> geometries = broadcastHashedGeometries.getValue();
-
-                    List<Tuple2<Boolean, Point>> result = new ArrayList<>();
-
-                    while (it.hasNext()) {
-                        Point signal = it.next();
-                        boolean added = false;
-
-                        MapWritable signalProperties = (MapWritable) signal.getUserData();
-
-                        double signalLat = signal.getY();
-                        double signalLon = signal.getX();
-                        long signalHash = spatialUtils.getHash(signalLat, signalLon);
-
-                        List<Long> neighood = spatialUtils.getNeighbours(signalHash);
-
-                        once:
-                        for (Long hash : neighood) {
-                            if (geometries.containsKey(hash)) {
-                                for (Polygon geometry : geometries.get(hash)) {
-                                    if (signal.within(geometry)) {
-                                        if (_once) {
-                                            result.add(new Tuple2<>(true, signal));
-                                        } else {
-                                            MapWritable properties = new MapWritable();
-                                            ((MapWritable) geometry.getUserData()).forEach((k, v) -> properties.put(new Text(_inputGeometriesName + "." + k), new Text(String.valueOf(v))));
-                                            properties.putAll(signalProperties);
-
-                                            Point point = geometryFactory.createPoint(new Coordinate(signalLon, signalLat));
-                                            point.setUserData(properties);
-                                            result.add(new Tuple2<>(true, point));
-                                        }
-                                        added = true;
-                                    }
-
-                                    if (_once && added) {
-                                        break once;
-                                    }
-                                }
+                partitionedGeometries = coveredGeometries
+                        .flatMapToPair(t -> {
+                            Set<Integer> parts = new HashSet<>();
+                            for (long hash : envelopeNeighood(t._1, spatialUtils)) {
+                                parts.add(partitioner.getPartition(hash));
                             }
-                        }
 
-                        if (!added) {
-                            result.add(new Tuple2<>(false, signal));
-                        }
-                    }
+                            return toParts(t, parts).iterator();
+                        })
+                        .partitionBy(new HashPartitioner(partitioner.numPartitions()))
+                        .values();
+
+                partitionedSignals = inputSignals
+                        .mapToPair(signal -> new Tuple2<>(spatialUtils.getHash(signal.getY(), signal.getX()), signal))
+                        .partitionBy(partitioner)
+                        .values();
+            }
+
+            FlatMapFunction2<Iterator<Point>, Iterator<Tuple2<Polygon, PolygonCellIndex.Cells>>, Tuple2<Boolean, Point>> join = (sit, git) -> {
+                PolygonCellIndex geometries = new PolygonCellIndex();
+                while (git.hasNext()) {
+                    Tuple2<Polygon, PolygonCellIndex.Cells> t = git.next();
+
+                    geometries.add(t._1, t._2);
+                }
+
+                List<Tuple2<Boolean, Point>> result = new ArrayList<>();
 
-                    return result.iterator();
-                });
+                while (sit.hasNext()) {
+                    Point signal = sit.next();
+
+                    encounter(signal, geometries.covering(signal), _once, _inputGeometriesName, geometryFactory, result);
+                }
+
+                return result.iterator();
+            };
+
+            signals = partitionedSignals
+                    .zipPartitions(partitionedGeometries, join)
+                    .mapToPair(t -> t);
+        }
 
         if (outputEvictedName != null) {
             Map<String, JavaRDDLike> ret = new HashMap<>();
@@ -214,4 +253,47 @@ public class AreaCoversOperation extends Operation {
             return Collections.singletonMap(outputSignalsName, signals.filter(t -> t._1).values());
         }
     }
+
+    /**
+     * @return cells around the center of polygon envelope, enough to cover the whole envelope
+     */
+    private static List<Long> envelopeNeighood(Polygon polygon, SpatialUtils spatialUtils) {
+        Envelope envelope = polygon.getEnvelopeInternal();
+
+        long hash = spatialUtils.getHash((envelope.getMaxY() + envelope.getMinY()) / 2.D, (envelope.getMaxX() + envelope.getMinX()) / 2.D);
+        return spatialUtils.getNeighbours(hash, GeoMath.radius(envelope));
+    }
+
+    private static List<Tuple2<Integer, Tuple2<Polygon, PolygonCellIndex.Cells>>> toParts(Tuple2<Polygon, PolygonCellIndex.Cells> covered, Set<Integer> parts) {
+        List<Tuple2<Integer, Tuple2<Polygon, PolygonCellIndex.Cells>>> result = new ArrayList<>(parts.size());
+        for (int part : parts) {
+            result.add(new Tuple2<>(part, covered));
+        }
+        return result;
+    }
+
+    /**
+     * Add the signal to the result, either once or augmented with properties of each polygon that contains it,
+     * or as evicted if there is none
+     */
+    private static void encounter(Point signal, List<Polygon> covering, boolean once, String geometriesName,
+                                  GeometryFactory geometryFactory, List<Tuple2<Boolean, Point>> result) {
+        if (covering.isEmpty()) {
+            result.add(new Tuple2<>(false, signal));
+        } else if (once) {
+            result.add(new Tuple2<>(true, signal));
+        } else {
+            MapWritable signalProperties = (MapWritable) signal.getUserData();
+
+            for (Polygon geometry : covering) {
+                MapWritable properties = new MapWritable();
+                ((MapWritable) geometry.getUserData()).forEach((k, v) -> properties.put(new Text(geometriesName + "." + k), new Text(String.valueOf(v))));
+                properties.putAll(signalProperties);
+
+                Point point = geometryFactory.createPoint(new Coordinate(signal.getX(), signal.getY()));
+                point.setUserData(properties);
+                result.add(new Tuple2<>(true, point));
+            }
+        }
+    }
 }
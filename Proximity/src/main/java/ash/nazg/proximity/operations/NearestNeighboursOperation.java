@@ -0,0 +1,397 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.proximity.operations;
+
+import ash.nazg.config.InvalidConfigValueException;
+import ash.nazg.config.tdl.Description;
+import ash.nazg.config.tdl.TaskDescriptionLanguage;
+import ash.nazg.spark.Operation;
+import ash.nazg.spatial.GeoMath;
+import ash.nazg.spatial.LongIntMap;
+import ash.nazg.spatial.SpatialPartitioner;
+import com.uber.h3core.H3Core;
+import com.uber.h3core.LengthUnit;
+import com.uber.h3core.exceptions.PentagonEncounteredException;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.broadcast.Broadcast;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import scala.Tuple2;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+import static ash.nazg.proximity.config.ConfigurationParameters.*;
+
+@SuppressWarnings("unused")
+public class NearestNeighboursOperation extends Operation {
+    @Description("By default, find the single nearest POI")
+    public static final Integer DEF_NEIGHBOURS_COUNT = 1;
+    @Description("By default, index POIs by cells of level 7, with edges about 1.2 km long")
+    public static final Integer DEF_SEARCH_LEVEL = 7;
+    @Description("By default, look for POIs up to 50 km away")
+    public static final Double DEF_MAX_DISTANCE = 50_000.D;
+
+    public static final String VERB = "nearestNeighbours";
+
+    private static H3Core h3 = null;
+
+    private String inputSignalsName;
+    private String inputPoisName;
+
+    private int count;
+    private int level;
+    private double maxDistance;
+
+    private String outputSignalsName;
+    private String outputEvictedName;
+
+    private static void setupH3() {
+        try {
+            if (h3 == null) {
+                h3 = H3Core.newInstance();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    @Description("Takes a Point RDD and POI Point RDD and generates a Point RDD with a copy of each signal for each" +
+            " of its nearest POIs, augmented with POI properties and _distance. POIs are searched in rings of H3" +
+            " cells around the signal's own cell, until no POI in farther rings can be nearer than the ones already" +
+            " found. The index of POIs is broadcast, unless signals are spatially partitioned, so POIs are sent only" +
+            " to partitions with signals that can be within the maximum distance")
+    public String verb() {
+        return VERB;
+    }
+
+    @Override
+    public TaskDescriptionLanguage.Operation description() {
+        return new TaskDescriptionLanguage.Operation(verb(),
+                new TaskDescriptionLanguage.DefBase[]{
+                        new TaskDescriptionLanguage.Definition(OP_NEIGHBOURS_COUNT, Integer.class, DEF_NEIGHBOURS_COUNT),
+                        new TaskDescriptionLanguage.Definition(OP_SEARCH_LEVEL, Integer.class, DEF_SEARCH_LEVEL),
+                        new TaskDescriptionLanguage.Definition(OP_MAX_DISTANCE, Double.class, DEF_MAX_DISTANCE),
+                },
+
+                new TaskDescriptionLanguage.OpStreams(
+                        new TaskDescriptionLanguage.NamedStream[]{
+                                new TaskDescriptionLanguage.NamedStream(
+                                        RDD_INPUT_SIGNALS,
+                                        new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.Point},
+                                        false
+                                ),
+                                new TaskDescriptionLanguage.NamedStream(
+                                        RDD_INPUT_POIS,
+                                        new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.Point},
+                                        false
+                                ),
+                        }
+                ),
+
+                new TaskDescriptionLanguage.OpStreams(
+                        new TaskDescriptionLanguage.NamedStream[]{
+                                new TaskDescriptionLanguage.NamedStream(
+                                        RDD_OUTPUT_SIGNALS,
+                                        new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.Point},
+                                        false
+                                ),
+                                new TaskDescriptionLanguage.NamedStream(
+                                        RDD_OUTPUT_EVICTED,
+                                        new TaskDescriptionLanguage.StreamType[]{TaskDescriptionLanguage.StreamType.Point},
+                                        false
+                                ),
+                        }
+                )
+        );
+    }
+
+    @Override
+    public void configure(Properties properties, Properties variables) throws InvalidConfigValueException {
+        super.configure(properties, variables);
+
+        inputSignalsName = describedProps.namedInputs.get(RDD_INPUT_SIGNALS);
+        inputPoisName = describedProps.namedInputs.get(RDD_INPUT_POIS);
+
+        count = describedProps.defs.getTyped(OP_NEIGHBOURS_COUNT);
+        if (count < 1) {
+            throw new InvalidConfigValueException("Neighbours count must be 1 or more but is '" + count + "' in the operation '" + name + "'");
+        }
+
+        level = describedProps.defs.getTyped(OP_SEARCH_LEVEL);
+        if ((level < 0) || (level > 15)) {
+            throw new InvalidConfigValueException("Search level must fall into interval '0'..'15' but is '" + level + "' in the operation '" + name + "'");
+        }
+
+        maxDistance = describedProps.defs.getTyped(OP_MAX_DISTANCE);
+        if (!(maxDistance > 0.D)) {
+            throw new InvalidConfigValueException("Maximum distance must be positive but is '" + maxDistance + "' in the operation '" + name + "'");
+        }
+
+        outputSignalsName = describedProps.namedOutputs.get(RDD_OUTPUT_SIGNALS);
+        outputEvictedName = describedProps.namedOutputs.get(RDD_OUTPUT_EVICTED);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, JavaRDDLike> getResult(Map<String, JavaRDDLike> input) {
+        final String _inputPoisName = inputPoisName;
+        final int _count = count;
+        final int _level = level;
+        final double _maxDistance = maxDistance;
+
+        JavaRDD<Point> inputSignals = (JavaRDD<Point>) input.get(inputSignalsName);
+
+        JavaRDD<Point> inputPois = (JavaRDD<Point>) input.get(inputPoisName);
+
+        final GeometryFactory geometryFactory = new GeometryFactory();
+
+        JavaPairRDD<Boolean, Point> signals;
+
+        final SpatialPartitioner spatialPartitioner = SpatialPartitioner.of(inputSignals);
+        if (spatialPartitioner == null) {
+            List<Tuple2<Long, Point>> hashedPois = inputPois
+                    .mapToPair(poi -> new Tuple2<>(getCell(poi, _level), poi))
+                    .collect();
+
+            Broadcast<PoiIndex> broadcastIndex = ctx.broadcast(new PoiIndex(_level, hashedPois.iterator()));
+
+            signals = inputSignals
+                    .mapPartitionsToPair(it -> nearest(it, broadcastIndex.getValue(), _count, _maxDistance, _inputPoisName, geometryFactory));
+        } else {
+            // signals stay in place, and each POI goes to every partition that has cells within the maximum distance
+            // from its own cell, so the search around any signal never leaves its partition
+            final int partLevel = spatialPartitioner.level;
+            setupH3();
+            final int rings = reach(_maxDistance, h3.edgeLength(partLevel, LengthUnit.m));
+
+            JavaRDD<Tuple2<Long, Point>> replicatedPois = inputPois
+                    .flatMapToPair(poi -> {
+                        Tuple2<Long, Point> hashed = new Tuple2<>(getCell(poi, _level), poi);
+
+                        List<Tuple2<Integer, Tuple2<Long, Point>>> result = new ArrayList<>();
+                        h3.kRing(getCell(poi, partLevel), rings).stream()
+                                .mapToInt(spatialPartitioner::getPartition)
+                                .distinct()
+                                .forEach(part -> result.add(new Tuple2<>(part, hashed)));
+
+                        return result.iterator();
+                    })
+                    .partitionBy(new HashPartitioner(spatialPartitioner.numPartitions()))
+                    .values();
+
+            signals = inputSignals
+                    .zipPartitions(replicatedPois, (sit, pit) -> nearest(sit, new PoiIndex(_level, pit), _count, _maxDistance, _inputPoisName, geometryFactory))
+                    .mapToPair(t -> t);
+        }
+
+        if (outputEvictedName != null) {
+            Map<String, JavaRDDLike> ret = new HashMap<>();
+            ret.put(outputSignalsName, signals.filter(t -> t._1).values());
+            ret.put(outputEvictedName, signals.filter(t -> !t._1).values());
+
+            return Collections.unmodifiableMap(ret);
+        } else {
+            return Collections.singletonMap(outputSignalsName, signals.filter(t -> t._1).values());
+        }
+    }
+
+    private static long getCell(Point point, int level) {
+        setupH3();
+
+        return h3.geoToH3(point.getY(), point.getX(), level);
+    }
+
+    /**
+     * Points in cells of the level that are the given number of grid steps away from each other are at least this
+     * far apart. Centers of such cells are no closer than sqrt(3)/2 spacings per step, and a point lies within one
+     * circumradius of its cell's center. Spacing is taken at half of the average, to cover the variation of H3
+     * cell sizes over the globe
+     */
+    private static double ringBound(int steps, double edge) {
+        return edge * (0.75D * steps - 1.D);
+    }
+
+    /**
+     * @return number of grid steps that surely cover the distance, by {@link #ringBound(int, double)}
+     */
+    private static int reach(double distance, double edge) {
+        return (int) Math.ceil((distance / edge + 1.D) / 0.75D);
+    }
+
+    /**
+     * Find nearest POIs of each signal, and add a copy of the signal augmented with properties of each of them to the
+     * result, or the signal itself as evicted if there is none within the maximum distance
+     */
+    private static Iterator<Tuple2<Boolean, Point>> nearest(Iterator<Point> it, PoiIndex pois, int count, double maxDistance,
+                                                            String poisName, GeometryFactory geometryFactory) {
+        List<Tuple2<Boolean, Point>> result = new ArrayList<>();
+
+        Text distanceAttr = new Text("_distance");
+
+        int[] found = new int[count];
+        double[] distances = new double[count];
+        while (it.hasNext()) {
+            Point signal = it.next();
+
+            double signalLat = signal.getY();
+            double signalLon = signal.getX();
+
+            int size = pois.search(signalLat, signalLon, count, maxDistance, found, distances);
+            if (size == 0) {
+                result.add(new Tuple2<>(false, signal));
+                continue;
+            }
+
+            MapWritable signalProperties = (MapWritable) signal.getUserData();
+            for (int n = 0; n < size; n++) {
+                MapWritable poiProperties = (MapWritable) pois.getPoi(found[n]).getUserData();
+                MapWritable properties = new MapWritable();
+                poiProperties.forEach((k, v) -> properties.put(new Text(poisName + "." + k), new Text(String.valueOf(v))));
+                properties.putAll(signalProperties);
+                properties.put(distanceAttr, new DoubleWritable(distances[n]));
+
+                Point point = geometryFactory.createPoint(new Coordinate(signalLon, signalLat));
+                point.setUserData(properties);
+                result.add(new Tuple2<>(true, point));
+            }
+        }
+
+        return result.iterator();
+    }
+
+    /**
+     * POIs sorted by their H3 cells of the search level, with coordinates in flat arrays
+     */
+    private static class PoiIndex implements Serializable {
+        private final int level;
+        private final double edge;
+
+        // cell -> position in from[]
+        private final LongIntMap cells;
+        // POIs of the i-th cell occupy positions from from[i] until from[i + 1]
+        private final int[] from;
+        private final double[] lat;
+        private final double[] lon;
+        private final Point[] pois;
+
+        private PoiIndex(int level, Iterator<Tuple2<Long, Point>> hashed) {
+            setupH3();
+
+            List<Tuple2<Long, Point>> sorted = new ArrayList<>();
+            hashed.forEachRemaining(sorted::add);
+            sorted.sort(Comparator.comparing(Tuple2::_1));
+
+            this.level = level;
+            this.edge = h3.edgeLength(level, LengthUnit.m);
+
+            int size = sorted.size();
+            cells = new LongIntMap();
+            int[] from = new int[size + 1];
+            lat = new double[size];
+            lon = new double[size];
+            pois = new Point[size];
+
+            int c = 0;
+            for (int i = 0; i < size; i++) {
+                Tuple2<Long, Point> t = sorted.get(i);
+                if ((i == 0) || (t._1.longValue() != sorted.get(i - 1)._1.longValue())) {
+                    cells.put(t._1, c);
+                    from[c++] = i;
+                }
+
+                lat[i] = t._2.getY();
+                lon[i] = t._2.getX();
+                pois[i] = t._2;
+            }
+            from[c] = size;
+            this.from = Arrays.copyOf(from, c + 1);
+        }
+
+        private Point getPoi(int i) {
+            return pois[i];
+        }
+
+        /**
+         * Search rings of cells around the signal's own cell, one by one, until the farthest of the POIs found is
+         * nearer than anything in the next ring can be
+         *
+         * @param found      positions of found POIs, nearest first
+         * @param distances  distances to found POIs
+         * @return number of POIs found, up to the count
+         */
+        private int search(double signalLat, double signalLon, int count, double maxDistance, int[] found, double[] distances) {
+            if (pois.length == 0) {
+                return 0;
+            }
+
+            setupH3();
+
+            long origin = h3.geoToH3(signalLat, signalLon, level);
+            // hexRing() fails near pentagons, and then all rings up to the maximum distance are taken at once
+            List<List<Long>> disk = null;
+
+            int size = 0;
+            int visited = 0;
+            for (int steps = 0; ; steps++) {
+                double radius = (size == count) ? distances[count - 1] : maxDistance;
+
+                List<Long> ring = null;
+                if (steps == 0) {
+                    ring = Collections.singletonList(origin);
+                } else if (disk == null) {
+                    try {
+                        ring = h3.hexRing(origin, steps);
+                    } catch (PentagonEncounteredException e) {
+                        disk = h3.kRingDistances(origin, reach(maxDistance, edge));
+                    }
+                }
+                if (ring == null) {
+                    ring = (steps < disk.size()) ? disk.get(steps) : Collections.emptyList();
+                }
+
+                for (long cell : ring) {
+                    int c = cells.get(cell);
+                    if (c == LongIntMap.MISSING) {
+                        continue;
+                    }
+
+                    for (int i = from[c], to = from[c + 1]; i < to; i++) {
+                        double distance = GeoMath.distanceWithin(signalLat, signalLon, lat[i], lon[i], radius);
+                        if (Double.isNaN(distance)) {
+                            continue;
+                        }
+
+                        int j = (size < count) ? size++ : (count - 1);
+                        for (; (j > 0) && (distances[j - 1] > distance); j--) {
+                            distances[j] = distances[j - 1];
+                            found[j] = found[j - 1];
+                        }
+                        distances[j] = distance;
+                        found[j] = i;
+
+                        if (size == count) {
+                            radius = distances[count - 1];
+                        }
+                    }
+                    visited += from[c + 1] - from[c];
+                }
+
+                if ((visited == pois.length) || (ringBound(steps + 1, edge) > radius)) {
+                    return size;
+                }
+            }
+        }
+    }
+}
@@ -7,24 +7,31 @@ package ash.nazg.proximity.operations;
 import ash.nazg.config.InvalidConfigValueException;
 import ash.nazg.config.tdl.Description;
 import ash.nazg.config.tdl.TaskDescriptionLanguage;
+import ash.nazg.proximity.config.JoinMode;
 import ash.nazg.spark.Operation;
+import ash.nazg.spatial.CellPartitioner;
+import ash.nazg.spatial.GeoMath;
+import ash.nazg.spatial.LongIntMap;
+import ash.nazg.spatial.PoiCell;
+import ash.nazg.spatial.SpatialPartitioner;
 import ash.nazg.spatial.SpatialUtils;
-import net.sf.geographiclib.Geodesic;
-import net.sf.geographiclib.GeodesicMask;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.api.java.function.FlatMapFunction2;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Point;
 import scala.Tuple2;
 
+import java.io.Serializable;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static ash.nazg.proximity.config.ConfigurationParameters.*;
 
@@ -32,6 +39,10 @@ import static ash.nazg.proximity.config.ConfigurationParameters.*;
 public class ProximityFilterOperation extends Operation {
     @Description("By default, create a distinct copy of a signal for each POI it encounters in the proximity radius")
     public static final Boolean DEF_ENCOUNTER_ONCE = false;
+    @Description("By default, choose the join mode by the estimated size of POIs")
+    public static final JoinMode DEF_JOIN_MODE = JoinMode.AUTO;
+    @Description("By default, broadcast POIs if they are estimated to take up to 128 MB")
+    public static final Long DEF_BROADCAST_LIMIT = 128L * 1024 * 1024;
 
     public static final String VERB = "proximityFilter";
 
@@ -39,6 +50,8 @@ public class ProximityFilterOperation extends Operation {
     private String inputPoisName;
 
     private Boolean once;
+    private JoinMode joinMode;
+    private Long broadcastLimit;
 
     private String outputSignalsName;
     private String outputEvictedName;
@@ -54,7 +67,9 @@ public class ProximityFilterOperation extends Operation {
     public TaskDescriptionLanguage.Operation description() {
         return new TaskDescriptionLanguage.Operation(verb(),
                 new TaskDescriptionLanguage.DefBase[]{
-                        new TaskDescriptionLanguage.Definition(OP_ENCOUNTER_ONCE, Boolean.class, DEF_ENCOUNTER_ONCE)
+                        new TaskDescriptionLanguage.Definition(OP_ENCOUNTER_ONCE, Boolean.class, DEF_ENCOUNTER_ONCE),
+                        new TaskDescriptionLanguage.Definition(OP_JOIN_MODE, JoinMode.class, DEF_JOIN_MODE),
+                        new TaskDescriptionLanguage.Definition(OP_BROADCAST_LIMIT, Long.class, DEF_BROADCAST_LIMIT)
                 },
 
                 new TaskDescriptionLanguage.OpStreams(
@@ -97,6 +112,8 @@ public class ProximityFilterOperation extends Operation {
         inputPoisName = describedProps.namedInputs.get(RDD_INPUT_POIS);
 
         once = describedProps.defs.getTyped(OP_ENCOUNTER_ONCE);
+        joinMode = describedProps.defs.getTyped(OP_JOIN_MODE);
+        broadcastLimit = describedProps.defs.getTyped(OP_BROADCAST_LIMIT);
 
         outputSignalsName = describedProps.namedOutputs.get(RDD_OUTPUT_SIGNALS);
         outputEvictedName = describedProps.namedOutputs.get(RDD_OUTPUT_EVICTED);
@@ -132,98 +149,145 @@ public class ProximityFilterOperation extends Operation {
                     return result.iterator();
                 });
 
-        final double maxRadius = poiRadii
-                .map(t -> t._1)
-                .max(Comparator.naturalOrder());
+        // POIs are read once for their tiers and count, and then sampled and indexed from the cache
+        poiRadii = poiRadii.persist(StorageLevel.MEMORY_AND_DISK());
 
-        final SpatialUtils spatialUtils = new SpatialUtils(maxRadius);
+        // POIs are grouped in tiers by the H3 resolution suitable for their own radius, so a few big ones don't
+        // force every signal to probe a huge neighbourhood of cells of small ones
+        Map<Integer, Tuple2<Double, Long>> tierStats = poiRadii
+                .mapToPair(t -> new Tuple2<>(new SpatialUtils(t._1).getResolution(), new Tuple2<>(t._1, 1L)))
+                .reduceByKey((a, b) -> new Tuple2<>(Math.max(a._1, b._1), a._2 + b._2))
+                .collectAsMap();
 
-        // hash -> radius, poi
-        JavaPairRDD<Long, Tuple2<Double, Point>> hashedPois = poiRadii
-                .mapPartitionsToPair(it -> {
-                    List<Tuple2<Long, Tuple2<Double, Point>>> result = new ArrayList<>();
+        double maxRadius = 0.D;
+        long poiCount = 0L;
+        final List<SpatialUtils> tiers = new ArrayList<>();
+        for (Tuple2<Double, Long> tier : tierStats.values()) {
+            maxRadius = Math.max(maxRadius, tier._1);
+            poiCount += tier._2;
+            tiers.add(new SpatialUtils(tier._1));
+        }
 
-                    while (it.hasNext()) {
-                        Tuple2<Double, Point> o = it.next();
+        final GeometryFactory geometryFactory = new GeometryFactory();
 
-                        result.add(new Tuple2<>(
-                                spatialUtils.getHash(o._2.getY(), o._2.getX()),
-                                new Tuple2<>(o._1, o._2))
-                        );
-                    }
+        JavaPairRDD<Boolean, Point> signals;
+        if (tierStats.isEmpty() || (joinMode.resolve(poiRadii, poiCount, broadcastLimit) == JoinMode.BROADCAST)) {
+            // hash -> radius, poi. H3 hashes of different resolutions never clash, so all tiers share the same map
+            Map<Long, PoiCell> hashedPoisMap = poiRadii
+                    .mapToPair(o -> new Tuple2<>(new SpatialUtils(o._1).getHash(o._2.getY(), o._2.getX()), o))
+                    .groupByKey()
+                    .mapValues(PoiCell::new)
+                    .collectAsMap();
 
-                    return result.iterator();
-                });
+            // Broadcast hashed POIs
+            CellPois cellPois = new CellPois(hashedPoisMap.size());
+            hashedPoisMap.forEach(cellPois::add);
+            Broadcast<CellPois> broadcastHashedPois = ctx.broadcast(cellPois);
+            poiRadii.unpersist(false);
 
-        Map<Long, Iterable<Tuple2<Double, Point>>> hashedPoisMap = hashedPois
-                .groupByKey()
-                .collectAsMap();
+            // Filter signals by hash coverage
+            signals = inputSignals
+                    .mapPartitionsToPair(it -> {
+                        CellPois pois = broadcastHashedPois.getValue();
 
-        // Broadcast hashed POIs
-        Broadcast<HashMap<Long, Iterable<Tuple2<Double, Point>>>> broadcastHashedPois = ctx
-                .broadcast(new HashMap<>(hashedPoisMap));
+                        List<Tuple2<Boolean, Point>> result = new ArrayList<>();
 
-        final GeometryFactory geometryFactory = new GeometryFactory();
+                        while (it.hasNext()) {
+                            Point signal = it.next();
+
+                            encounter(signal, neighood(signal, tiers), pois, _once, _inputPoisName, geometryFactory, result);
+                        }
 
-        // Filter signals by hash coverage
-        JavaPairRDD<Boolean, Point> signals = inputSignals
-                .mapPartitionsToPair(it -> {
-                    HashMap<Long, Iterable<Tuple2<Double, Point>>> pois = broadcastHashedPois.getValue();
+                        return result.iterator();
+                    });
+        } else {
+            // the join is lazy and would keep POIs cached until the end of the task, so it reads them once more instead
+            poiRadii.unpersist(false);
+
+            // signals and POIs meet in the partitions of cells of the tier with the biggest radius. A POI goes once to
+            // each partition that may have signals within its own radius, and there it is indexed by the cell of its
+            // own tier, same as in the broadcast mode
+            final SpatialUtils joinUtils = new SpatialUtils(maxRadius);
+
+            JavaRDD<Tuple2<Long, Tuple2<Double, Point>>> partitionedPois;
+            JavaRDD<Point> partitionedSignals;
+
+            final SpatialPartitioner spatialPartitioner = SpatialPartitioner.of(inputSignals);
+            if ((spatialPartitioner != null) && (joinUtils.getResolution() >= spatialPartitioner.level)) {
+                // signals are spatially partitioned already, so they stay in place
+                partitionedPois = poiRadii
+                        .flatMapToPair(o -> {
+                            Set<Integer> parts = new HashSet<>();
+                            for (long hash : joinUtils.getNeighbours(joinUtils.getHash(o._2.getY(), o._2.getX()), o._1)) {
+                                for (int part : spatialPartitioner.getPartitions(hash)) {
+                                    parts.add(part);
+                                }
+                            }
 
-                    List<Tuple2<Boolean, Point>> result = new ArrayList<>();
+                            return tierPoi(o, parts).iterator();
+                        })
+                        .partitionBy(new HashPartitioner(spatialPartitioner.numPartitions()))
+                        .values();
 
-                    Text distanceAttr = new Text("_distance");
+                partitionedSignals = inputSignals;
+            } else {
+                final CellPartitioner partitioner = new CellPartitioner(Math.max(inputSignals.getNumPartitions(), inputPois.getNumPartitions()));
 
-                    while (it.hasNext()) {
-                        Point signal = it.next();
-                        boolean added = false;
-
-                        MapWritable signalProperties = (MapWritable) signal.getUserData();
-
-                        double signalLat = signal.getY();
-                        double signalLon = signal.getX();
-                        long signalHash = spatialUtils.getHash(signalLat, signalLon);
-
-                        List<Long> neighood = spatialUtils.getNeighbours(signalHash);
-
-                        once:
-                        for (Long hash : neighood) {
-                            if (pois.containsKey(hash)) {
-                                for (Tuple2<Double, Point> poi : pois.get(hash)) {
-                                    double distance = Geodesic.WGS84.Inverse(signalLat, signalLon, poi._2.getY(), poi._2.getX(), GeodesicMask.DISTANCE).s12;
-
-                                    //check if poi falls into radius
-                                    if (distance <= poi._1) {
-                                        if (_once) {
-                                            result.add(new Tuple2<>(true, signal));
-                                        } else {
-                                            MapWritable poiProperties = (MapWritable) poi._2.getUserData();
-                                            MapWritable properties = new MapWritable();
-                                            poiProperties.forEach((k, v) -> properties.put(new Text(_inputPoisName + "." + k), new Text(String.valueOf(v))));
-                                            properties.putAll(signalProperties);
-                                            properties.put(distanceAttr, new DoubleWritable(distance));
-
-                                            Point point = geometryFactory.createPoint(new Coordinate(signalLon, signalLat));
-                                            point.setUserData(properties);
-                                            result.add(new Tuple2<>(true, point));
-                                        }
-                                        added = true;
-                                    }
-
-                                    if (_once && added) {
-                                        break once;
-                                    }
-                                }
+                partitionedPois = poiRadii
+                        .flatMapToPair(o -> {
+                            Set<Integer> parts = new HashSet<>();
+                            for (long hash : joinUtils.getNeighbours(joinUtils.getHash(o._2.getY(), o._2.getX()), o._1)) {
+                                parts.add(partitioner.getPartition(hash));
                             }
-                        }
 
-                        if (!added) {
-                            result.add(new Tuple2<>(false, signal));
-                        }
+                            return tierPoi(o, parts).iterator();
+                        })
+                        .partitionBy(new HashPartitioner(partitioner.numPartitions()))
+                        .values();
+
+                partitionedSignals = inputSignals
+                        .mapToPair(signal -> new Tuple2<>(joinUtils.getHash(signal.getY(), signal.getX()), signal))
+                        .partitionBy(partitioner)
+                        .values();
+            }
+
+            FlatMapFunction2<Iterator<Point>, Iterator<Tuple2<Long, Tuple2<Double, Point>>>, Tuple2<Boolean, Point>> join = (sit, pit) -> {
+                LongIntMap cellIndex = new LongIntMap();
+                List<List<Tuple2<Double, Point>>> grouped = new ArrayList<>();
+                while (pit.hasNext()) {
+                    Tuple2<Long, Tuple2<Double, Point>> t = pit.next();
+
+                    long hash = t._1;
+                    int i = cellIndex.get(hash);
+                    if (i == LongIntMap.MISSING) {
+                        i = grouped.size();
+                        cellIndex.put(hash, i);
+                        grouped.add(new ArrayList<>());
                     }
+                    grouped.get(i).add(t._2);
+                }
 
-                    return result.iterator();
-                });
+                CellPois pois = new CellPois(cellIndex, grouped.size());
+                for (List<Tuple2<Double, Point>> cell : grouped) {
+                    pois.cells[pois.size++] = new PoiCell(cell);
+                }
+                grouped.clear();
+
+                List<Tuple2<Boolean, Point>> result = new ArrayList<>();
+
+                while (sit.hasNext()) {
+                    Point signal = sit.next();
+
+                    encounter(signal, neighood(signal, tiers), pois, _once, _inputPoisName, geometryFactory, result);
+                }
+
+                return result.iterator();
+            };
+
+            signals = partitionedSignals
+                    .zipPartitions(partitionedPois, join)
+                    .mapToPair(t -> t);
+        }
 
         if (outputEvictedName != null) {
             Map<String, JavaRDDLike> ret = new HashMap<>();
@@ -235,4 +299,115 @@ public class ProximityFilterOperation extends Operation {
             return Collections.singletonMap(outputSignalsName, signals.filter(t -> t._1).values());
         }
     }
+
+    /**
+     * @return POI keyed by its cell in its own tier, for each of given partitions
+     */
+    private static List<Tuple2<Integer, Tuple2<Long, Tuple2<Double, Point>>>> tierPoi(Tuple2<Double, Point> poi, Set<Integer> parts) {
+        Tuple2<Long, Tuple2<Double, Point>> hashed = new Tuple2<>(new SpatialUtils(poi._1).getHash(poi._2.getY(), poi._2.getX()), poi);
+
+        List<Tuple2<Integer, Tuple2<Long, Tuple2<Double, Point>>>> result = new ArrayList<>(parts.size());
+        for (int part : parts) {
+            result.add(new Tuple2<>(part, hashed));
+        }
+        return result;
+    }
+
+    /**
+     * @return cells of all tiers that may have POIs with the signal within their radius
+     */
+    private static List<Long> neighood(Point signal, List<SpatialUtils> tiers) {
+        if (tiers.size() == 1) {
+            SpatialUtils spatialUtils = tiers.get(0);
+            return spatialUtils.getNeighbours(spatialUtils.getHash(signal.getY(), signal.getX()));
+        }
+
+        List<Long> neighood = new ArrayList<>();
+        for (SpatialUtils spatialUtils : tiers) {
+            neighood.addAll(spatialUtils.getNeighbours(spatialUtils.getHash(signal.getY(), signal.getX())));
+        }
+        return neighood;
+    }
+
+    /**
+     * Look for POIs in given cells that have the signal within their radius, and add the signal to the result,
+     * either once or augmented with properties of each POI, or as evicted if there is none
+     */
+    private static void encounter(Point signal, List<Long> neighood, CellPois pois, boolean once,
+                                  String poisName, GeometryFactory geometryFactory, List<Tuple2<Boolean, Point>> result) {
+        boolean added = false;
+
+        MapWritable signalProperties = (MapWritable) signal.getUserData();
+
+        double signalLat = signal.getY();
+        double signalLon = signal.getX();
+
+        Text distanceAttr = new Text("_distance");
+
+        once:
+        for (long hash : neighood) {
+            PoiCell cell = pois.get(hash);
+            if (cell == null) {
+                continue;
+            }
+
+            for (int i = cell.from(signalLat), to = cell.to(signalLat); i < to; i++) {
+                double distance = GeoMath.distanceWithin(signalLat, signalLon, cell.getLat(i), cell.getLon(i), cell.getRadius(i));
+
+                //check if poi falls into radius
+                if (!Double.isNaN(distance)) {
+                    if (once) {
+                        result.add(new Tuple2<>(true, signal));
+                    } else {
+                        MapWritable poiProperties = (MapWritable) cell.getPoi(i).getUserData();
+                        MapWritable properties = new MapWritable();
+                        poiProperties.forEach((k, v) -> properties.put(new Text(poisName + "." + k), new Text(String.valueOf(v))));
+                        properties.putAll(signalProperties);
+                        properties.put(distanceAttr, new DoubleWritable(distance));
+
+                        Point point = geometryFactory.createPoint(new Coordinate(signalLon, signalLat));
+                        point.setUserData(properties);
+                        result.add(new Tuple2<>(true, point));
+                    }
+                    added = true;
+                }
+
+                if (once && added) {
+                    break once;
+                }
+            }
+        }
+
+        if (!added) {
+            result.add(new Tuple2<>(false, signal));
+        }
+    }
+
+    /**
+     * POI cells indexed by their H3 hashes
+     */
+    private static class CellPois implements Serializable {
+        private final LongIntMap index;
+        private final PoiCell[] cells;
+        private int size = 0;
+
+        private CellPois(int expectedSize) {
+            this(new LongIntMap(expectedSize), expectedSize);
+        }
+
+        private CellPois(LongIntMap index, int expectedSize) {
+            this.index = index;
+            this.cells = new PoiCell[expectedSize];
+        }
+
+        private void add(long hash, PoiCell cell) {
+            index.put(hash, size);
+            cells[size++] = cell;
+        }
+
+        private PoiCell get(long hash) {
+            int i = index.get(hash);
+            return (i == LongIntMap.MISSING) ? null : cells[i];
+        }
+    }
 }
@@ -44,4 +44,15 @@ public class AreaCoversTest {
             assertEquals(4, resultRDD.count());
         }
     }
+
+    @Test
+    public void areaFilterShuffleTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/configs/test.config.shuffle.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            assertEquals(718, ret.get("output").count());
+            assertEquals(4, ret.get("evicted").count());
+        }
+    }
 }
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.proximity;
+
+import ash.nazg.spark.TestRunner;
+import ash.nazg.spatial.GeoMath;
+import ash.nazg.spatial.SpatialPartitioner;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.junit.Test;
+import org.locationtech.jts.geom.Point;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class NearestNeighboursTest {
+    private static final int COUNT = 3;
+    private static final double MAX_DISTANCE = 1_500_000.D;
+
+    @Test
+    public void nearestNeighboursTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/configs/config.nearest.properties")) {
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            assertNearest(ret);
+        }
+    }
+
+    @Test
+    public void spatiallyPartitionedTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/configs/config.nearest.spatial.properties")) {
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            assertNotNull(SpatialPartitioner.of(ret.get("partitioned")));
+            assertNearest(ret);
+        }
+    }
+
+    private static void assertNearest(Map<String, JavaRDDLike> ret) {
+        List<Point> signals = ret.get("signals").collect();
+        List<Point> pois = ret.get("geometries").collect();
+
+        // brute force: signal coordinates -> distances to nearest POIs within the maximum distance, for all signals
+        // at these coordinates
+        Map<String, List<Double>> expected = new HashMap<>();
+        long expectedEvicted = 0L;
+        for (Point s : signals) {
+            List<Double> distances = new ArrayList<>();
+            for (Point p : pois) {
+                double distance = GeoMath.distance(s.getY(), s.getX(), p.getY(), p.getX());
+                if (distance <= MAX_DISTANCE) {
+                    distances.add(distance);
+                }
+            }
+
+            if (distances.isEmpty()) {
+                expectedEvicted++;
+            } else {
+                Collections.sort(distances);
+                expected.computeIfAbsent(s.getY() + "," + s.getX(), k -> new ArrayList<>())
+                        .addAll(distances.subList(0, Math.min(COUNT, distances.size())));
+            }
+        }
+
+        assertTrue(expectedEvicted > 0L);
+        assertEquals(expectedEvicted, ret.get("evicted").count());
+
+        Text distanceAttr = new Text("_distance");
+        Map<String, List<Double>> actual = new HashMap<>();
+        List<Point> joined = ret.get("joined").collect();
+        for (Point j : joined) {
+            assertNotNull(((MapWritable) j.getUserData()).get(new Text("geometries.name")));
+
+            double distance = ((DoubleWritable) ((MapWritable) j.getUserData()).get(distanceAttr)).get();
+            actual.computeIfAbsent(j.getY() + "," + j.getX(), k -> new ArrayList<>()).add(distance);
+        }
+
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, List<Double>> e : expected.entrySet()) {
+            List<Double> nearest = e.getValue();
+            List<Double> found = actual.get(e.getKey());
+            Collections.sort(nearest);
+            Collections.sort(found);
+
+            assertEquals(nearest.size(), found.size());
+            for (int i = 0; i < found.size(); i++) {
+                assertEquals(nearest.get(i), found.get(i), nearest.get(i) * GeoMath.FAST_ERROR);
+            }
+        }
+    }
+}
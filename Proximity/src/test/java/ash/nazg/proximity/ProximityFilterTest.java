@@ -5,8 +5,11 @@
 package ash.nazg.proximity;
 
 import ash.nazg.spark.TestRunner;
+import ash.nazg.spatial.SpatialPartitioner;
 import net.sf.geographiclib.Geodesic;
 import net.sf.geographiclib.GeodesicMask;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.MapWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
@@ -18,6 +21,7 @@ import java.util.Map;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 public class ProximityFilterTest {
 
@@ -51,4 +55,62 @@ public class ProximityFilterTest {
             }
         }
     }
+
+    @Test
+    public void mixedRadiiTest() throws Exception {
+        try (TestRunner underTest = new TestRunner("/configs/config.proximity.tiered.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            List<Point> signals = ret.get("signals").collect();
+            List<Point> pois = ret.get("geometries").collect();
+
+            Text radiusAttr = new Text("_radius");
+            long expected = 0L;
+            for (Point s : signals) {
+                for (Point p : pois) {
+                    double radius = ((DoubleWritable) ((MapWritable) p.getUserData()).get(radiusAttr)).get();
+                    if (Geodesic.WGS84.Inverse(s.getY(), s.getX(), p.getY(), p.getX(), GeodesicMask.DISTANCE).s12 <= radius) {
+                        expected++;
+                    }
+                }
+            }
+
+            assertTrue(expected > 0L);
+            assertEquals(expected, ret.get("output").count());
+        }
+    }
+
+    @Test
+    public void shuffleJoinTest() throws Exception {
+        long broadcastEvicted;
+        try (TestRunner underTest = new TestRunner("/configs/config.proximity.properties")) {
+            broadcastEvicted = underTest.go().get("evicted").count();
+        }
+
+        try (TestRunner underTest = new TestRunner("/configs/config.proximity.shuffle.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            assertEquals(44, ret.get("output").count());
+            assertEquals(broadcastEvicted, ret.get("evicted").count());
+        }
+    }
+
+    @Test
+    public void spatiallyPartitionedJoinTest() throws Exception {
+        long broadcastEvicted;
+        try (TestRunner underTest = new TestRunner("/configs/config.proximity.properties")) {
+            broadcastEvicted = underTest.go().get("evicted").count();
+        }
+
+        try (TestRunner underTest = new TestRunner("/configs/config.proximity.spatial.properties")) {
+
+            Map<String, JavaRDDLike> ret = underTest.go();
+
+            assertNotNull(SpatialPartitioner.of(ret.get("partitioned")));
+            assertEquals(44, ret.get("output").count());
+            assertEquals(broadcastEvicted, ret.get("evicted").count());
+        }
+    }
 }
@@ -6,6 +6,7 @@ package ash.nazg.cli;
 
 import ash.nazg.config.InvalidConfigValueException;
 import ash.nazg.config.WrapperConfig;
+import ash.nazg.dist.DirectSinkInput;
 import ash.nazg.dist.DistCpSettings;
 import ash.nazg.spark.TaskRunnerWrapper;
 import ash.nazg.storage.Adapters;
@@ -72,9 +73,13 @@ public class TaskWrapper extends TaskRunnerWrapper {
 
             InputAdapter inputAdapter = Adapters.input(path);
             if ((inputAdapter instanceof HadoopAdapter) && settings.toCluster) {
-                path = settings.inputDir + "/" + sink + "/part-*";
+                if (settings.streamInputs) {
+                    inputAdapter = new DirectSinkInput();
+                } else {
+                    path = settings.inputDir + "/" + sink + "/part-*";
 
-                inputAdapter = Adapters.input(path);
+                    inputAdapter = Adapters.input(path);
+                }
             }
 
             inputAdapter.setContext(context);
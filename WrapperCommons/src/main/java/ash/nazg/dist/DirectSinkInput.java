@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import ash.nazg.config.InvalidConfigValueException;
+import ash.nazg.config.WrapperConfig;
+import ash.nazg.storage.HadoopAdapter;
+import ash.nazg.storage.InputAdapter;
+import com.opencsv.CSVParser;
+import com.opencsv.CSVParserBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetInputFormat;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.schema.GroupType;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.api.java.JavaSparkContext;
+import scala.Tuple3;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the sink straight from its source path, as DistWrapper would have found it, and rearranges its columns
+ * on the fly instead of staging a copy in {@link DistCpSettings#inputDir}.
+ */
+public class DirectSinkInput extends HadoopAdapter implements InputAdapter {
+    private JavaSparkContext ctx;
+    private int partCount;
+
+    private String[] sinkSchema;
+    private String[] sinkColumns;
+    private char delimiter;
+
+    @Override
+    public void setProperties(String name, WrapperConfig wrapperConfig) throws InvalidConfigValueException {
+        partCount = wrapperConfig.inputParts(name);
+
+        sinkSchema = wrapperConfig.getSinkSchema(name);
+        sinkColumns = wrapperConfig.getSinkColumns(name);
+        delimiter = wrapperConfig.getSinkDelimiter(name);
+    }
+
+    @Override
+    public void setContext(JavaSparkContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public JavaRDDLike load(String path) throws Exception {
+        List<String> textFiles = new ArrayList<>();
+        List<String> parquetFiles = new ArrayList<>();
+
+        Configuration conf = ctx.hadoopConfiguration();
+        for (Tuple3<String, String, String> split : DistCpSettings.srcDestGroup(path)) {
+            Path srcPath = new Path(split._2());
+            Pattern pattern = Pattern.compile(split._3());
+
+            FileSystem srcFS = srcPath.getFileSystem(conf);
+            RemoteIterator<LocatedFileStatus> srcFiles = srcFS.listFiles(srcPath, true);
+            while (srcFiles.hasNext()) {
+                String srcFile = srcFiles.next().getPath().toString();
+
+                if (pattern.matcher(srcFile).matches()) {
+                    if (srcFile.toLowerCase().endsWith(".parquet")) {
+                        parquetFiles.add(srcFile);
+                    } else {
+                        textFiles.add(srcFile);
+                    }
+                }
+            }
+        }
+
+        final char _delimiter = delimiter;
+        final String[] _sinkColumns = sinkColumns;
+
+        JavaRDD<String> rdd = null;
+        if (!textFiles.isEmpty()) {
+            rdd = ctx.textFile(String.join(",", textFiles), Math.max(partCount, 1));
+
+            final int[] order = SinkColumns.textOrder(sinkSchema, sinkColumns);
+            if (order != null) {
+                rdd = rdd.mapPartitions(it -> reorderText(it, order, _delimiter));
+            }
+        }
+
+        if (!parquetFiles.isEmpty()) {
+            Configuration parquetConf = new Configuration(conf);
+            parquetConf.set(ParquetInputFormat.READ_SUPPORT_CLASS, GroupReadSupport.class.getCanonicalName());
+
+            Class<ParquetInputFormat<Group>> inputFormat = (Class<ParquetInputFormat<Group>>) (Class<?>) ParquetInputFormat.class;
+
+            JavaRDD<String> parquet = ctx.newAPIHadoopFile(String.join(",", parquetFiles), inputFormat, Void.class, Group.class, parquetConf)
+                    .values()
+                    .mapPartitions(it -> parquetLines(it, _sinkColumns, _delimiter));
+
+            rdd = (rdd == null) ? parquet : rdd.union(parquet);
+        }
+
+        return (rdd == null) ? ctx.emptyRDD() : rdd;
+    }
+
+    /**
+     * @return lines with columns in the sink order, parsed and rearranged one by one while they're pulled. Malformed
+     * lines are skipped
+     */
+    private static Iterator<String> reorderText(Iterator<String> it, int[] order, char delimiter) {
+        CSVParser parser = new CSVParserBuilder().withSeparator(delimiter).build();
+
+        return new Iterator<String>() {
+            private String next = null;
+
+            @Override
+            public boolean hasNext() {
+                while ((next == null) && it.hasNext()) {
+                    String line = it.next();
+
+                    try {
+                        String[] ll = parser.parseLine(line);
+                        String[] acc = new String[order.length];
+
+                        for (int i = 0; i < order.length; i++) {
+                            acc[i] = ll[order[i]];
+                        }
+
+                        next = SinkColumns.toLine(acc, delimiter);
+                    } catch (Exception e) {
+                        System.err.println("Malformed input line: " + line);
+                    }
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                String ret = next;
+                next = null;
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * @return lines of Parquet records with columns in the sink order, converted one by one while they're pulled
+     */
+    private static Iterator<String> parquetLines(Iterator<Group> it, String[] sinkColumns, char delimiter) {
+        return new Iterator<String>() {
+            private GroupType schema = null;
+            private int[] order = null;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public String next() {
+                Group g = it.next();
+
+                if (g.getType() != schema) {
+                    schema = g.getType();
+                    order = SinkColumns.parquetOrder(schema, sinkColumns);
+                }
+
+                String[] acc = new String[order.length];
+                for (int i = 0; i < order.length; i++) {
+                    acc[i] = (g.getFieldRepetitionCount(order[i]) > 0) ? g.getValueToString(order[i], 0) : "";
+                }
+
+                try {
+                    return SinkColumns.toLine(acc, delimiter);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+}
@@ -23,7 +23,9 @@ public class DistCpSettings {
     public final String outputDir;
     public final String wrapperStorePath;
 
-    private DistCpSettings(String wrap, String inputDir, String outputDir, String wrapperStorePath) {
+    public final boolean streamInputs;
+
+    private DistCpSettings(String wrap, String inputDir, String outputDir, String wrapperStorePath, boolean streamInputs) {
         CpDirection cpDirection = CpDirection.parse(wrap);
         this.toCluster = cpDirection.toCluster;
         this.fromCluster = cpDirection.fromCluster;
@@ -32,6 +34,7 @@ public class DistCpSettings {
         this.inputDir = inputDir;
         this.outputDir = outputDir;
         this.wrapperStorePath = wrapperStorePath;
+        this.streamInputs = streamInputs;
     }
 
     public static DistCpSettings fromConfig(WrapperConfig wrapperConfig) {
@@ -39,8 +42,9 @@ public class DistCpSettings {
         String inputDir = wrapperConfig.getDistCpProperty("dir.to", "hdfs:///input");
         String outputDir = wrapperConfig.getDistCpProperty("dir.from", "hdfs:///output");
         String wrapperStorePath = wrapperConfig.getDistCpProperty("store", null);
+        boolean streamInputs = Boolean.parseBoolean(wrapperConfig.getDistCpProperty("stream", "false"));
 
-        return new DistCpSettings(wrap, inputDir, outputDir, wrapperStorePath);
+        return new DistCpSettings(wrap, inputDir, outputDir, wrapperStorePath, streamInputs);
     }
 
     public static List<Tuple3<String, String, String>> srcDestGroup(String inputPath) throws InvalidConfigValueException {
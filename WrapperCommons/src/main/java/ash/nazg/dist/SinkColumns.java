@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import com.opencsv.CSVWriter;
+import org.apache.parquet.schema.GroupType;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+public final class SinkColumns {
+    private SinkColumns() {
+    }
+
+    /**
+     * @return order of delimited text columns to rearrange from sink schema into sink columns, or null if there
+     * is nothing to rearrange
+     */
+    public static int[] textOrder(String[] sinkSchema, String[] sinkColumns) {
+        if ((sinkSchema == null) && (sinkColumns == null)) {
+            return null;
+        }
+
+        if (sinkSchema == null) {
+            return IntStream.range(0, sinkColumns.length).toArray();
+        }
+
+        if (sinkColumns == null) {
+            return IntStream.range(0, sinkSchema.length).toArray();
+        }
+
+        Map<String, Integer> schema = new HashMap<>();
+        for (int i = 0; i < sinkSchema.length; i++) {
+            schema.put(sinkSchema[i], i);
+        }
+
+        int[] columnOrder = new int[sinkColumns.length];
+        for (int i = 0; i < sinkColumns.length; i++) {
+            columnOrder[i] = schema.get(sinkColumns[i]);
+        }
+
+        return columnOrder;
+    }
+
+    public static int[] parquetOrder(GroupType schema, String[] sinkColumns) {
+        if (sinkColumns == null) {
+            return IntStream.range(0, schema.getFieldCount()).toArray();
+        }
+
+        int[] fieldOrder = new int[sinkColumns.length];
+        for (int i = 0; i < sinkColumns.length; i++) {
+            fieldOrder[i] = schema.getFieldIndex(sinkColumns[i]);
+        }
+
+        return fieldOrder;
+    }
+
+    public static String toLine(String[] acc, char delimiter) throws IOException {
+        StringWriter stringBuffer = new StringWriter();
+        CSVWriter writer = new CSVWriter(stringBuffer, delimiter, CSVWriter.DEFAULT_QUOTE_CHARACTER,
+                CSVWriter.DEFAULT_ESCAPE_CHARACTER, "");
+        writer.writeNext(acc, false);
+        writer.close();
+
+        return stringBuffer.toString();
+    }
+}
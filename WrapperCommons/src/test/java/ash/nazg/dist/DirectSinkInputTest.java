@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2020 Locomizer team and Contributors
+ * This project uses New BSD license with do no evil clause. For full text, check the LICENSE file in the root directory.
+ */
+package ash.nazg.dist;
+
+import ash.nazg.config.WrapperConfig;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectSinkInputTest {
+    @Test
+    public void reorderTest() throws Exception {
+        SparkConf sparkConf = new SparkConf()
+                .setAppName("test")
+                .setMaster("local[*]")
+                .set("spark.ui.enabled", "false");
+
+        try (JavaSparkContext context = new JavaSparkContext(sparkConf);
+             InputStream input = getClass().getResourceAsStream("/config.DirectSinkInput.properties")) {
+            Properties source = new Properties();
+            source.load(input);
+
+            WrapperConfig wrapperConfig = new WrapperConfig();
+            wrapperConfig.setProperties(source);
+
+            DistCpSettings settings = DistCpSettings.fromConfig(wrapperConfig);
+            assertTrue(settings.toCluster);
+            assertTrue(settings.streamInputs);
+
+            DirectSinkInput underTest = new DirectSinkInput();
+            underTest.setContext(context);
+            underTest.setProperties("direct", wrapperConfig);
+
+            String path = "file:" + getClass().getResource("/").getPath() + wrapperConfig.inputPath("direct");
+            List<String> lines = ((JavaRDD<String>) underTest.load(path)).collect();
+
+            assertEquals(3, lines.size());
+            assertTrue(lines.contains("2020-01-02,u2,11.5"));
+        }
+    }
+}